@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.springframework.util.SerializationUtils;
+
+import com.bcgdv.dbshard2.dao.entity.IndexedData;
+import com.bcgdv.dbshard2.dao.entity.ObjectData;
+
+/**
+ * Compact codec for what the daos cache: keys are raw UTF-8, ObjectData,
+ * NullCache, Strings and lists of IndexedData are written field by field
+ * after a magic and a version byte. Anything else falls back to Java
+ * serialization inside the same envelope.
+ * 
+ * Values written by {@link SerializationCacheCodec} start with the Java stream
+ * magic and are still decoded, so old entries can be read while they expire.
+ */
+@SuppressWarnings({"rawtypes","unchecked"})
+public class BinaryCacheCodec implements CacheCodec {
+	static final byte MAGIC = (byte) 0xD5;
+	static final byte VERSION = 1;
+	
+	static final byte TYPE_NULL_CACHE = 0;
+	static final byte TYPE_OBJECT_DATA = 1;
+	static final byte TYPE_INDEXED_DATA_LIST = 2;
+	static final byte TYPE_STRING = 3;
+	static final byte TYPE_OBJECT_DATA_PAYLOAD = 4;
+	static final byte TYPE_SERIALIZED = 127;
+	
+	private static final byte VALUE_NULL = 0;
+	private static final byte VALUE_STRING = 1;
+	private static final byte VALUE_INT = 2;
+	private static final byte VALUE_LONG = 3;
+	private static final byte VALUE_DOUBLE = 4;
+	private static final byte VALUE_BOOLEAN = 5;
+	private static final byte VALUE_SERIALIZED = 127;
+	
+	@Override
+	public byte[] encodeKey(String key) {
+		return key.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public byte[] encode(Object value) {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(estimateSize(value));
+			DataOutputStream out = new DataOutputStream(baos);
+			out.writeByte(MAGIC);
+			out.writeByte(VERSION);
+			if(value instanceof NullCache) {
+				out.writeByte(TYPE_NULL_CACHE);
+			}
+			else if(value != null && value.getClass() == ObjectData.class) {
+				ObjectData od = (ObjectData) value;
+				out.writeByte(od.payload == null ? TYPE_OBJECT_DATA : TYPE_OBJECT_DATA_PAYLOAD);
+				writeString(out, od.id);
+				out.writeInt(od.version);
+				out.writeLong(od.created);
+				out.writeLong(od.updated);
+				if(od.payload == null) {
+					writeString(out, od.json);
+				}
+				else {
+					out.writeInt(od.payload.length);
+					out.write(od.payload);
+				}
+			}
+			else if(value instanceof String) {
+				out.writeByte(TYPE_STRING);
+				writeString(out, (String) value);
+			}
+			else if(isIndexedDataList(value)) {
+				List<IndexedData> list = (List<IndexedData>) value;
+				out.writeByte(TYPE_INDEXED_DATA_LIST);
+				out.writeInt(list.size());
+				for(IndexedData data : list) {
+					writeString(out, data.getId());
+					Map<String, Object> values = data.getValues();
+					out.writeInt(values == null ? -1 : values.size());
+					if(values != null) {
+						for(Entry<String, Object> entry : values.entrySet()) {
+							writeString(out, entry.getKey());
+							writeValue(out, entry.getValue());
+						}
+					}
+				}
+			}
+			else {
+				out.writeByte(TYPE_SERIALIZED);
+				out.write(SerializationUtils.serialize(value));
+			}
+			out.flush();
+			return baos.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public Object decode(byte[] bytes) {
+		if(bytes == null)
+			return null;
+		if(bytes.length > 1 && bytes[0] == (byte) 0xAC && bytes[1] == (byte) 0xED)
+			return SerializationUtils.deserialize(bytes);
+		if(bytes.length < 3 || bytes[0] != MAGIC)
+			throw new IllegalArgumentException("unknown cache entry format");
+		if(bytes[1] != VERSION)
+			throw new IllegalArgumentException("unsupported cache entry version " + bytes[1]);
+		
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 3, bytes.length - 3));
+			switch (bytes[2]) {
+			case TYPE_NULL_CACHE:
+				return NullCache.getInstance();
+			case TYPE_OBJECT_DATA:
+			case TYPE_OBJECT_DATA_PAYLOAD: {
+				ObjectData od = new ObjectData();
+				od.id = readString(in);
+				od.version = in.readInt();
+				od.created = in.readLong();
+				od.updated = in.readLong();
+				if(bytes[2] == TYPE_OBJECT_DATA) {
+					od.json = readString(in);
+				}
+				else {
+					od.payload = new byte[in.readInt()];
+					in.readFully(od.payload);
+				}
+				return od;
+			}
+			case TYPE_STRING:
+				return readString(in);
+			case TYPE_INDEXED_DATA_LIST: {
+				int size = in.readInt();
+				List<IndexedData> list = new ArrayList<IndexedData>(size);
+				for(int i=0; i<size; i++) {
+					IndexedData data = new IndexedData(readString(in));
+					int count = in.readInt();
+					for(int j=0; j<count; j++) {
+						String key = readString(in);
+						data.put(key, readValue(in));
+					}
+					list.add(data);
+				}
+				return list;
+			}
+			case TYPE_SERIALIZED: {
+				byte[] serialized = new byte[bytes.length - 3];
+				System.arraycopy(bytes, 3, serialized, 0, serialized.length);
+				return SerializationUtils.deserialize(serialized);
+			}
+			default:
+				throw new IllegalArgumentException("unknown cache entry type " + bytes[2]);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static boolean isIndexedDataList(Object value) {
+		if(!(value instanceof List))
+			return false;
+		for(Object item : (List) value) {
+			if(!(item instanceof IndexedData))
+				return false;
+		}
+		return true;
+	}
+	
+	private static int estimateSize(Object value) {
+		if(value instanceof ObjectData) {
+			ObjectData od = (ObjectData) value;
+			return 64 + (od.json == null ? 0 : od.json.length()) + (od.payload == null ? 0 : od.payload.length);
+		}
+		if(value instanceof String)
+			return 16 + ((String) value).length();
+		return 64;
+	}
+	
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if(s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if(value == null) {
+			out.writeByte(VALUE_NULL);
+		}
+		else if(value instanceof String) {
+			out.writeByte(VALUE_STRING);
+			writeString(out, (String) value);
+		}
+		else if(value instanceof Integer) {
+			out.writeByte(VALUE_INT);
+			out.writeInt((Integer) value);
+		}
+		else if(value instanceof Long) {
+			out.writeByte(VALUE_LONG);
+			out.writeLong((Long) value);
+		}
+		else if(value instanceof Double) {
+			out.writeByte(VALUE_DOUBLE);
+			out.writeDouble((Double) value);
+		}
+		else if(value instanceof Boolean) {
+			out.writeByte(VALUE_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		}
+		else {
+			byte[] bytes = SerializationUtils.serialize(value);
+			out.writeByte(VALUE_SERIALIZED);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case VALUE_NULL:
+			return null;
+		case VALUE_STRING:
+			return readString(in);
+		case VALUE_INT:
+			return in.readInt();
+		case VALUE_LONG:
+			return in.readLong();
+		case VALUE_DOUBLE:
+			return in.readDouble();
+		case VALUE_BOOLEAN:
+			return in.readBoolean();
+		case VALUE_SERIALIZED: {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return SerializationUtils.deserialize(bytes);
+		}
+		default:
+			throw new IOException("unknown value type " + type);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bcgdv.dbshard2.dao.entity.ObjectData;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * In-heap tier in front of another cache proxy. Entries are bounded by an
+ * estimated size in bytes and expire after a short ttl, which is how changes
+ * made by other processes become visible. Writes and deletes through this
+ * proxy invalidate the local entry before going to the remote cache.
+ * 
+ * ObjectData values are copied on the way out so callers never share an
+ * instance, other values are returned as stored.
+ */
+public class LocalCacheProxy extends CacheProxyBase implements CacheProxy {
+	private CacheProxy delegate;
+	private long maximumSize = 64L * 1024 * 1024;
+	private int ttlSeconds = 5;
+	private volatile Cache<String, Object> local;
+	
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	
+	public LocalCacheProxy() {
+	}
+	
+	public LocalCacheProxy(CacheProxy delegate) {
+		this.delegate = delegate;
+	}
+
+	public CacheProxy getDelegate() {
+		return delegate;
+	}
+
+	public void setDelegate(CacheProxy delegate) {
+		this.delegate = delegate;
+	}
+
+	public long getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * Estimated bytes kept in heap.
+	 */
+	public void setMaximumSize(long maximumSize) {
+		this.maximumSize = maximumSize;
+		local = null;
+	}
+
+	public int getTtlSeconds() {
+		return ttlSeconds;
+	}
+
+	public void setTtlSeconds(int ttlSeconds) {
+		this.ttlSeconds = ttlSeconds;
+		local = null;
+	}
+	
+	private Cache<String, Object> getLocal() {
+		Cache<String, Object> cache = local;
+		if(cache == null) {
+			synchronized (this) {
+				cache = local;
+				if(cache == null) {
+					cache = CacheBuilder.newBuilder()
+							.maximumWeight(maximumSize)
+							.weigher(new Weigher<String, Object>() {
+								@Override
+								public int weigh(String key, Object value) {
+									return estimateSize(key, value);
+								}
+							})
+							.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+							.build();
+					local = cache;
+				}
+			}
+		}
+		return cache;
+	}
+	
+	static int estimateSize(String key, Object value) {
+		int size = 64 + key.length() * 2;
+		if(value instanceof ObjectData) {
+			ObjectData od = (ObjectData) value;
+			size += 64 + (od.id == null ? 0 : od.id.length() * 2) + (od.json == null ? 0 : od.json.length() * 2) + (od.payload == null ? 0 : od.payload.length);
+		}
+		else if(value instanceof String) {
+			size += 40 + ((String)value).length() * 2;
+		}
+		else if(value instanceof Collection) {
+			size += 64 * ((Collection)value).size();
+		}
+		return size;
+	}
+	
+	private static Object copy(Object value) {
+		if(value != null && value.getClass() == ObjectData.class) {
+			ObjectData od = (ObjectData) value;
+			ObjectData copy = new ObjectData();
+			copy.id = od.id;
+			copy.json = od.json;
+			copy.payload = od.payload;
+			copy.version = od.version;
+			copy.created = od.created;
+			copy.updated = od.updated;
+			return copy;
+		}
+		return value;
+	}
+	
+	public long getHitCount() {
+		return hits.get();
+	}
+	
+	public long getMissCount() {
+		return misses.get();
+	}
+	
+	public long getLocalSize() {
+		return getLocal().size();
+	}
+	
+	public void invalidateLocal(String key) {
+		getLocal().invalidate(key);
+	}
+	
+	public void invalidateLocal(Collection<String> keys) {
+		getLocal().invalidateAll(keys);
+	}
+	
+	public void invalidateAllLocal() {
+		getLocal().invalidateAll();
+	}
+
+	@Override
+	public CacheType getType() {
+		return delegate.getType();
+	}
+
+	@Override
+	public Object get(String key, int expiration) {
+		if(key == null)
+			return null;
+		Object value = getLocal().getIfPresent(key);
+		if(value != null) {
+			hits.incrementAndGet();
+			return copy(value);
+		}
+		misses.incrementAndGet();
+		value = delegate.get(key, expiration);
+		if(value != null)
+			getLocal().put(key, value);
+		return copy(value);
+	}
+	
+	@Override
+	public Object getAndTouch(String key, int expiration) {
+		if(key == null)
+			return null;
+		Object value = getLocal().getIfPresent(key);
+		if(value != null) {
+			hits.incrementAndGet();
+			return copy(value);
+		}
+		misses.incrementAndGet();
+		value = delegate.getAndTouch(key, expiration);
+		if(value != null)
+			getLocal().put(key, value);
+		return copy(value);
+	}
+
+	@Override
+	public Map<String, Object> getBulk(Collection<String> keys) {
+		Map<String, Object> values = new HashMap<String, Object>();
+		List<String> remote = new ArrayList<String>();
+		Cache<String, Object> cache = getLocal();
+		for(String key : keys) {
+			Object value = cache.getIfPresent(key);
+			if(value != null)
+				values.put(key, copy(value));
+			else
+				remote.add(key);
+		}
+		hits.addAndGet(values.size());
+		misses.addAndGet(remote.size());
+		if(remote.size() > 0) {
+			for(Entry<String, Object> entry : delegate.getBulk(remote).entrySet()) {
+				if(entry.getValue() != null) {
+					cache.put(entry.getKey(), entry.getValue());
+					values.put(entry.getKey(), copy(entry.getValue()));
+				}
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public void set(String key, Object value, int expiration) {
+		getLocal().invalidate(key);
+		delegate.set(key, value, expiration);
+	}
+
+	@Override
+	public void setBulk(Map<String, Object> entities, int expiration) {
+		getLocal().invalidateAll(entities.keySet());
+		delegate.setBulk(entities, expiration);
+	}
+
+	@Override
+	public void delete(String key) {
+		getLocal().invalidate(key);
+		delegate.delete(key);
+	}
+
+	@Override
+	public void deleteBulk(Collection<String> keys) {
+		getLocal().invalidateAll(keys);
+		delegate.deleteBulk(keys);
+	}
+
+	@Override
+	public long incr(String key, long delta, int expiration) {
+		getLocal().invalidate(key);
+		return delegate.incr(key, delta, expiration);
+	}
+
+	@Override
+	public long decr(String key, long delta, int expiration) {
+		getLocal().invalidate(key);
+		return delegate.decr(key, delta, expiration);
+	}
+}
@@ -18,72 +18,293 @@
 package com.bcgdv.dbshard2.cache;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.log4j.Logger;
-import org.springframework.util.SerializationUtils;
 
-import redis.clients.jedis.BinaryJedis;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.Hashing;
 
+import com.bcgdv.dbshard2.util.ScatterGather;
+
+/**
+ * Redis cache partitioned over all configured servers by a consistent hash
+ * ring on the encoded key. Bulk operations are split per node and sent as one
+ * pipeline per node, in parallel when an executor is set.
+ * 
+ * The ring is immutable and replaced as a whole when the servers change, so
+ * lookups take no lock. Keys always stay with the node the ring gives them, so
+ * every process agrees on their owner. A node that cannot be reached is skipped
+ * for the retry interval: reads from it are misses and writes to it are logged
+ * and dropped, so a cache outage never fails the caller. The first command after
+ * the interval tries the node again. A node that dropped writes is flushed when
+ * it comes back, it may hold entries those writes would have replaced.
+ */
 public class RedisProxy extends CacheProxyBase implements CacheProxy{
 	private static final Logger logger = Logger.getLogger(RedisProxy.class);
+	private static final int VIRTUAL_NODES = 160;
+	
 	protected List<JedisPool> jedisPoolList = new ArrayList<JedisPool>();
+	protected CacheCodec codec = new BinaryCacheCodec();
+	protected CacheCodec legacyCodec;
+	protected ExecutorService executorService;
+	protected long retryInterval = 5000;
+	private volatile Ring ring = new Ring(Collections.<String>emptyList(), Collections.<JedisPool>emptyList(), null);
+	private volatile Map<JedisPool, NodeState> states = Collections.emptyMap();
 	
 	public void setServers(String servers) {
-		jedisPoolList.clear();
+		List<String> names = new ArrayList<String>();
+		List<JedisPool> pools = new ArrayList<JedisPool>();
 	    if(servers != null && servers.length()>0){
 		    for(String server : servers.split("[ ,;]+")) {
 		        int pos = server.indexOf(":");
 		        if(pos > 0){
 			        String host = server.substring(0, pos);
 			        int port = Integer.parseInt(server.substring(pos+1));
-			        this.jedisPoolList.add(new JedisPool(host, port));
+			        names.add(server);
+			        pools.add(new JedisPool(host, port));
 		        }
 		    }
 	    }
+	    setNodes(names, pools);
 	}
 	public void setJedisPoolList(List<JedisPool> jedisPoolList) {
-		this.jedisPoolList.clear();
-		if(jedisPoolList != null) this.jedisPoolList.addAll(jedisPoolList);
+		List<String> names = new ArrayList<String>();
+		List<JedisPool> pools = new ArrayList<JedisPool>();
+		if(jedisPoolList != null) {
+			for(int i=0; i<jedisPoolList.size(); i++) {
+				names.add("node" + i);
+				pools.add(jedisPoolList.get(i));
+			}
+		}
+		setNodes(names, pools);
 	}
 	public List<JedisPool> getJedisPoolList() {
 		return this.jedisPoolList;
 	}
 	
-	protected BinaryJedis getJedisFromPool() {
-        BinaryJedis binaryJedis = null;
-	    synchronized (jedisPoolList) {
-        	for(int i = 0; i<jedisPoolList.size();){
-        		JedisPool jedisPool = jedisPoolList.get(i);
-                try {
-                	Jedis jedis = jedisPool.getResource();
-                    if (jedis.isConnected()) {
-                    	binaryJedis = jedis;
-                        break;
-                    }
-                    i++;
-                } catch (Exception e) {
-                	e.printStackTrace();
-                	jedisPoolList.remove(i);
-                }
-            }
-        }
-        return binaryJedis;
+	private synchronized void setNodes(List<String> names, List<JedisPool> pools) {
+		Map<JedisPool, NodeState> map = new IdentityHashMap<JedisPool, NodeState>();
+		for(int i=0; i<pools.size(); i++) {
+			map.put(pools.get(i), new NodeState(names.get(i)));
+		}
+		this.jedisPoolList = Collections.unmodifiableList(pools);
+		this.states = map;
+		this.ring = new Ring(names, pools, pools.isEmpty() ? null : pools.get(0));
+	}
+	
+	public long getRetryInterval() {
+		return retryInterval;
+	}
+	/**
+	 * Milliseconds a node that could not be reached is skipped before it is tried again, 5000 by default.
+	 */
+	public void setRetryInterval(long retryInterval) {
+		this.retryInterval = retryInterval;
+	}
+	
+	/**
+	 * @return false while the node is skipped after a failure
+	 */
+	protected boolean isAvailable(JedisPool pool) {
+		NodeState state = states.get(pool);
+		return state == null || state.downUntil <= System.currentTimeMillis();
+	}
+	
+	public ExecutorService getExecutorService() {
+		return executorService;
+	}
+	/**
+	 * Executor used to talk to several nodes at once, without one the nodes of a
+	 * bulk operation are visited one after the other.
+	 */
+	public void setExecutorService(ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+	
+	public CacheCodec getCodec() {
+		return codec;
+	}
+	public void setCodec(CacheCodec codec) {
+		this.codec = codec;
+	}
+	
+	public boolean isMigrationRead() {
+		return legacyCodec != null;
+	}
+	/**
+	 * While entries written with Java serialized keys may still be in redis,
+	 * misses are retried with the legacy key, and writes and deletes also
+	 * remove the legacy key so a stale entry is never read back. The old client
+	 * wrote everything to the first server, so that is where legacy keys are.
+	 */
+	public void setMigrationRead(boolean migrationRead) {
+		this.legacyCodec = migrationRead ? new SerializationCacheCodec() : null;
+	}
+	
+	protected Object decode(String key, byte[] bytes) {
+		if(bytes == null)
+			return null;
+		try {
+			return codec.decode(bytes);
+		} catch (Exception e) {
+			logger.warn("cannot decode cache entry for key " + key, e);
+			return null;
+		}
+	}
+	
+	protected interface NodeCommand<R> {
+		R run(Jedis jedis);
+	}
+	
+	/**
+	 * Runs the command on a connection of the given node, the broken connection
+	 * of a failed node is not returned to the pool.
+	 */
+	protected <R> R run(JedisPool pool, NodeCommand<R> command) {
+		Jedis jedis = pool.getResource();
+		try {
+			R result = command.run(jedis);
+			pool.returnResource(jedis);
+			return result;
+		} catch (JedisConnectionException e) {
+			pool.returnBrokenResource(jedis);
+			throw e;
+		} catch (RuntimeException e) {
+			pool.returnResource(jedis);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Runs the command on the node owning the key.
+	 * 
+	 * @see #execute(JedisPool, boolean, NodeCommand)
+	 */
+	protected <R> R execute(byte[] key, boolean write, NodeCommand<R> command) {
+		return execute(ring.getNode(key), write, command);
+	}
+	
+	/**
+	 * Runs the command on the given node. Gives null when there is no node or it
+	 * cannot be reached, which then is skipped for the retry interval.
+	 */
+	protected <R> R execute(JedisPool pool, boolean write, NodeCommand<R> command) {
+		if(pool == null)
+			return null;
+		NodeState state = states.get(pool);
+		if(state == null)
+			return run(pool, command);
+		if(state.downUntil > System.currentTimeMillis()) {
+			if(write) {
+				state.dirty = true;
+				logger.warn("redis node " + state.name + " unavailable, write dropped");
+			}
+			return null;
+		}
+		try {
+			if(state.dirty) {
+				run(pool, new NodeCommand<String>() {
+					@Override
+					public String run(Jedis jedis) {
+						return jedis.flushDB();
+					}
+				});
+				state.dirty = false;
+				logger.warn("redis node " + state.name + " is back, flushed the entries it may hold stale");
+			}
+			R result = run(pool, command);
+			state.downUntil = 0;
+			return result;
+		} catch (JedisConnectionException e) {
+			state.dirty |= write;
+			state.downUntil = System.currentTimeMillis() + retryInterval;
+			logger.warn("redis node " + state.name + " unavailable, skipped for " + retryInterval + "ms" + (write ? ", write dropped" : ""), e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Groups keys by the node owning them, in key order within each node.
+	 */
+	protected Map<JedisPool, List<String>> splitByNode(Collection<String> keys) {
+		Ring r = ring;
+		Map<JedisPool, List<String>> map = new LinkedHashMap<JedisPool, List<String>>();
+		for(String key : keys) {
+			JedisPool pool = r.getNode(codec.encodeKey(key));
+			if(pool == null)
+				continue;
+			List<String> list = map.get(pool);
+			if(list == null) {
+				list = new ArrayList<String>();
+				map.put(pool, list);
+			}
+			list.add(key);
+		}
+		return map;
+	}
+	
+	/**
+	 * Runs the command once per node with that node's keys and returns the
+	 * results in node order, null for a node that cannot be reached.
+	 */
+	protected <R> List<R> executeByNode(Collection<String> keys, final NodeBatch<R> batch, final boolean write) {
+		Map<JedisPool, List<String>> byNode = splitByNode(keys);
+		List<R> results = new ArrayList<R>(byNode.size());
+		if(byNode.size() == 1 || executorService == null) {
+			for(final Entry<JedisPool, List<String>> entry : byNode.entrySet()) {
+				results.add(execute(entry.getKey(), write, batch.forKeys(entry.getValue())));
+			}
+			return results;
+		}
+		ScatterGather<R> sg = new ScatterGather<R>().setWaitForAll(true);
+		for(final Entry<JedisPool, List<String>> entry : byNode.entrySet()) {
+			sg.addTask(new Callable<R>() {
+				@Override
+				public R call() throws Exception {
+					return execute(entry.getKey(), write, batch.forKeys(entry.getValue()));
+				}
+			});
+		}
+		results.addAll(sg.execute(executorService).getResults());
+		return results;
+	}
+	
+	protected interface NodeBatch<R> {
+		NodeCommand<R> forKeys(List<String> keys);
+	}
+	
+	protected JedisPool getNode(String key) {
+		return ring.getNode(codec.encodeKey(key));
+	}
+	
+	protected JedisPool getLegacyNode() {
+		return ring.getFirstNode();
 	}
 	
-	protected void returnJedisToPool(BinaryJedis jedis) {
-		if(jedis != null){
-	        synchronized (jedisPoolList) {
-    			if(jedisPoolList.size() > 0) {
-    				jedisPoolList.get(0).returnResource((Jedis) jedis);
-    			}
-	        }
+	protected void deleteLegacyKeys(Collection<String> keys) {
+		if(legacyCodec != null && keys.size() > 0) {
+			final byte[][] legacyKeys = getArrayOfByteArrays(legacyCodec, keys);
+			execute(getLegacyNode(), true, new NodeCommand<Long>() {
+				@Override
+				public Long run(Jedis jedis) {
+					return jedis.del(legacyKeys);
+				}
+			});
 		}
 	}
 
@@ -93,21 +314,29 @@ public class RedisProxy extends CacheProxyBase implements CacheProxy{
     }
     
 	@Override
-    public Object get(String key, int expiration) {
+    public Object get(final String key, final int expiration) {
 	    logger.info("get start for key: " + key+" expiration: "+expiration);
 		Object value = null;
 		if(key != null){
-			BinaryJedis jedis = getJedisFromPool();
-			if(jedis != null) {
-				try {
-					byte[] keyByteArray = SerializationUtils.serialize(key);
-					value = SerializationUtils.deserialize(jedis.get(keyByteArray));
-					if (expiration > -1) {
+			final byte[] keyByteArray = codec.encodeKey(key);
+			value = execute(keyByteArray, false, new NodeCommand<Object>() {
+				@Override
+				public Object run(Jedis jedis) {
+					Object value = decode(key, jedis.get(keyByteArray));
+					if (value != null && expiration > -1) {
 						jedis.expire(keyByteArray, expiration);
 					}
-				} finally {
-					returnJedisToPool(jedis);
+					return value;
 				}
+			});
+			if(value == null && legacyCodec != null) {
+				final byte[] legacyKey = legacyCodec.encodeKey(key);
+				value = execute(getLegacyNode(), false, new NodeCommand<Object>() {
+					@Override
+					public Object run(Jedis jedis) {
+						return decode(key, jedis.get(legacyKey));
+					}
+				});
 			}
 		}
         logger.info("get end for key " + key + (value == null ? ", not found" : ", found") );
@@ -117,62 +346,90 @@ public class RedisProxy extends CacheProxyBase implements CacheProxy{
 	@Override
 	public Map<String, Object> getBulk(Collection<String> keys) {
 	    logger.info("getBulk start for keys " + keys.hashCode() + ". size: " + keys.size());
-		Map<String, Object> values = new HashMap<String, Object>();
+		final Map<String, Object> values = new HashMap<String, Object>();
 		if (keys.size() > 0) {
-			BinaryJedis jedis = getJedisFromPool();
-			if(jedis != null) {			
-				try {
-					byte[][] arrayMintKeysByteArray = getArrayOfByteArrays(keys);
-					List<byte[]> listValuesByteArray = jedis.mget(arrayMintKeysByteArray);
-					int i = 0;
-					for (String key : keys) {
-						if (listValuesByteArray.get(i) != null) {
-							values.put(key, SerializationUtils.deserialize(listValuesByteArray.get(i)));
+			List<Map<String, Object>> results = executeByNode(keys, new NodeBatch<Map<String, Object>>() {
+				@Override
+				public NodeCommand<Map<String, Object>> forKeys(final List<String> nodeKeys) {
+					return new NodeCommand<Map<String, Object>>() {
+						@Override
+						public Map<String, Object> run(Jedis jedis) {
+							return mget(jedis, codec, nodeKeys);
 						}
-						i++;
-					}
-				} finally {
-					returnJedisToPool(jedis);
+					};
 				}
+			}, false);
+			for(Map<String, Object> result : results) {
+				if(result != null)
+					values.putAll(result);
+			}
+			if(legacyCodec != null && values.size() < keys.size()) {
+				final List<String> missing = new ArrayList<String>();
+				for(String key : keys) {
+					if(!values.containsKey(key))
+						missing.add(key);
+				}
+				Map<String, Object> legacy = execute(getLegacyNode(), false, new NodeCommand<Map<String, Object>>() {
+					@Override
+					public Map<String, Object> run(Jedis jedis) {
+						return mget(jedis, legacyCodec, missing);
+					}
+				});
+				if(legacy != null)
+					values.putAll(legacy);
 			}
 		}
         logger.info("getBulk end for keys " + keys.hashCode() + ", cached result size: " + values.size());
 		return values;
 	}
+	
+	private Map<String, Object> mget(Jedis jedis, CacheCodec keyCodec, List<String> keys) {
+		Map<String, Object> values = new HashMap<String, Object>();
+		List<byte[]> listValuesByteArray = jedis.mget(getArrayOfByteArrays(keyCodec, keys));
+		for (int i=0; i<keys.size(); i++) {
+			Object value = decode(keys.get(i), listValuesByteArray.get(i));
+			if (value != null) {
+				values.put(keys.get(i), value);
+			}
+		}
+		return values;
+	}
 
 	@Override
-	public void set(String key, Object value, int expiration) {
+	public void set(String key, Object value, final int expiration) {
 	    logger.info("set start for key: " + key+" expiration: "+expiration);
-		BinaryJedis jedis = getJedisFromPool();
-		if(jedis != null) {
-			try {
-				byte[] mintKeyByteArray = SerializationUtils.serialize(key);
-				byte[] valueByteArray = SerializationUtils.serialize(value);
-				jedis.setex(mintKeyByteArray, expiration,valueByteArray);
-			} finally {
-				returnJedisToPool(jedis);
+		final byte[] mintKeyByteArray = codec.encodeKey(key);
+		final byte[] valueByteArray = codec.encode(value);
+		execute(mintKeyByteArray, true, new NodeCommand<String>() {
+			@Override
+			public String run(Jedis jedis) {
+				return jedis.setex(mintKeyByteArray, expiration, valueByteArray);
 			}
-		}
+		});
+		deleteLegacyKeys(Collections.singletonList(key));
 	    logger.info("set end for key " + key);
 	}
 
 	@Override
-	public void setBulk(Map<String, Object> entities, int expiration) {
+	public void setBulk(final Map<String, Object> entities, final int expiration) {
         logger.info("setBulk start " + entities.hashCode()+" expiration: "+expiration);
-		BinaryJedis jedis = getJedisFromPool();
-		if(jedis != null) {
-			try {
-				Transaction t = jedis.multi();
-				for (Map.Entry<String, Object> entity : entities.entrySet()) {
-					byte[] mintKeyByteArray = SerializationUtils.serialize(entity.getKey());
-					byte[] valueByteArray = SerializationUtils.serialize(entity.getValue());
-					t.setex(mintKeyByteArray, expiration,valueByteArray);
-				}
-				t.exec();
-			} finally {
-				returnJedisToPool(jedis);
+		executeByNode(entities.keySet(), new NodeBatch<Object>() {
+			@Override
+			public NodeCommand<Object> forKeys(final List<String> nodeKeys) {
+				return new NodeCommand<Object>() {
+					@Override
+					public Object run(Jedis jedis) {
+						Pipeline pipeline = jedis.pipelined();
+						for (String key : nodeKeys) {
+							pipeline.setex(codec.encodeKey(key), expiration, codec.encode(entities.get(key)));
+						}
+						pipeline.sync();
+						return null;
+					}
+				};
 			}
-		}
+		}, true);
+		deleteLegacyKeys(entities.keySet());
         logger.info("setBulk end " + entities.hashCode());
 	}
 
@@ -180,14 +437,14 @@ public class RedisProxy extends CacheProxyBase implements CacheProxy{
 	public void delete(String key) {
 	    logger.info("delete start for key: " + key);
 		if (key != null) {
-			BinaryJedis jedis = getJedisFromPool();
-			if(jedis != null) {
-				try {
-					jedis.del(SerializationUtils.serialize(key));
-				} finally {
-					returnJedisToPool(jedis);
+			final byte[] keyByteArray = codec.encodeKey(key);
+			execute(keyByteArray, true, new NodeCommand<Long>() {
+				@Override
+				public Long run(Jedis jedis) {
+					return jedis.del(keyByteArray);
 				}
-			}
+			});
+			deleteLegacyKeys(Collections.singletonList(key));
 		}
 	    logger.info("delete end for key: " + key);
 	}
@@ -195,16 +452,19 @@ public class RedisProxy extends CacheProxyBase implements CacheProxy{
 	@Override
 	public void deleteBulk(Collection<String> keys) {
         logger.info("deleteBulk start " + keys.hashCode()+" "+keys.size()+" keys");
-		BinaryJedis jedis = getJedisFromPool();
-		if(jedis != null) {
-			try {
-				Transaction t = jedis.multi();
-				for(byte[] arr :  getArrayOfByteArrays(keys))
-				    t.del(arr);
-				t.exec();
-			} finally {
-				returnJedisToPool(jedis);
-			}
+		if (keys.size() > 0) {
+			executeByNode(keys, new NodeBatch<Long>() {
+				@Override
+				public NodeCommand<Long> forKeys(final List<String> nodeKeys) {
+					return new NodeCommand<Long>() {
+						@Override
+						public Long run(Jedis jedis) {
+							return jedis.del(getArrayOfByteArrays(codec, nodeKeys));
+						}
+					};
+				}
+			}, true);
+			deleteLegacyKeys(keys);
 		}
 		logger.info("deleteBulk end " + keys.hashCode());
 	}
@@ -212,24 +472,7 @@ public class RedisProxy extends CacheProxyBase implements CacheProxy{
 	@Override
     public long incr(String key, long delta, int expiration) {
 	    logger.info("incr start for key: " + key+" delta: "+delta+" expiration: "+expiration);
-		long value = 0;
-		if(key != null){
-			BinaryJedis jedis = getJedisFromPool();
-			if(jedis != null) {
-				try {
-					byte[] keyByteArray = SerializationUtils.serialize(key);
-					Long theValue = jedis.incrBy(keyByteArray, delta);
-					if(theValue != null) {
-						value = theValue.longValue();
-						if (expiration > -1) {
-							jedis.expire(keyByteArray, expiration);
-						}
-					}
-				}finally {
-					returnJedisToPool(jedis);
-				}
-			}
-		}
+		long value = incrBy(key, delta, expiration);
 		logger.info("incr end for key: " + key);
 		return value;
 	}
@@ -237,40 +480,100 @@ public class RedisProxy extends CacheProxyBase implements CacheProxy{
 	@Override
     public long decr(String key, long delta, int expiration) {
 	    logger.info("decr start for key: " + key+" delta: "+delta+" expiration: "+expiration);
-		long value = 0;
-		if(key != null){
-			BinaryJedis jedis = getJedisFromPool();
-			if(jedis != null) {
-				try {
-					byte[] keyByteArray = SerializationUtils.serialize(key);
-					Long theValue = jedis.decrBy(keyByteArray, delta);
-					if(theValue != null) {
-						value = theValue.longValue();
-						if (expiration > -1) {
-							jedis.expire(keyByteArray, expiration);
-						}
-					}
-				}finally {
-					returnJedisToPool(jedis);
-				}
-			}
-		}
+		long value = incrBy(key, -delta, expiration);
 		logger.info("decr end for key: " + key);
 		return value;
 	}
+	
+	private long incrBy(String key, final long delta, final int expiration) {
+		if(key == null)
+			return 0;
+		final byte[] keyByteArray = codec.encodeKey(key);
+		Long value = execute(keyByteArray, true, new NodeCommand<Long>() {
+			@Override
+			public Long run(Jedis jedis) {
+				Pipeline pipeline = jedis.pipelined();
+				Response<Long> value = pipeline.incrBy(keyByteArray, delta);
+				if (expiration > -1) {
+					pipeline.expire(keyByteArray, expiration);
+				}
+				pipeline.sync();
+				return value.get();
+			}
+		});
+		return value == null ? 0 : value.longValue();
+	}
 
-	private static final byte[][] getArrayOfByteArrays(Collection<?> objs) {
+	private static final byte[][] getArrayOfByteArrays(CacheCodec codec, Collection<String> keys) {
 		byte[][] arrayByteArray = null;
-		if (objs != null) {
-			arrayByteArray = new byte[objs.size()][];
+		if (keys != null) {
+			arrayByteArray = new byte[keys.size()][];
 			int i = 0;
-			for (Object obj : objs) {
-				arrayByteArray[i++] = SerializationUtils.serialize(obj);
+			for (String key : keys) {
+				arrayByteArray[i++] = codec.encodeKey(key);
 			}
 		}
 		return arrayByteArray;
 	}
 	
+	private static class NodeState {
+		final String name;
+		volatile long downUntil;
+		/** writes were dropped since the node was last flushed */
+		volatile boolean dirty;
+		
+		NodeState(String name) {
+			this.name = name;
+		}
+	}
+	
+	/**
+	 * Ketama style ring, each node is placed at VIRTUAL_NODES points.
+	 */
+	private static class Ring {
+		private long[] points;
+		private JedisPool[] owners;
+		private JedisPool first;
+		
+		Ring(List<String> names, List<JedisPool> pools, JedisPool first) {
+			this.first = first;
+			int n = names.size() * VIRTUAL_NODES;
+			long[][] entries = new long[n][];
+			for(int i=0; i<names.size(); i++) {
+				for(int v=0; v<VIRTUAL_NODES; v++) {
+					entries[i * VIRTUAL_NODES + v] = new long[] {Hashing.MURMUR_HASH.hash(names.get(i) + "-" + v), i};
+				}
+			}
+			Arrays.sort(entries, new java.util.Comparator<long[]>() {
+				@Override
+				public int compare(long[] o1, long[] o2) {
+					return Long.compare(o1[0], o2[0]);
+				}
+			});
+			points = new long[n];
+			owners = new JedisPool[n];
+			for(int i=0; i<n; i++) {
+				points[i] = entries[i][0];
+				owners[i] = pools.get((int) entries[i][1]);
+			}
+		}
+		
+		JedisPool getFirstNode() {
+			return first;
+		}
+		
+		JedisPool getNode(byte[] key) {
+			if(points.length == 0)
+				return null;
+			int pos = Arrays.binarySearch(points, Hashing.MURMUR_HASH.hash(key));
+			if(pos < 0)
+				pos = -pos - 1;
+			if(pos == points.length)
+				pos = 0;
+			return owners[pos];
+		}
+	}
+	
 	public static void main(String[] args) {
         RedisProxy proxy = new RedisProxy();
         proxy.setServers("54.255.142.109:6379");
@@ -17,12 +17,7 @@
 
 package com.bcgdv.dbshard2.cache;
 
-import java.util.Map;
-
 import org.apache.log4j.Logger;
-import org.springframework.util.SerializationUtils;
-
-import redis.clients.jedis.BinaryJedis;
 
 public class RedisTwitterProxy extends RedisProxy {
 	private static final Logger logger = Logger.getLogger(RedisTwitterProxy.class);
@@ -31,23 +26,4 @@ public class RedisTwitterProxy extends RedisProxy {
     public CacheType getType() {
         return CacheType.redis_twemproxy;
     }
-    
-	@Override
-	public void setBulk(Map<String, Object> entities, int expiration) {
-        logger.info("setBulk start " + entities.hashCode()+" expiration: "+expiration);
-		BinaryJedis jedis = getJedisFromPool();
-        if(jedis != null) {
-			try {
-                for (Map.Entry<String, Object> entity : entities.entrySet()) {
-                	byte[] mintKeyByteArray = SerializationUtils.serialize(entity.getKey());
-                	byte[] valueByteArray = SerializationUtils.serialize(entity.getValue());
-                	jedis.setex(mintKeyByteArray, expiration,valueByteArray);
-                }
-			} finally {
-				returnJedisToPool(jedis);
-			}
-		}
-        logger.info("setBulk end " + entities.hashCode());
-	}
-
 }
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.bcgdv.dbshard2.dao.entity.MappedData;
+
+/**
+ * Non-blocking variants of the {@link ExtendedDao} read API. The request
+ * context of the calling thread is carried over to the thread doing the work.
+ */
+public interface AsyncExtendedDao {
+	<Z> CompletableFuture<Z> getBean(String id);
+	<T> CompletableFuture<List<T>> listBeans(Collection<String> ids);
+	<T> CompletableFuture<Map<String, T>> mapBeans(Collection<String> ids);
+	
+	<Z> CompletableFuture<List<Z>> indexBeanLookup(Class<Z> cls, String field, Object value);
+	<Z> CompletableFuture<List<Z>> indexBeanLookup(Class<Z> cls, Map<String, Object> keyValues);
+	<Z> CompletableFuture<List<Z>> indexBeanLookup(Class<Z> cls, String field, String id, int offset, int size);
+	
+	CompletableFuture<List<MappedData>> mappedLookup(Class pclass, Class sclass, String pid);
+	CompletableFuture<List<MappedData>> mappedLookup(Class pclass, Class sclass, String pid, int offset, int size);
+	CompletableFuture<List<MappedData>> mappedLookup(Class pclass, Class sclass, long beforeCreated, String beforeSid, int size);
+	CompletableFuture<List<String>> mappedIdLookup(Class pclass, Class sclass, String pid);
+}
@@ -43,6 +43,8 @@ public interface BaseDao extends Dao {
 	
 	List<IndexedData> indexLookup(final String sql, final Map<String, Object> values);
 	int indexCountLookup(final String sql, final Map<String, Object> values);
+	PartialResult<List<IndexedData>> indexLookup(final String sql, final Map<String, Object> values, QueryOptions options);
+	PartialResult<Integer> indexCountLookup(final String sql, final Map<String, Object> values, QueryOptions options);
 	List<IndexedData> indexLookup(int dataSourceId, final String sql, final Map<String, Object> values);
 	int indexCountLookup(int dataSourceId, final String sql, final Map<String, Object> values);
 	int deleteIndexData(ClassIndex ind, String id) ;
@@ -56,6 +58,7 @@ public interface BaseDao extends Dao {
 
 	<T extends ObjectData> List<T> objectLookup(final Class<T> cls);
 	<T extends ObjectData> List<T> objectLookup(final Class<T> cls, int offset, int size);
+	<T extends ObjectData> List<T> objectLookup(final Class<T> cls, long beforeCreated, String beforeId, int size);
 
 	boolean isType(String id, Class clss);
 	void dumpTable(OutputStream output, String tableName, String fields);
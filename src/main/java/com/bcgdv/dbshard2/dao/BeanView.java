@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.bcgdv.dbshard2.dao.entity.ObjectData;
+import com.bcgdv.dbshard2.dao.impl.BeanCodecs;
+
+/**
+ * A stored bean that is decoded on first use. Id and timestamps come from the
+ * row, single fields are read from the raw payload without building the bean.
+ */
+public class BeanView<T> {
+	private final ObjectData data;
+	private final Class<T> cls;
+	private final BeanCodecs codecs;
+	private volatile T bean;
+	
+	public BeanView(ObjectData data, Class<T> cls, BeanCodecs codecs) {
+		this.data = data;
+		this.cls = cls;
+		this.codecs = codecs;
+	}
+	
+	public String getId() {
+		return data.id;
+	}
+	
+	public long getCreated() {
+		return data.created;
+	}
+	
+	public long getUpdated() {
+		return data.updated;
+	}
+	
+	public int getVersion() {
+		return data.version;
+	}
+	
+	public Class<T> getType() {
+		return cls;
+	}
+	
+	public boolean isDecoded() {
+		return bean != null;
+	}
+	
+	/**
+	 * @return the bean, decoded on the first call
+	 */
+	public T get() {
+		T value = bean;
+		if(value == null) {
+			value = codecs.decode(data, cls);
+			bean = value;
+		}
+		return value;
+	}
+	
+	/**
+	 * @param path field name, or dotted path into nested objects
+	 * @return the value as json types (Map, List, String, Number, Boolean), or null if absent
+	 */
+	public Object get(String path) {
+		return codecs.project(data, Arrays.asList(path)).get(path);
+	}
+	
+	/**
+	 * @see ExtendedDao#listProjections(java.util.Collection, String...)
+	 */
+	public Map<String, Object> project(String... paths) {
+		return codecs.project(data, Arrays.asList(paths));
+	}
+}
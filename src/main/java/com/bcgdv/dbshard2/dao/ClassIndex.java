@@ -17,17 +17,28 @@
 
 package com.bcgdv.dbshard2.dao;
 
+import java.math.BigDecimal;
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
 public class ClassIndex {
 	public Index index;
 	public Class forClass;
 	private String tableName;
+	private List<String> insertColumns;
+	private String insertSql;
+	private String placementColumnType;
+	private boolean placementColumnTypeResolved;
 	
 	public ClassIndex() {
 	}
@@ -53,34 +64,162 @@ public class ClassIndex {
 		return tableName;
 	}
 	
-	public final String getIndexedLookupKey(Map<String, Object>values) {
-		StringBuilder sb = new StringBuilder();
-		sb.append(getTableName());
-		for(String s : index.value()) {
-			Object object = values.get(s);
-			if(object != null && object instanceof Collection) {
-				List list = new ArrayList((Collection) object);
-				Collections.sort(list, new Comparator<Object>() {
-					@Override
-					public int compare(Object o1, Object o2) {
-						if(o1==null && o2 != null)
-							return 1;
-						else if(o1!=null && o2 == null)
-							return -1;
-						else if(o1==null && o2 == null)
-							return 0;
-						else
-							return o1.toString().compareTo(o2.toString());
-					}
-				});
-				for(Object o : list) {
-					sb.append("|"+ o);
-				}
+	/**
+	 * @return the index columns followed by id and created, in the order of {@link #getInsertSql()}
+	 */
+	public List<String> getInsertColumns() {
+		if(insertColumns != null)
+			return insertColumns;
+		
+		List<String> columns = new ArrayList<String>();
+		for(String indexColumnName : index.value()) {
+			columns.add(new ColumnPath(indexColumnName).getColumnName());
+		}
+		if(!columns.contains("id"))
+			columns.add("id");
+		if(!columns.contains("created"))
+			columns.add("created");
+		insertColumns = Collections.unmodifiableList(columns);
+		return insertColumns;
+	}
+	
+	public boolean isHashed() {
+		return index.placement() == IndexPlacement.HASHED;
+	}
+	
+	/**
+	 * @return the column whose value places a row of a hashed index
+	 */
+	public String getPlacementColumn() {
+		return getInsertColumns().get(0);
+	}
+	
+	/**
+	 * @return the sql type of the placement column, null when it cannot be told from the class
+	 */
+	public String getPlacementColumnType() {
+		if(placementColumnTypeResolved)
+			return placementColumnType;
+		try {
+			placementColumnType = DbShardUtils.getColumnType(forClass, index.value()[0]);
+		} catch (RuntimeException e) {
+			placementColumnType = null;
+		}
+		placementColumnTypeResolved = true;
+		return placementColumnType;
+	}
+	
+	/**
+	 * @return the hash of an index value as the placement column compares it, so
+	 * values the column finds equal, e.g. "Abc" and "abc" or 5 and 5.0, are placed
+	 * together. Values that cannot be normalized are hashed by their string form.
+	 */
+	public int placementHash(Object value) {
+		String normalized = normalizeValue(value, getPlacementColumnType());
+		return Hashing.murmur3_32().hashString(normalized != null ? normalized : String.valueOf(value), Charsets.UTF_8).asInt();
+	}
+	
+	/**
+	 * @return true when the placement of the value is known, otherwise a lookup
+	 * on it has to query every data source
+	 */
+	public boolean isPlaceable(Object value) {
+		return normalizeValue(value, getPlacementColumnType()) != null;
+	}
+	
+	/**
+	 * @return the value as a column of the type compares it: numbers by value,
+	 * strings trimmed and without case or accents. Null when it cannot be told.
+	 */
+	public static String normalizeValue(Object value, String columnType) {
+		if(value == null || columnType == null)
+			return null;
+		if(isNumeric(columnType)) {
+			if(value instanceof Boolean)
+				return ((Boolean) value) ? "1" : "0";
+			if(value instanceof Date)
+				return String.valueOf(((Date) value).getTime());
+			if(value instanceof Calendar)
+				return String.valueOf(((Calendar) value).getTimeInMillis());
+			try {
+				BigDecimal number = new BigDecimal(value.toString().trim());
+				if(number.signum() == 0)
+					return "0";
+				number = number.stripTrailingZeros();
+				return number.precision() - number.scale() > 40 ? null : number.toPlainString();
+			} catch (NumberFormatException e) {
+				return null;
 			}
-			else {
-				sb.append("|"+object);
+		}
+		if(!(value instanceof CharSequence || value instanceof Enum || value instanceof Character))
+			return null;
+		String s = Normalizer.normalize(value.toString(), Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+		return s.toLowerCase(Locale.ROOT).trim();
+	}
+	
+	private static boolean isNumeric(String columnType) {
+		String type = columnType.toLowerCase(Locale.ROOT);
+		return type.startsWith("int") || type.startsWith("bigint") || type.startsWith("smallint") || type.startsWith("tinyint") || type.startsWith("decimal")
+				|| type.startsWith("float") || type.startsWith("double") || type.startsWith("real");
+	}
+	
+	public String getInsertSql() {
+		if(insertSql != null)
+			return insertSql;
+		
+		StringBuilder sql = new StringBuilder("insert into ").append(getTableName()).append(" (");
+		StringBuilder valueNames = new StringBuilder(" values (");
+		boolean first = true;
+		for(String column : getInsertColumns()) {
+			if(first) {
+				first = false;
+			}else {
+				sql.append(",");
+				valueNames.append(",");
 			}
+			sql.append("`").append(column).append("`");
+			valueNames.append("?");
+		}
+		insertSql = sql.append(")").append(valueNames).append(")").toString();
+		return insertSql;
+	}
+	
+	/**
+	 * @return true when the lookup binds every column of the index to a single value
+	 */
+	public boolean isPointLookup(Map<String, ?> values) {
+		String[] paths = index.value();
+		if(values.size() != paths.length)
+			return false;
+		for(String path : paths) {
+			Object value = values.get(path);
+			if(value == null || value instanceof Collection)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Cache key of a point lookup, or of an index row, within a version of the
+	 * index's key family. Values are looked up by column path and then by column
+	 * name, so lookup values and index rows give the same key.
+	 */
+	public final String getIndexedLookupKey(long version, Map<String, ?> values) {
+		StringBuilder sb = new StringBuilder(getTableName()).append('|').append(version);
+		String[] paths = index.value();
+		List<String> columns = getInsertColumns();
+		for(int i=0; i<paths.length; i++) {
+			Object value = values.containsKey(paths[i]) ? values.get(paths[i]) : values.get(columns.get(i));
+			String s = String.valueOf(value);
+			sb.append('|').append(s.length()).append(':').append(s);
 		}
 		return sb.toString();
 	}
+	
+	/**
+	 * @return the cache key holding the current version of the index's key family
+	 */
+	public String getVersionKey() {
+		return getTableName() + "|ver";
+	}
 }
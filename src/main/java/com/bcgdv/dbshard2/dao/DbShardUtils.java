@@ -35,18 +35,44 @@ import com.bcgdv.dbshard2.util.reflection.AnnotatedFieldCallback;
 import com.bcgdv.dbshard2.util.reflection.ReflectionUtil;
 
 public class DbShardUtils {
+	public static boolean isBinaryStorage(Class<?> beanCls) {
+		ShardedTable tableDefinition = beanCls == null ? null : (ShardedTable)beanCls.getAnnotation(ShardedTable.class);
+		return tableDefinition != null && StorageFormat.BINARY.equals(tableDefinition.storage());
+	}
+	
+	/**
+	 * @return true if the `json` column of the class is a blob, because it stores binary json or compressed payloads
+	 */
+	public static boolean isBlobStorage(Class<?> beanCls) {
+		ShardedTable tableDefinition = beanCls == null ? null : (ShardedTable)beanCls.getAnnotation(ShardedTable.class);
+		return tableDefinition != null && (StorageFormat.BINARY.equals(tableDefinition.storage()) || !PayloadCompression.NONE.equals(tableDefinition.compression()));
+	}
+	
+	/**
+	 * Statement that turns the text `json` column of a table created before its
+	 * class got binary storage or compression into the blob the class needs.
+	 * MySQL keeps the utf-8 json of the existing rows byte for byte and those rows
+	 * are still read, other databases need the data copied by hand.
+	 */
+	public static String getPayloadMigrationSql(Class<?> beanCls, DbDialet dbdialet) {
+		if(!DbDialet.Mysql.equals(dbdialet))
+			throw new RuntimeException("unsupported db dialet");
+		return "alter table `" + beanCls.getSimpleName() + "` modify `json` mediumblob";
+	}
+	
 	public static List<String> getSqls(final Class<?> beanCls, DbDialet dbdialet) {
 		List<String> sqls = new ArrayList<String>();
 		ShardedTable tableDefinition = (ShardedTable)beanCls.getAnnotation(ShardedTable.class);
 		if(tableDefinition == null)
 			return sqls;
 		
+		boolean binary = isBlobStorage(beanCls);
 		final StringBuilder sbb = new StringBuilder( );
 		if(DbDialet.Mysql.equals(dbdialet)) {
-		    sbb.append("create table if not exists `" + beanCls.getSimpleName() + "` (`id` varchar(64) primary key, `created` bigint, `updated` bigint, `version` integer, `json` text CHARACTER SET utf8mb4 COLLATE utf8mb4_bin");
+		    sbb.append("create table if not exists `" + beanCls.getSimpleName() + "` (`id` varchar(64) primary key, `created` bigint, `updated` bigint, `version` integer, `json` " + (binary ? "mediumblob" : "text CHARACTER SET utf8mb4 COLLATE utf8mb4_bin"));
 		}
 		else if(DbDialet.H2.equals(dbdialet)) {
-            sbb.append("create table if not exists `" + beanCls.getSimpleName() + "` (`id` varchar(64) primary key, `created` bigint, `updated` bigint, `version` integer, `json` text");
+            sbb.append("create table if not exists `" + beanCls.getSimpleName() + "` (`id` varchar(64) primary key, `created` bigint, `updated` bigint, `version` integer, `json` " + (binary ? "blob" : "text"));
 		}
 		else {
 		    throw new RuntimeException("unsupported db dialet");
@@ -128,7 +154,10 @@ public class DbShardUtils {
 		return sqls;
 	}
 
-	private static String getColumnType(Class<?> beanCls, String columnName) {
+	/**
+	 * @return the sql type of the column of a field or dotted path, null if the field type has none
+	 */
+	public static String getColumnType(Class<?> beanCls, String columnName) {
 		try {
 			int pos = columnName.indexOf(".");
 			if(pos != -1) {
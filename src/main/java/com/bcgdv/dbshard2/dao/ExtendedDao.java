@@ -39,9 +39,20 @@ public interface ExtendedDao extends BaseDao {
 	int delete(String id);
 	<T>List<T> listBeans(Collection<String> ids);
 	<T>Map<String, T> mapBeans(Collection<String> ids);
+	/**
+	 * Same order as listBeans, but beans are only decoded when asked for.
+	 */
+	<T>List<BeanView<T>> listBeanViews(Collection<String> ids);
+	/**
+	 * Reads only the given fields (or dotted paths) from the stored payloads,
+	 * without building the beans. Each map holds the id and one entry per path.
+	 */
+	List<Map<String, Object>> listProjections(Collection<String> ids, String... paths);
 	void removeBeans(List<? extends ObjectData> list);
 	<T> List<T> query(final String sql, final RowMapper<T> mapper);
 	<T> List<T> queryBeans(final String sql, Class<T> cls);
+	<T> PartialResult<List<T>> query(final String sql, final RowMapper<T> mapper, QueryOptions options);
+	<T> PartialResult<List<T>> queryBeans(final String sql, Class<T> cls, QueryOptions options);
 
 	List<ObjectData> indexLookup(Class cls, String field, Object value);
 	List<ObjectData> indexLookup(Class cls, Map<String, Object> keyValues);
@@ -61,6 +72,13 @@ public interface ExtendedDao extends BaseDao {
 	<Z> List<Z> indexBeanLookup(String sql, Map<String, Object> keyValues, int dataSourceId);
 	<Z> List<Z> indexBeanLookup(String sql, Map<String, Object> keyValues);
 	<Z> List<Z> indexBeanLookup(String sql);
+	/**
+	 * Covering reads: the projections are built from the index rows alone,
+	 * without fetching the objects. Only the index columns, id and created are set.
+	 */
+	<P> List<P> indexProjectionLookup(Class cls, String field, Object value, Class<P> projection);
+	<P> List<P> indexProjectionLookup(Class cls, Map<String, Object> keyValues, Class<P> projection);
+	<P> List<P> indexProjectionLookup(Class cls, Map<String, Object> keyValues, int offset, int size, int dataSourceId, Class<P> projection);
 	
 	String generateIdForBean(ObjectData bean);
 	String generateSameShardId(String id, Class forClass);
@@ -71,6 +89,7 @@ public interface ExtendedDao extends BaseDao {
 	List<String> mappedIdLookup(Class pclass, Class sclass, String pid);
 	List<MappedData> mappedLookup(Class pclass, Class sclass, String pid, int offset, int size);
 	List<String> mappedIdLookup(Class pclass, Class sclass, String pid, int offset, int size);
+	List<MappedData> mappedLookup(Class pclass, Class sclass, long beforeCreated, String beforeSid, int size);
 	int mappedCountLookup(Class pclass, Class sclass, String pid);
 
 	<T extends ObjectData> List<T> beanLookup(final Class<T> cls, int offset, int size);
@@ -19,27 +19,23 @@ package com.bcgdv.dbshard2.dao;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
+
+import javax.sql.DataSource;
 
 import org.apache.commons.dbcp2.BasicDataSource;
 import org.apache.log4j.Logger;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 
-import com.bcgdv.dbshard2.util.DateUtil;
-
+/**
+ * Pooled data source for one data source id. It keeps no per request state,
+ * connections bound to a request are owned by the {@link RequestContext}.
+ */
 public class ExtendedDataSource extends BasicDataSource {
 	private static Logger logger = Logger.getLogger(ExtendedDataSource.class);
 	
-	private ThreadLocal<RequestContext> threadContext = new ThreadLocal<RequestContext>();
-	private Map<RequestContext, Connection> connections = new HashMap<RequestContext, Connection>();
-
 	private int dataSourceId;
 	private boolean autoCommit;
 
-	public void setThreadContext(RequestContext tc) {
-		threadContext.set(tc);
-	}
-	
 	public int getDataSourceId() {
 		return dataSourceId;
 	}
@@ -48,94 +44,41 @@ public class ExtendedDataSource extends BasicDataSource {
 		this.dataSourceId = dataSourceId;
 	}
 	
+	/**
+	 * Connection outside of any request, always in auto commit mode.
+	 */
 	@Override
 	public Connection getConnection() throws SQLException {
-	    long t0 = DateUtil.currentTimeMillis();
-	    long t1 = 0;
-        RequestContext context = getThreadContext().get();
-		    t1 = DateUtil.currentTimeMillis() - t0;
-		    if(t1 > 1000) {
-		        System.out.println(context + " getConnection sync block costs " + t1);
-		    }
-			if(context != null) {
-		        synchronized (context) {
-		            Connection conn = null;
-		            synchronized (connections) {
-		                conn = connections.get(context);
-		            }
-        			if(conn == null) {
-        				conn = super.getConnection();
-        	            t1 = DateUtil.currentTimeMillis() - t0;
-        	            if(t1 > 1000) {
-        	                System.out.println(context + " super.getConnection costs " + t1);
-        	            }
-        				conn.setAutoCommit(isAutoCommit());
-        		        synchronized (connections) {
-        		            connections.put(getThreadContext().get(), conn);
-        		        }
-        				getThreadContext().get().addDataSource(this);
-        				logger.debug(">>>>>>>>>>>dataSourceId " + dataSourceId + " request " + getThreadContext().get() + " connection " + conn.hashCode() + " create.");
-        			}
-        			else {
-        				logger.debug(">>>>>>>>>>>dataSourceId " + dataSourceId + " request " + getThreadContext().get() + " connection " + conn.hashCode() + " reuse.");
-        			}
-                    t1 = DateUtil.currentTimeMillis() - t0;
-                    if(t1 > 1000) {
-                        System.out.println(context + " getConnection end costs " + t1);
-                    }
-                    return conn;
-		        }
-			}
-			else {
-                logger.debug(">>>>>>>>>>> No RequestContext found. set auto commit to true");
-			    Connection conn = super.getConnection();
-                conn.setAutoCommit(true);
-                t1 = DateUtil.currentTimeMillis() - t0;
-                if(t1 > 1000) {
-                    System.out.println(context + " getConnection no requestcontext costs " + t1);
-                }
-                return conn;
-			}
+		logger.debug(">>>>>>>>>>> No RequestContext found. set auto commit to true");
+		Connection conn = super.getConnection();
+		conn.setAutoCommit(true);
+		return conn;
 	}
 	
-	public void closeConnection(RequestContext rc) {
-		Connection connection = null;
-		synchronized (connections) {
-			connection = connections.get(rc);
-			connections.remove(rc);
-		}
-		logger.debug(">>>>>>>>>>>dataSourceId " + dataSourceId + " request " + rc + " connection " + connection.hashCode() + " close.");
-		try {
-			connection.close();
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
+	/**
+	 * Connection bound to the given request, reused until the request is closed.
+	 * A null request gets an auto commit connection.
+	 */
+	public Connection getConnection(RequestContext rc) throws SQLException {
+		if(rc == null)
+			return getConnection();
+		return rc.getConnection(this);
 	}
 	
-	public void commitConnection(RequestContext rc) {
-		Connection connection = null;
-		synchronized (connections) {
-			connection = connections.get(rc);
-		}
-		logger.debug(">>>>>>>>>>>dataSourceId " + dataSourceId + " request " + rc + " connection " + connection.hashCode() + " commit.");
-		try {
-			connection.commit();
-		} catch (SQLException e) {
-			logger.warn("cannot commit", e);
-		}
+	/**
+	 * Data source for jdbc templates. Within a request it wraps the request's
+	 * connection and never closes it, otherwise it is the pool itself.
+	 */
+	public DataSource getRequestDataSource(RequestContext rc) throws SQLException {
+		if(rc == null)
+			return this;
+		return new SingleConnectionDataSource(rc.getConnection(this), true);
 	}
 	
-	public void rollbackConnection(RequestContext rc) {
-		Connection connection = null;
-		synchronized (connections) {
-			connection = connections.get(rc);
-		}
-		System.out.println(">>>>>>>>>>>dataSourceId " + dataSourceId + " request " + rc + " connection " + connection.hashCode() + " commit.");
-		try {
-			connection.rollback();;
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
+	Connection openRequestConnection() throws SQLException {
+		Connection conn = super.getConnection();
+		conn.setAutoCommit(isAutoCommit());
+		return conn;
 	}
 
 	public boolean isAutoCommit() {
@@ -145,12 +88,4 @@ public class ExtendedDataSource extends BasicDataSource {
 	public void setAutoCommit(boolean autoCommit) {
 		this.autoCommit = autoCommit;
 	}
-
-    public ThreadLocal<RequestContext> getThreadContext() {
-        return threadContext;
-    }
-
-    public void setThreadContext(ThreadLocal<RequestContext> threadContext) {
-        this.threadContext = threadContext;
-    }
 }
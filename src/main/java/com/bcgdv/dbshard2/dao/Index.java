@@ -29,4 +29,5 @@ import java.lang.annotation.Target;
 public @interface Index {
 	String[] value();
 	boolean unique() default false;
+	IndexPlacement placement() default IndexPlacement.COLOCATED;
 }
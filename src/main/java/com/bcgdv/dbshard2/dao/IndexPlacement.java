@@ -0,0 +1,33 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bcgdv.dbshard2.dao;
+
+/**
+ * Which data source holds the rows of an index table.
+ */
+public enum IndexPlacement {
+	/** with the object they point to, lookups without a data source id query every data source */
+	COLOCATED,
+	/**
+	 * on the data source chosen by hashing the value of the first index column,
+	 * equality lookups on that column query a single data source. Rows are placed
+	 * by the number of shards, which therefore must not change once rows exist.
+	 */
+	HASHED
+}
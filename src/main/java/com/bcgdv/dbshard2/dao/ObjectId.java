@@ -20,6 +20,8 @@ package com.bcgdv.dbshard2.dao;
 import com.bcgdv.dbshard2.util.UuidUtil;
 
 public class ObjectId {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
 	private String type;
 	private int shard;
 	private String uuid;
@@ -48,8 +50,10 @@ public class ObjectId {
 	public ObjectId(String strid) {
 		try {
             setType(strid.substring(0, 3));
-			setShard(Short.parseShort(strid.substring(3,6), 16));
+			setShard(getShard(strid));
 			setUuid(strid.substring(6,42));
+		} catch (InvalidIdException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new InvalidIdException(strid);
 		}
@@ -57,11 +61,29 @@ public class ObjectId {
 	
 	@Override
 	public String toString() {
-		return String.format("%s%03x%s", type.toString(), shard, uuid);
+		if(shard < 0 || shard > 0xfff)
+			return String.format("%s%03x%s", type.toString(), shard, uuid);
+		int len = type.length();
+		char[] buf = new char[len + 3 + uuid.length()];
+		format(buf, type, shard);
+		uuid.getChars(0, uuid.length(), buf, len + 3);
+		return new String(buf);
 	}
 	
 	public String getTypeAndShard() {
-		return String.format("%s%03x", type.toString(), shard);
+		if(shard < 0 || shard > 0xfff)
+			return String.format("%s%03x", type.toString(), shard);
+		char[] buf = new char[type.length() + 3];
+		format(buf, type, shard);
+		return new String(buf);
+	}
+	
+	private static void format(char[] buf, String type, int shard) {
+		int len = type.length();
+		type.getChars(0, len, buf, 0);
+		buf[len] = HEX[(shard >> 8) & 0xf];
+		buf[len + 1] = HEX[(shard >> 4) & 0xf];
+		buf[len + 2] = HEX[shard & 0xf];
 	}
 	
 	public String getType() {
@@ -81,7 +103,37 @@ public class ObjectId {
 	}
 	
 	public static short getShard(String id) {
-		return Short.parseShort(id.substring(3, 6), 16);
+		return getShard((CharSequence) id);
+	}
+	
+	/**
+	 * Reads the shard straight from the id without parsing the rest of it.
+	 */
+	public static short getShard(CharSequence id) {
+		if(id == null || id.length() < 6)
+			throw new InvalidIdException(String.valueOf(id));
+		int shard = (hex(id, 3) << 8) | (hex(id, 4) << 4) | hex(id, 5);
+		return (short) shard;
+	}
+	
+	/**
+	 * @return true if the id starts with the given type
+	 */
+	public static boolean isType(CharSequence id, String type) {
+		if(id == null || id.length() < 3 || type.length() != 3)
+			return false;
+		return id.charAt(0) == type.charAt(0) && id.charAt(1) == type.charAt(1) && id.charAt(2) == type.charAt(2);
+	}
+	
+	private static int hex(CharSequence id, int pos) {
+		char c = id.charAt(pos);
+		if(c >= '0' && c <= '9')
+			return c - '0';
+		if(c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if(c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		throw new InvalidIdException(id.toString());
 	}
 
 	public void setShard(int shard) {
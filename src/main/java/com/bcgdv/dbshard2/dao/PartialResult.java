@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao;
+
+import java.util.List;
+
+/**
+ * Result of a fan-out query together with the data sources that answered.
+ */
+public class PartialResult<T> {
+	private T result;
+	private List<Integer> answered;
+	private List<Integer> missing;
+	
+	public PartialResult(T result, List<Integer> answered, List<Integer> missing) {
+		this.result = result;
+		this.answered = answered;
+		this.missing = missing;
+	}
+
+	public T getResult() {
+		return result;
+	}
+
+	/** data source ids included in the result */
+	public List<Integer> getAnswered() {
+		return answered;
+	}
+
+	/** data source ids that failed or timed out */
+	public List<Integer> getMissing() {
+		return missing;
+	}
+	
+	public boolean isComplete() {
+		return missing.isEmpty();
+	}
+}
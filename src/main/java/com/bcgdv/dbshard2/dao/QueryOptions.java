@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao;
+
+/**
+ * Options for queries fanned out to all data sources. Within a request, a
+ * query with a timeout or partial results runs on pooled connections and does
+ * not see the request's uncommitted writes.
+ */
+public class QueryOptions {
+	/** milliseconds a data source may take to answer, 0 waits forever */
+	public long shardTimeout;
+	/** return what answered in time instead of failing */
+	public boolean allowPartial;
+	
+	public QueryOptions() {
+	}
+	
+	public QueryOptions(long shardTimeout, boolean allowPartial) {
+		this.shardTimeout = shardTimeout;
+		this.allowPartial = allowPartial;
+	}
+}
@@ -17,41 +17,204 @@
 
 package com.bcgdv.dbshard2.dao;
 
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.log4j.Logger;
+
+/**
+ * Owns the connections of one request. Connections are kept in a small array
+ * indexed by data source id, so a lookup is an array read. Scatter-gather workers
+ * receive the context explicitly and share these connections.
+ * 
+ * With the identity map enabled it also remembers the beans read during the
+ * request, so reading the same id again returns the same instance.
+ */
 public class RequestContext {
-	private List<ExtendedDataSource> dataSourcesUsedByRequest = new ArrayList<ExtendedDataSource>();
+	private static Logger logger = Logger.getLogger(RequestContext.class);
+	
+	private volatile Binding[] bindings = new Binding[0];
+	private List<Binding> bindingsUsedByRequest = new ArrayList<Binding>();
+	private volatile Map<String, Object> beans;
+	private List<Completion> completions = new ArrayList<Completion>();
+	private int calls;
+	
+	/**
+	 * Work to finish once the writes of the request are committed or dropped.
+	 */
+	public interface Completion {
+		void completed(boolean committed);
+	}
+	
+	public boolean isIdentityMap() {
+		return beans != null;
+	}
+	
+	/**
+	 * Memoizes beans by id for the rest of the request. Beans are shared, so a
+	 * change made to a bean is seen by every later read until it is written.
+	 */
+	public void setIdentityMap(boolean identityMap) {
+		this.beans = identityMap ? new ConcurrentHashMap<String, Object>() : null;
+	}
 	
-	public void addDataSource(ExtendedDataSource dataSource) {
-		synchronized (dataSourcesUsedByRequest) {
-			dataSourcesUsedByRequest.add(dataSource);
+	public Object getBean(String id) {
+		Map<String, Object> map = beans;
+		return map == null || id == null ? null : map.get(id);
+	}
+	
+	public void putBean(String id, Object bean) {
+		Map<String, Object> map = beans;
+		if(map != null && id != null && bean != null)
+			map.put(id, bean);
+	}
+	
+	public void evictBean(String id) {
+		Map<String, Object> map = beans;
+		if(map != null && id != null)
+			map.remove(id);
+	}
+	
+	/**
+	 * Registers a call running on another thread with the request's connections,
+	 * commit, rollback and close wait for it to end.
+	 */
+	public synchronized void beginCall() {
+		calls++;
+	}
+	
+	public synchronized void endCall() {
+		calls--;
+		notifyAll();
+	}
+	
+	private void awaitCalls() {
+		boolean interrupted = false;
+		while(calls > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
 		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
 	}
 	
-	public void commit() throws SQLException {
-		synchronized (dataSourcesUsedByRequest) {
-			for(ExtendedDataSource ds : dataSourcesUsedByRequest) {
-				ds.commitConnection(this);
+	/**
+	 * Runs the completion at the next commit, rollback or close of the request.
+	 */
+	public synchronized void addCompletion(Completion completion) {
+		completions.add(completion);
+	}
+	
+	private void complete(boolean committed) {
+		List<Completion> list = completions;
+		completions = new ArrayList<Completion>();
+		for(Completion completion : list) {
+			try {
+				completion.completed(committed);
+			} catch (RuntimeException e) {
+				logger.warn("completion failed", e);
 			}
 		}
 	}
 	
-	public void rollback() throws SQLException {
-		synchronized (dataSourcesUsedByRequest) {
-			for(ExtendedDataSource ds : dataSourcesUsedByRequest) {
-				ds.rollbackConnection(this);
+	Connection getConnection(ExtendedDataSource dataSource) throws SQLException {
+		Binding[] array = bindings;
+		int id = dataSource.getDataSourceId();
+		if(id < array.length) {
+			Binding binding = array[id];
+			if(binding != null && binding.dataSource == dataSource)
+				return binding.connection;
+		}
+		return bind(dataSource);
+	}
+	
+	private synchronized Connection bind(ExtendedDataSource dataSource) throws SQLException {
+		int id = dataSource.getDataSourceId();
+		for(Binding binding : bindingsUsedByRequest) {
+			if(binding.dataSource == dataSource)
+				return binding.connection;
+		}
+		
+		Binding binding = new Binding(dataSource, dataSource.openRequestConnection());
+		bindingsUsedByRequest.add(binding);
+		logger.debug(">>>>>>>>>>>dataSourceId " + id + " request " + this + " connection " + binding.connection.hashCode() + " create.");
+		
+		// the slot may be taken by a data source of another ShardedDataSource with
+		// the same id, that one is then only found through bindingsUsedByRequest
+		Binding[] array = bindings;
+		if(id >= array.length)
+			array = Arrays.copyOf(array, id + 1);
+		else if(array[id] != null)
+			return binding.connection;
+		else
+			array = array.clone();
+		array[id] = binding;
+		bindings = array;
+		return binding.connection;
+	}
+	
+	public synchronized void commit() throws SQLException {
+		awaitCalls();
+		for(Binding binding : bindingsUsedByRequest) {
+			logger.debug(">>>>>>>>>>>dataSourceId " + binding.dataSource.getDataSourceId() + " request " + this + " connection " + binding.connection.hashCode() + " commit.");
+			try {
+				binding.connection.commit();
+			} catch (SQLException e) {
+				logger.warn("cannot commit", e);
+			}
+		}
+		complete(true);
+	}
+	
+	public synchronized void rollback() throws SQLException {
+		awaitCalls();
+		for(Binding binding : bindingsUsedByRequest) {
+			logger.debug(">>>>>>>>>>>dataSourceId " + binding.dataSource.getDataSourceId() + " request " + this + " connection " + binding.connection.hashCode() + " rollback.");
+			try {
+				binding.connection.rollback();
+			} catch (SQLException e) {
+				e.printStackTrace();
 			}
 		}
+		complete(false);
+		Map<String, Object> map = beans;
+		if(map != null)
+			map.clear();
 	}
 	
-	public void close() throws Exception {
-		synchronized (dataSourcesUsedByRequest) {
-			for(ExtendedDataSource ds : dataSourcesUsedByRequest) {
-				ds.closeConnection(this);
+	public synchronized void close() throws Exception {
+		awaitCalls();
+		for(Binding binding : bindingsUsedByRequest) {
+			logger.debug(">>>>>>>>>>>dataSourceId " + binding.dataSource.getDataSourceId() + " request " + this + " connection " + binding.connection.hashCode() + " close.");
+			try {
+				binding.connection.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
 			}
-			dataSourcesUsedByRequest.clear();
+		}
+		complete(false);
+		bindingsUsedByRequest.clear();
+		bindings = new Binding[0];
+		Map<String, Object> map = beans;
+		if(map != null)
+			map.clear();
+	}
+	
+	private static class Binding {
+		final ExtendedDataSource dataSource;
+		final Connection connection;
+		
+		Binding(ExtendedDataSource dataSource, Connection connection) {
+			this.dataSource = dataSource;
+			this.connection = connection;
 		}
 	}
 }
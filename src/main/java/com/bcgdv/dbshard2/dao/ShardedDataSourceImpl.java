@@ -18,6 +18,7 @@
 package com.bcgdv.dbshard2.dao;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -43,7 +44,7 @@ public class ShardedDataSourceImpl implements ShardedDataSource {
 	private String validationQuery;
 	private boolean testOnBorrow;
 	
-	private Map<Integer, ExtendedDataSource> dataSources;
+	private volatile ExtendedDataSource[] dataSources = new ExtendedDataSource[0];
 	/**
 	 * User-defined mapping of shard to dataSource,precedence over shardsPerDataSource.
 	 */
@@ -55,7 +56,6 @@ public class ShardedDataSourceImpl implements ShardedDataSource {
 
 	public ShardedDataSourceImpl() {
 		setShardsPerDataSource(1);
-		dataSources = new HashMap<Integer, ExtendedDataSource>();
 	}
 
 	@Override
@@ -85,9 +85,7 @@ public class ShardedDataSourceImpl implements ShardedDataSource {
 	public Map<Integer, List<String>> splitByDataSource(Collection<String> ids) {
 		Map<Integer, List<String>> map = new HashMap<Integer, List<String>>();
 		for (String s : ids) {
-			ObjectId oi = new ObjectId(s);
-			int shard = oi.getShard();
-			int datasource =getDataSourceIdByShardId(shard);;
+			int datasource = getDataSourceIdByShardId(ObjectId.getShard(s));
 			List<String> list = map.get(datasource);
 			if(list == null) {
 				list = new ArrayList<String>();
@@ -108,56 +106,58 @@ public class ShardedDataSourceImpl implements ShardedDataSource {
 	}
 
 	@Override
-	public synchronized ExtendedDataSource getDataSourceByDataSourceId(RequestContext tc, int dataSourceId) {
-        ExtendedDataSource ds = null;
-        boolean newDataSource = false;
-        
-        synchronized (dataSources) {
-            ds = dataSources.get(dataSourceId);
-            if(ds == null) {
-                ds = new ExtendedDataSource();
-                dataSources.put(dataSourceId, ds);
-                newDataSource = true;
-            }
-        }
-        
-        synchronized (ds) {
-            if(newDataSource) {
-                ds.setDriverClassName(dbClassName);
-                ds.setUsername(userName);
-                ds.setPassword(password);
-                String dburl = getUrlForDataSource(dataSourceId);
-                if(dbBaseName != null)
-                    dburl = dburl.replaceAll("DBBASENAME", dbBaseName);
-                ds.setUrl(dburl);
-                logger.info(">>>>>>>> create data source for " + dburl);
-                
-                ds.setLogAbandoned(true);
-                ds.setRemoveAbandonedOnBorrow(true);
-                ds.setRemoveAbandonedOnMaintenance(true);
-                ds.setRemoveAbandonedTimeout(300);
-                ds.setMinEvictableIdleTimeMillis(300000);
-                ds.setTimeBetweenEvictionRunsMillis(30000);
-                ds.setMaxTotal(getMaxTotal());
-                ds.setMaxIdle(getMaxIdle());
-                ds.setMaxWaitMillis(2000);
-                ds.setMaxOpenPreparedStatements(500);
-                ds.setPoolPreparedStatements(false);
-                ds.setAutoCommit(isAutoCommit());
-                ds.setDataSourceId(dataSourceId);
-                ds.setValidationQuery(getValidationQuery());
-                ds.setTestOnBorrow(isTestOnBorrow());
-            }
-        }
-
-		ds.setThreadContext(tc);
+	public ExtendedDataSource getDataSourceByDataSourceId(RequestContext tc, int dataSourceId) {
+		ExtendedDataSource[] registry = dataSources;
+		ExtendedDataSource ds = dataSourceId < registry.length ? registry[dataSourceId] : null;
+		if(ds == null)
+			ds = createDataSource(dataSourceId);
+		return ds;
+	}
+	
+	/**
+	 * Slow path, only taken the first time a data source id is used. Readers never
+	 * lock, they see either the old or the new registry array.
+	 */
+	private synchronized ExtendedDataSource createDataSource(int dataSourceId) {
+		ExtendedDataSource[] registry = dataSources;
+		if(dataSourceId < registry.length && registry[dataSourceId] != null)
+			return registry[dataSourceId];
+		
+		ExtendedDataSource ds = new ExtendedDataSource();
+		ds.setDriverClassName(dbClassName);
+		ds.setUsername(userName);
+		ds.setPassword(password);
+		String dburl = getUrlForDataSource(dataSourceId);
+		if(dbBaseName != null)
+			dburl = dburl.replaceAll("DBBASENAME", dbBaseName);
+		ds.setUrl(dburl);
+		logger.info(">>>>>>>> create data source for " + dburl);
+		
+		ds.setLogAbandoned(true);
+		ds.setRemoveAbandonedOnBorrow(true);
+		ds.setRemoveAbandonedOnMaintenance(true);
+		ds.setRemoveAbandonedTimeout(300);
+		ds.setMinEvictableIdleTimeMillis(300000);
+		ds.setTimeBetweenEvictionRunsMillis(30000);
+		ds.setMaxTotal(getMaxTotal());
+		ds.setMaxIdle(getMaxIdle());
+		ds.setMaxWaitMillis(2000);
+		ds.setMaxOpenPreparedStatements(500);
+		ds.setPoolPreparedStatements(false);
+		ds.setAutoCommit(isAutoCommit());
+		ds.setDataSourceId(dataSourceId);
+		ds.setValidationQuery(getValidationQuery());
+		ds.setTestOnBorrow(isTestOnBorrow());
+		
+		ExtendedDataSource[] copy = Arrays.copyOf(registry, Math.max(registry.length, dataSourceId + 1));
+		copy[dataSourceId] = ds;
+		dataSources = copy;
 		return ds;
 	}
 
 	@Override
 	public ExtendedDataSource getDataSourceByObjectId(RequestContext tc, String id) {
-		ObjectId oi = new ObjectId(id);
-		return getDataSourceByShardId(tc, oi.getShard());
+		return getDataSourceByShardId(tc, ObjectId.getShard(id));
 	}
 
 	/**
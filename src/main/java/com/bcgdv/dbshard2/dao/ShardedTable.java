@@ -23,10 +23,22 @@ import static java.lang.annotation.RetentionPolicy.RUNTIME;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
 
+/**
+ * Binary storage and compression both need a blob `json` column. getSqls only
+ * creates it for new tables; a table created before either was set keeps its
+ * text column and writes fail until it is migrated with
+ * {@link DbShardUtils#getPayloadMigrationSql}.
+ */
 @Target(TYPE)
 @Retention(RUNTIME)
 public @interface ShardedTable {
 	String type();
 	Index[] indexes() default {};
 	Mapping[] mappings() default {};
+	/** format of the stored beans, BINARY needs a blob column */
+	StorageFormat storage() default StorageFormat.JSON;
+	/** compression of payloads, a compressed class needs a blob column also for its uncompressed rows */
+	PayloadCompression compression() default PayloadCompression.NONE;
+	/** payloads smaller than this many bytes are stored uncompressed */
+	int compressionThreshold() default 4096;
 }
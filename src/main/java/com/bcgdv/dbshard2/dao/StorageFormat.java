@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao;
+
+/**
+ * How beans of a class are stored in the `json` column of their object table.
+ * 
+ * BINARY needs a blob column. getSqls creates one for new tables only, an
+ * existing table keeps its text column and writes to it fail until it is
+ * migrated with {@link DbShardUtils#getPayloadMigrationSql}.
+ */
+public enum StorageFormat {
+	/** utf-8 json text */
+	JSON,
+	/** {@link com.bcgdv.dbshard2.util.BinaryJson} in a blob column, rows written as json are still read */
+	BINARY
+}
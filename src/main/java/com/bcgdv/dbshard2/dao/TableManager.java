@@ -32,6 +32,8 @@ public class TableManager {
 	private HashMap<Class, String> cls2name = new HashMap<Class, String>();
 	private HashMap<Class,ShardedTable> shardedTables = new HashMap<>();
 	private HashMap<Class,List<ClassIndex>> indexes = new HashMap<>();
+	private String[] typeNames = new String[0];
+	private Class[] typeClasses = new Class[0];
 
 	public TableManager(){
 	}
@@ -61,6 +63,16 @@ public class TableManager {
 				}
 			}
 		}
+		
+		String[] names = new String[name2cls.size()];
+		Class[] types = new Class[name2cls.size()];
+		int i = 0;
+		for(Map.Entry<String, Class> entry : name2cls.entrySet()) {
+			names[i] = entry.getKey();
+			types[i++] = entry.getValue();
+		}
+		typeNames = names;
+		typeClasses = types;
 	}
 	public List<Class> getClassesManaged(){
 		return classesManaged;
@@ -74,6 +86,13 @@ public class TableManager {
 	public ShardedTable getShardedTable(Class cls){
 		return shardedTables.get(cls);
 	}
+	/**
+	 * @return the indexes of a managed class, or null. The instances are shared, so
+	 * what they cache (table name, insert sql) is built once.
+	 */
+	public List<ClassIndex> getIndexes(Class cls){
+		return indexes.get(cls);
+	}
 	
 	/*
 	 * Table name generators
@@ -106,14 +125,6 @@ public class TableManager {
 	/*
 	 * Cache key generators
 	 */
-	public final String getIndexedLookupKey(ClassIndex index, Map<String, ? extends Object>values) {
-		StringBuilder sb = new StringBuilder();
-		sb.append(index.getTableName());
-		for(String c : index.index.value()) {
-			sb.append(values.get(c));
-		}
-		return sb.toString();
-	}
 	public final String getMappedLookupKeyById(String pid, String sid) {
 		return getMappedLookupKey(getObjectTypeFromId(pid), getObjectTypeFromId(sid), pid);
 	}
@@ -131,7 +142,14 @@ public class TableManager {
 	 * Class lookup helpers
 	 */
 	public Class getObjectTypeFromId(String id) {
-		return getObjectType(new ObjectId(id).getType());
+		if(id == null || id.length() < 3)
+			throw new InvalidIdException(id);
+		String[] names = typeNames;
+		for(int i=0; i<names.length; i++) {
+			if(ObjectId.isType(id, names[i]))
+				return typeClasses[i];
+		}
+		return null;
 	}
 	public Class getObjectType(ObjectId id) {
 		return getObjectType(id.getType());
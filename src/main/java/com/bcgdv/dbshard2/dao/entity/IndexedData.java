@@ -46,6 +46,17 @@ public class IndexedData implements Serializable  {
 		values.put(key.toUpperCase(), value);
 	}
 
+	/**
+	 * Replaces the values with a map whose keys are already upper case.
+	 */
+	public void setUpperCaseValues(Map<String, Object> values) {
+		this.values = values;
+	}
+
+	public Map<String, Object> getValues() {
+		return values;
+	}
+
 	public Object get(String key) {
 		return values == null ? null : values.get(key.toUpperCase());
 	}
@@ -23,6 +23,7 @@ public class MappedData implements Serializable {
 	private String pid;
 	private String sid;
 	private String json; 
+	private long created;
 
 	public String getPid() {
 		return pid;
@@ -48,4 +49,12 @@ public class MappedData implements Serializable {
 		this.json = json;
 	}
 
+	public long getCreated() {
+		return created;
+	}
+
+	public void setCreated(long created) {
+		this.created = created;
+	}
+
 }
@@ -18,15 +18,23 @@
 package com.bcgdv.dbshard2.dao.entity;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonRawValue;
 
+import com.bcgdv.dbshard2.util.BinaryJson;
+import com.bcgdv.dbshard2.util.CompressedPayload;
 import com.bcgdv.dbshard2.util.DateUtil;
 
 
 public class ObjectData implements Serializable {
+	private static final long serialVersionUID = -1444730233495029369L;
+	
 	public String id;
 	@JsonRawValue public String json;
+	/** the bean in binary json, set instead of json for classes with binary storage */
+	@JsonIgnore public byte[] payload;
 	public int version;
 	public long created;
 	public long updated;
@@ -35,4 +43,15 @@ public class ObjectData implements Serializable {
 		created = updated = DateUtil.currentTimeMillis();
 	}
 	
+	/**
+	 * @return the stored bean as json text, also when it is kept as a binary or compressed payload
+	 */
+	@JsonRawValue
+	public String getJson() {
+		if(payload == null)
+			return json;
+		byte[] bytes = CompressedPayload.decompress(payload);
+		return BinaryJson.isBinary(bytes) ? BinaryJson.toJson(bytes) : new String(bytes, StandardCharsets.UTF_8);
+	}
+	
 }
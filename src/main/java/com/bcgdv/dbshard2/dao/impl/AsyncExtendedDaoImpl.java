@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao.impl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+import com.bcgdv.dbshard2.dao.AsyncExtendedDao;
+import com.bcgdv.dbshard2.dao.RequestAware;
+import com.bcgdv.dbshard2.dao.RequestContext;
+import com.bcgdv.dbshard2.dao.entity.MappedData;
+
+/**
+ * Runs the blocking {@link ExtendedDaoImpl} calls on an executor of its own.
+ * It must not be the dao's executor: a call waits for the per data source
+ * fan-out it submits there, so calls filling that pool would wait forever.
+ * 
+ * Calls made within a request use the request's connections, the request's
+ * commit, rollback and close wait until they are done.
+ */
+@SuppressWarnings({"rawtypes","unchecked"}) 
+public class AsyncExtendedDaoImpl implements AsyncExtendedDao, RequestAware {
+	private ExtendedDaoImpl dao;
+	private ExecutorService executorService;
+	
+	private ThreadLocal<RequestContext> threadContext = new ThreadLocal<RequestContext>();
+	
+	public AsyncExtendedDaoImpl(ExtendedDaoImpl dao) {
+		this.dao = dao;
+	}
+	
+	public AsyncExtendedDaoImpl(ExtendedDaoImpl dao, ExecutorService executorService) {
+		this.dao = dao;
+		setExecutorService(executorService);
+	}
+	
+	public ExtendedDaoImpl getDao() {
+		return dao;
+	}
+
+	public ExecutorService getExecutorService() {
+		if(executorService == null)
+			throw new IllegalStateException("no executor set, it must be separate from the dao's");
+		return executorService;
+	}
+
+	public void setExecutorService(ExecutorService executorService) {
+		if(executorService != null && executorService == dao.getExecutorService())
+			throw new IllegalArgumentException("the dao's executor cannot run async calls, their fan-out waits on it");
+		this.executorService = executorService;
+	}
+
+	@Override
+	public void setRequestContext(RequestContext tc) {
+		threadContext.set(tc);
+	}
+	
+	protected <R> CompletableFuture<R> supply(final Supplier<R> supplier) {
+		final RequestContext tc = threadContext.get();
+		ExecutorService es = getExecutorService();
+		if(tc != null)
+			tc.beginCall();
+		try {
+			return CompletableFuture.supplyAsync(new Supplier<R>() {
+				@Override
+				public R get() {
+					dao.setRequestContext(tc);
+					try {
+						return supplier.get();
+					}
+					finally {
+						dao.setRequestContext(null);
+						if(tc != null)
+							tc.endCall();
+					}
+				}
+			}, es);
+		} catch (RuntimeException e) {
+			if(tc != null)
+				tc.endCall();
+			throw e;
+		}
+	}
+
+	@Override
+	public <Z> CompletableFuture<Z> getBean(final String id) {
+		return supply(new Supplier<Z>() {
+			@Override
+			public Z get() {
+				return dao.getBean(id);
+			}
+		});
+	}
+
+	@Override
+	public <T> CompletableFuture<List<T>> listBeans(final Collection<String> ids) {
+		return supply(new Supplier<List<T>>() {
+			@Override
+			public List<T> get() {
+				return dao.listBeans(ids);
+			}
+		});
+	}
+
+	@Override
+	public <T> CompletableFuture<Map<String, T>> mapBeans(final Collection<String> ids) {
+		return supply(new Supplier<Map<String, T>>() {
+			@Override
+			public Map<String, T> get() {
+				return dao.mapBeans(ids);
+			}
+		});
+	}
+
+	@Override
+	public <Z> CompletableFuture<List<Z>> indexBeanLookup(final Class<Z> cls, final String field, final Object value) {
+		return supply(new Supplier<List<Z>>() {
+			@Override
+			public List<Z> get() {
+				return dao.indexBeanLookup(cls, field, value);
+			}
+		});
+	}
+
+	@Override
+	public <Z> CompletableFuture<List<Z>> indexBeanLookup(final Class<Z> cls, final Map<String, Object> keyValues) {
+		return supply(new Supplier<List<Z>>() {
+			@Override
+			public List<Z> get() {
+				return dao.indexBeanLookup(cls, keyValues);
+			}
+		});
+	}
+
+	@Override
+	public <Z> CompletableFuture<List<Z>> indexBeanLookup(final Class<Z> cls, final String field, final String id, final int offset, final int size) {
+		return supply(new Supplier<List<Z>>() {
+			@Override
+			public List<Z> get() {
+				return dao.indexBeanLookup(cls, field, id, offset, size);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<MappedData>> mappedLookup(final Class pclass, final Class sclass, final String pid) {
+		return supply(new Supplier<List<MappedData>>() {
+			@Override
+			public List<MappedData> get() {
+				return dao.mappedLookup(pclass, sclass, pid);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<MappedData>> mappedLookup(final Class pclass, final Class sclass, final String pid, final int offset, final int size) {
+		return supply(new Supplier<List<MappedData>>() {
+			@Override
+			public List<MappedData> get() {
+				return dao.mappedLookup(pclass, sclass, pid, offset, size);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<MappedData>> mappedLookup(final Class pclass, final Class sclass, final long beforeCreated, final String beforeSid, final int size) {
+		return supply(new Supplier<List<MappedData>>() {
+			@Override
+			public List<MappedData> get() {
+				return dao.mappedLookup(pclass, sclass, beforeCreated, beforeSid, size);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<String>> mappedIdLookup(final Class pclass, final Class sclass, final String pid) {
+		return supply(new Supplier<List<String>>() {
+			@Override
+			public List<String> get() {
+				return dao.mappedIdLookup(pclass, sclass, pid);
+			}
+		});
+	}
+}
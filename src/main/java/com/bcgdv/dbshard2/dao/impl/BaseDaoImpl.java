@@ -19,19 +19,22 @@ package com.bcgdv.dbshard2.dao.impl;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
-import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 
 import com.bcgdv.dbshard2.cache.CacheProxy;
 import com.bcgdv.dbshard2.cache.DummyCacheProxy;
@@ -39,9 +42,12 @@ import com.bcgdv.dbshard2.cache.NullCache;
 import com.bcgdv.dbshard2.dao.BaseDao;
 import com.bcgdv.dbshard2.dao.ClassIndex;
 import com.bcgdv.dbshard2.dao.DbDialet;
+import com.bcgdv.dbshard2.dao.DbShardUtils;
 import com.bcgdv.dbshard2.dao.ExtendedDataSource;
 import com.bcgdv.dbshard2.dao.InvalidIdException;
 import com.bcgdv.dbshard2.dao.ObjectId;
+import com.bcgdv.dbshard2.dao.PartialResult;
+import com.bcgdv.dbshard2.dao.QueryOptions;
 import com.bcgdv.dbshard2.dao.RequestAware;
 import com.bcgdv.dbshard2.dao.RequestContext;
 import com.bcgdv.dbshard2.dao.ShardResolver;
@@ -50,19 +56,28 @@ import com.bcgdv.dbshard2.dao.TableManager;
 import com.bcgdv.dbshard2.dao.entity.IndexedData;
 import com.bcgdv.dbshard2.dao.entity.ObjectData;
 import com.bcgdv.dbshard2.util.JacksonUtil;
-import com.bcgdv.dbshard2.util.MultiTask;
+import com.bcgdv.dbshard2.util.SortedMerge;
 import com.bcgdv.dbshard2.util.reflection.ReflectionUtil;
 import com.bcgdv.dbshard2.util.DateUtil;
+import com.bcgdv.dbshard2.util.ScatterGather;
 
 @SuppressWarnings({"rawtypes","unchecked"}) 
 public class BaseDaoImpl implements BaseDao, RequestAware {
 	private static Logger logger = Logger.getLogger(BaseDaoImpl.class);
+	private static final int BATCH_IN_SIZE = 1000;
 	
 	protected ShardResolver shardResolver;
 	protected ShardedDataSource shardedDataSource;
 	protected ExecutorService executorService;
 	protected CacheProxy cacheProxy;
 	protected TableManager tableManager;
+	protected long queryTimeout;
+	protected IndexFilters indexFilters;
+	protected int indexCacheTtl = 300;
+	protected int indexCacheEmptyTtl = 30;
+	protected long indexCacheVersionTtl = 1000;
+	private final ConcurrentHashMap<String, long[]> indexCacheVersions = new ConcurrentHashMap<String, long[]>();
+	private final ConcurrentHashMap<String, Boolean> blobColumns = new ConcurrentHashMap<String, Boolean>();
 	
 	protected ThreadLocal<RequestContext> threadContext = new ThreadLocal<RequestContext>();
 	
@@ -96,23 +111,313 @@ public class BaseDaoImpl implements BaseDao, RequestAware {
 	public void setTableManager(TableManager tableManager) {
 		this.tableManager = tableManager;
 	}
+	public long getQueryTimeout() {
+		return queryTimeout;
+	}
+	/**
+	 * Deadline in milliseconds for queries fanned out to several data sources,
+	 * data sources still running at the deadline are cancelled. 0 waits forever.
+	 * Within a request a timed fan-out reads on pooled connections, see
+	 * {@link #scatterGather(List, ShardCallable, long, boolean)}.
+	 */
+	public void setQueryTimeout(long queryTimeout) {
+		this.queryTimeout = queryTimeout;
+	}
 	
+	public int getIndexCacheTtl() {
+		return indexCacheTtl;
+	}
+	/**
+	 * Seconds a cached indexed lookup lives, 300 by default. Writes evict the
+	 * lookups of the rows they touch, the ttl bounds what a concurrent read can
+	 * put back from before the write.
+	 */
+	public void setIndexCacheTtl(int indexCacheTtl) {
+		this.indexCacheTtl = indexCacheTtl;
+	}
+	public int getIndexCacheEmptyTtl() {
+		return indexCacheEmptyTtl;
+	}
+	/**
+	 * Seconds a cached lookup without rows lives, 30 by default.
+	 */
+	public void setIndexCacheEmptyTtl(int indexCacheEmptyTtl) {
+		this.indexCacheEmptyTtl = indexCacheEmptyTtl;
+	}
+	public long getIndexCacheVersionTtl() {
+		return indexCacheVersionTtl;
+	}
+	/**
+	 * Milliseconds lookups reuse the version of an index's key family read from
+	 * the cache, 1000 by default, 0 reads it on every lookup. Writes always read
+	 * it, a version moved by another process is seen by lookups within this ttl.
+	 */
+	public void setIndexCacheVersionTtl(long indexCacheVersionTtl) {
+		this.indexCacheVersionTtl = indexCacheVersionTtl;
+	}
+	public IndexFilters getIndexFilters() {
+		return indexFilters;
+	}
+	/**
+	 * Bloom filters used to skip data sources in broadcast lookups on colocated
+	 * indexes, null (the default) queries every data source. They are only
+	 * consulted when declared the exclusive writer, see {@link IndexFilters}.
+	 */
+	public void setIndexFilters(IndexFilters indexFilters) {
+		this.indexFilters = indexFilters;
+	}
+	
+    /**
+     * @return the cache key of an indexed lookup, or null when it is not cached.
+     * Only point lookups are cached, they are the lookups a write can evict
+     * precisely.
+     */
+    protected String getIndexCacheKey(ClassIndex index, Map<String, ?> values) {
+        if(cacheProxy == null || !index.isPointLookup(values))
+            return null;
+        return index.getIndexedLookupKey(getIndexCacheVersion(index), values);
+    }
+    
+    /**
+     * @return the version of the index's key family, as last read from the cache within the version ttl
+     */
+    protected long getIndexCacheVersion(ClassIndex index) {
+        long[] cached = indexCacheVersions.get(index.getVersionKey());
+        if(cached != null && cached[1] > System.currentTimeMillis())
+            return cached[0];
+        return readIndexCacheVersion(index);
+    }
+    
+    /**
+     * @return the version of the index's key family read from the cache, which lookups use from then on
+     */
+    protected long readIndexCacheVersion(ClassIndex index) {
+        return putIndexCacheVersion(index, getCacheProxy().incr(index.getVersionKey(), 0, -1));
+    }
+    
+    private long putIndexCacheVersion(ClassIndex index, long version) {
+        indexCacheVersions.put(index.getVersionKey(), new long[] {version, System.currentTimeMillis() + indexCacheVersionTtl});
+        return version;
+    }
+    
+    /**
+     * Makes every cached lookup on the index stale, for writes that cannot name
+     * the rows they touch.
+     */
+    public void invalidateIndexCache(ClassIndex index) {
+        if(cacheProxy != null)
+            putIndexCacheVersion(index, getCacheProxy().incr(index.getVersionKey(), 1, -1));
+    }
+    
+    /**
+     * Collects the cache keys of the index rows one operation writes or deletes,
+     * reading the version of each index once. The keys are evicted once the
+     * write is made and again when its request commits or rolls back, lookups
+     * from other requests may cache the old rows in between.
+     */
+    protected class IndexCacheEviction implements RequestContext.Completion {
+        private Map<ClassIndex, Long> versions = new HashMap<ClassIndex, Long>();
+        private Set<String> keys = new HashSet<String>();
+        private Set<ClassIndex> invalidated = new HashSet<ClassIndex>();
+        private IndexFilterWrites filterWrites = new IndexFilterWrites();
+        
+        /**
+         * Registers the value of a new index row with the index filters.
+         */
+        public void addToIndexFilter(ClassIndex index, Map<String, ?> row, int dataSourceId) {
+            filterWrites.add(index, row, dataSourceId);
+        }
+        
+        public void add(ClassIndex index, Map<String, ?> row) {
+            if(cacheProxy == null)
+                return;
+            Long version = versions.get(index);
+            if(version == null) {
+                version = readIndexCacheVersion(index);
+                versions.put(index, version);
+            }
+            keys.add(index.getIndexedLookupKey(version, row));
+        }
+        
+        /**
+         * Moves the whole key family of the index to a new version, for writes
+         * that cannot name the rows they touch.
+         */
+        public void invalidate(ClassIndex index) {
+            if(cacheProxy != null)
+                invalidated.add(index);
+        }
+        
+        public void execute() {
+            filterWrites.execute();
+            if(keys.isEmpty() && invalidated.isEmpty())
+                return;
+            evict();
+            RequestContext rc = threadContext.get();
+            if(rc != null)
+                rc.addCompletion(this);
+        }
+        
+        @Override
+        public void completed(boolean committed) {
+            evict();
+        }
+        
+        private void evict() {
+            for(ClassIndex index : invalidated)
+                invalidateIndexCache(index);
+            if(keys.size() > 0)
+                getCacheProxy().deleteBulk(keys);
+        }
+    }
+    
+    /**
+     * Values of the index rows one operation writes. Lookups query their data
+     * sources from the moment they are added, the filters take them once the
+     * write is committed.
+     */
+    protected class IndexFilterWrites implements RequestContext.Completion {
+        private List<Object[]> writes = new ArrayList<Object[]>();
+        
+        public void add(ClassIndex index, Map<String, ?> row, int dataSourceId) {
+            if(indexFilters == null || !indexFilters.isEnabled(index))
+                return;
+            String dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), dataSourceId).getUrl();
+            Object value = row.get(index.getPlacementColumn());
+            indexFilters.beginPut(index, dataSource, value);
+            writes.add(new Object[] {index, dataSource, value});
+        }
+        
+        /**
+         * Completes the writes now without a request context, when the request
+         * commits otherwise.
+         */
+        public void execute() {
+            if(writes.isEmpty())
+                return;
+            RequestContext rc = threadContext.get();
+            if(rc == null)
+                completed(true);
+            else
+                rc.addCompletion(this);
+        }
+        
+        @Override
+        public synchronized void completed(boolean committed) {
+            for(Object[] write : writes)
+                indexFilters.endPut((ClassIndex) write[0], (String) write[1], write[2], committed);
+            writes.clear();
+        }
+    }
+    
     @Override
     public int getDataSourceIdForObjectId(String id) {
-        return getDataSourceById(new ObjectId(id)).getDataSourceId();
+        return getDataSourceById(id).getDataSourceId();
     }
     
     protected ExtendedDataSource getDataSourceById(ObjectId id){
+        if(id == null)
+            throw new InvalidIdException(null);
+        return getDataSourceByShard(id.getShard(), id);
+    }
+    
+    protected ExtendedDataSource getDataSourceById(String id){
+        return getDataSourceByShard(ObjectId.getShard(id), id);
+    }
+    
+    private ExtendedDataSource getDataSourceByShard(int shard, Object id){
 		//do not check (id.getShard() < shardResolver.getNumberOfShards()) if TimedShardResolver
 		if(shardResolver instanceof TimedShardResolver){
-			return shardedDataSource.getDataSourceByShardId(threadContext.get(), id.getShard());
+			return shardedDataSource.getDataSourceByShardId(threadContext.get(), shard);
 		}
-        if(id != null && id.getShard() < shardResolver.getNumberOfShards())
-            return shardedDataSource.getDataSourceByShardId(threadContext.get(), id.getShard());
+        if(shard < shardResolver.getNumberOfShards())
+            return shardedDataSource.getDataSourceByShardId(threadContext.get(), shard);
         else
             throw new InvalidIdException(id.toString());
     }
     
+    /**
+     * @return the data source holding an index row, which is the object's data
+     * source unless the index is hashed
+     */
+    protected int getDataSourceIdForIndexRow(ClassIndex index, Map<String, ?> row, int objectDataSourceId) {
+        if(!index.isHashed())
+            return objectDataSourceId;
+        return getDataSourceIdForIndexValue(index, row.get(index.getPlacementColumn()));
+    }
+    
+    protected int getDataSourceIdForIndexValue(ClassIndex index, Object value) {
+        int shard = (index.placementHash(value) & Integer.MAX_VALUE) % shardResolver.getNumberOfShards();
+        return shardedDataSource.getDataSourceByShardId(threadContext.get(), shard).getDataSourceId();
+    }
+    
+    /**
+     * @return the data sources an indexed lookup has to query, or null for all of them
+     */
+    protected Collection<Integer> getDataSourceIdsForLookup(ClassIndex index, Map<String, ?> values) {
+        if(!index.isHashed())
+            return getDataSourceIdsByFilter(index, values);
+        Object value = values.get(index.index.value()[0]);
+        if(value == null)
+            return null;
+        Set<Integer> ids = new LinkedHashSet<Integer>();
+        Collection<?> valueList = value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value);
+        for(Object o : valueList) {
+            if(!index.isPlaceable(o))
+                return null;
+            ids.add(getDataSourceIdForIndexValue(index, o));
+        }
+        return ids;
+    }
+    
+    private Collection<Integer> getDataSourceIdsByFilter(ClassIndex index, Map<String, ?> values) {
+        Object value = values.get(index.index.value()[0]);
+        if(indexFilters == null || value == null || !indexFilters.isEnabled(index))
+            return null;
+        Collection<?> valueList = value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value);
+        List<Integer> ids = new ArrayList<Integer>();
+        for(Integer dataSourceId : getDistinctDataSourceIds()) {
+            String dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), dataSourceId).getUrl();
+            for(Object o : valueList) {
+                if(indexFilters.mightContain(index, dataSource, o)) {
+                    ids.add(dataSourceId);
+                    break;
+                }
+            }
+        }
+        return ids;
+    }
+    
+    /**
+     * Reloads the filters of a colocated index from its index table on every data source.
+     */
+    public void rebuildIndexFilter(final ClassIndex index) {
+        if(indexFilters == null || !indexFilters.isEnabled(index))
+            return;
+        final String sql = "select `" + index.getPlacementColumn() + "` from " + index.getTableName();
+        forSelectDataSources(getDistinctDataSourceIds(), new RequestAwareShardCallable<Object>(threadContext.get()) {
+            @Override
+            public Object call(int dataSourceId) {
+                ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
+                final String url = dataSource.getUrl();
+                boolean success = false;
+                indexFilters.beginRebuild(index, url);
+                try {
+                    getJdbcTemplate(getTc(), dataSource).query(sql, new RowCallbackHandler() {
+                        @Override
+                        public void processRow(ResultSet rs) throws SQLException {
+                            indexFilters.putRebuilt(index, url, rs.getObject(1));
+                        }
+                    });
+                    success = true;
+                } finally {
+                    indexFilters.endRebuild(index, url, success);
+                }
+                return null;
+            }
+        });
+    }
+    
     @Override
     public int getDataSourceIdForObject(ObjectData od) {
         if(od.id != null)
@@ -121,101 +426,148 @@ public class BaseDaoImpl implements BaseDao, RequestAware {
         return shardedDataSource.getDataSourceByShardId(threadContext.get(), shardId).getDataSourceId();
     }
     
-    protected JdbcTemplate getJdbcTemplate(ExtendedDataSource dataSource) {
-        JdbcTemplate jt = null;
+    protected JdbcTemplate getJdbcTemplate(RequestContext tc, ExtendedDataSource dataSource) {
         try {
-            if(dataSource.getThreadContext().get() == null)
-                return new JdbcTemplate(dataSource);
-            jt = new JdbcTemplate(new SingleConnectionDataSource(dataSource.getConnection(), true));
-            return jt;
+            return new JdbcTemplate(dataSource.getRequestDataSource(tc));
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
     
-    protected NamedParameterJdbcTemplate getNamedParameterJdbcTemplate(ExtendedDataSource dataSource) {
-        NamedParameterJdbcTemplate jt = null;
+    protected NamedParameterJdbcTemplate getNamedParameterJdbcTemplate(RequestContext tc, ExtendedDataSource dataSource) {
         try {
-            if(dataSource.getThreadContext().get() == null)
-                return new NamedParameterJdbcTemplate(dataSource);
-            jt = new NamedParameterJdbcTemplate(new SingleConnectionDataSource(dataSource.getConnection(), true));
-            return jt;
+            return new NamedParameterJdbcTemplate(dataSource.getRequestDataSource(tc));
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
     
+    /**
+     * Template whose statements are cancelled by the driver after the options'
+     * shard timeout, also for the data source queried on the calling thread.
+     */
+    protected JdbcTemplate getJdbcTemplate(RequestContext tc, ExtendedDataSource dataSource, QueryOptions options) {
+        JdbcTemplate jt = getJdbcTemplate(tc, dataSource);
+        if(options != null && options.shardTimeout > 0)
+            jt.setQueryTimeout((int) ((options.shardTimeout + 999) / 1000));
+        return jt;
+    }
+    
+    protected NamedParameterJdbcTemplate getNamedParameterJdbcTemplate(RequestContext tc, ExtendedDataSource dataSource, QueryOptions options) {
+        return new NamedParameterJdbcTemplate(getJdbcTemplate(tc, dataSource, options));
+    }
+    
 	@Override
 	public int create(final ObjectData obj) {
 		if(!obj.getClass().equals(ObjectData.class))
 			throw new RuntimeException("Please call createBean method");
 		
-		if(obj.json == null)
+		if(obj.json == null && obj.payload == null)
 			throw new RuntimeException("json should not be null");
-		final ObjectId oi = new ObjectId(obj.id);
 		final AtomicInteger ups = new AtomicInteger();
-		ExtendedDataSource dataSource = getDataSourceById(oi);
-		String sql = "insert into " + getTableManager().getObjectDataTable(oi) + " (`id`, `created`, `updated`, `version`, `json`) values (?, ?, ?, ?, ?)";
+		ExtendedDataSource dataSource = getDataSourceById(obj.id);
+		String sql = "insert into " + getTableManager().getObjectDataTableById(obj.id) + " (`id`, `created`, `updated`, `version`, `json`) values (?, ?, ?, ?, ?)";
 		logger.debug(sql + "\n" + obj.json);
-		JdbcTemplate jt = getJdbcTemplate(dataSource);
-		int res = jt.update(sql, obj.id, obj.created, obj.updated, obj.version, obj.json);
+		JdbcTemplate jt = getJdbcTemplate(threadContext.get(), dataSource);
+		int res = jt.update(sql, obj.id, obj.created, obj.updated, obj.version, payloadColumnValue(dataSource, obj));
 		ups.getAndAdd(res);
 		getCacheProxy().set(obj.id, obj);
+		evictFromRequest(obj.id);
 		return ups.get();
 	}
 
     @Override
 	public int update(final ObjectData obj) {
-		if(obj.json == null)
+		if(obj.json == null && obj.payload == null)
 			throw new RuntimeException("json should not be null");
-		final ObjectId oi = new ObjectId(obj.id);
 		obj.updated = DateUtil.currentTimeMillis();
 		final AtomicInteger ups = new AtomicInteger();
-		ExtendedDataSource dataSource = getDataSourceById(oi);
-		String sql = "update " + getTableManager().getObjectDataTable(oi) + " set `created`=?, `updated`=?, `version`=?, `json`=? where `id`=?";
-		JdbcTemplate jt = getJdbcTemplate(dataSource);
-		int res = jt.update(sql, obj.created, obj.updated, obj.version, obj.json, obj.id);
+		ExtendedDataSource dataSource = getDataSourceById(obj.id);
+		String sql = "update " + getTableManager().getObjectDataTableById(obj.id) + " set `created`=?, `updated`=?, `version`=?, `json`=? where `id`=?";
+		JdbcTemplate jt = getJdbcTemplate(threadContext.get(), dataSource);
+		int res = jt.update(sql, obj.created, obj.updated, obj.version, payloadColumnValue(dataSource, obj), obj.id);
 		logger.debug("update " + obj.id + " with json " + obj.json);
 		ups.getAndAdd(res);
 		getCacheProxy().set(obj.id, obj);
+		evictFromRequest(obj.id);
 		return ups.get();
 	}
 
+	/**
+	 * @return the value bound to the `json` column, bytes for classes stored in a blob
+	 */
+	protected Object payloadColumnValue(ExtendedDataSource dataSource, ObjectData obj) {
+		Class cls = getTableManager().getObjectTypeFromId(obj.id);
+		if(obj.payload == null && (obj.json == null || !DbShardUtils.isBlobStorage(cls)))
+			return obj.json;
+		checkBlobColumn(dataSource, getTableManager().getObjectDataTableById(obj.id), cls);
+		return obj.payload != null ? obj.payload : obj.json.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Fails before bytes go to a `json` column that is still text, which a table
+	 * created before its class got binary storage or compression has. Such a
+	 * table has to be migrated first, see {@link DbShardUtils#getPayloadMigrationSql}.
+	 * The column type is looked up once per table and database.
+	 */
+	protected void checkBlobColumn(ExtendedDataSource dataSource, String table, Class cls) {
+		String key = dataSource.getUrl() + " " + table;
+		if(blobColumns.containsKey(key))
+			return;
+		boolean blob = getJdbcTemplate(threadContext.get(), dataSource).query("select `json` from " + table + " where 1=0", new ResultSetExtractor<Boolean>() {
+			@Override
+			public Boolean extractData(ResultSet rs) throws SQLException {
+				return PayloadColumn.isBinaryType(rs.getMetaData().getColumnType(1));
+			}
+		});
+		if(!blob)
+			throw new RuntimeException("the json column of " + table + " on " + dataSource.getUrl() + " is text but " + cls.getName() + " stores binary payloads, migrate the table first");
+		blobColumns.put(key, Boolean.TRUE);
+	}
+	
+	/**
+	 * Drops the bean from the identity map of the current request, if any.
+	 */
+	protected void evictFromRequest(String id) {
+		RequestContext rc = threadContext.get();
+		if(rc != null)
+			rc.evictBean(id);
+	}
+
 	@Override
 	public ObjectData objectLookup(String id) {
         long t0 = DateUtil.currentTimeMillis();
         long t1 = 0;
 		ObjectData data = null;
 		if(id != null){
-            ObjectId oi = new ObjectId(id);
-            if(oi.getShard() >= shardResolver.getNumberOfShards())
-                throw new InvalidIdException(oi.toString());
+            if(ObjectId.getShard(id) >= shardResolver.getNumberOfShards())
+                throw new InvalidIdException(id);
             
-			Object cached = getCacheProxy().get(oi.toString());
+			Object cached = getCacheProxy().get(id);
 			if(cached == null){
                 t1 = DateUtil.currentTimeMillis() - t0;
                 if(t1>1000) {
-                    System.out.println(threadContext.get() + " objectLookup before getDataSourceByShardId " + oi + " costs " + t1);
+                    System.out.println(threadContext.get() + " objectLookup before getDataSourceByShardId " + id + " costs " + t1);
                 }
-				ExtendedDataSource dataSource = getDataSourceById(oi);
+				ExtendedDataSource dataSource = getDataSourceById(id);
                 t1 = DateUtil.currentTimeMillis() - t0;
                 if(t1>1000) {
-                    System.out.println(threadContext.get() + " objectLookup getDataSourceByShardId " + oi + " costs " + t1);
+                    System.out.println(threadContext.get() + " objectLookup getDataSourceByShardId " + id + " costs " + t1);
                 }
-				String sql = "select * from " + getTableManager().getObjectDataTable(oi) + " where `id`=?";
-				JdbcTemplate jt = getJdbcTemplate(dataSource);
+				String sql = "select * from " + getTableManager().getObjectDataTableById(id) + " where `id`=?";
+				JdbcTemplate jt = getJdbcTemplate(threadContext.get(), dataSource);
 		        t1 = DateUtil.currentTimeMillis() - t0;
 		        if(t1>1000) {
-		            System.out.println(threadContext.get() + " objectLookup getJdbcTemplate " + oi + " costs " + t1);
+		            System.out.println(threadContext.get() + " objectLookup getJdbcTemplate " + id + " costs " + t1);
 		        }
-				List<ObjectData> od = jt.query(sql, new Object[]{oi.toString()}, new ObjectDataRowMapper());
+				List<ObjectData> od = jt.query(sql, new Object[]{id}, new ObjectDataRowMapper());
                 t1 = DateUtil.currentTimeMillis() - t0;
                 if(t1>1000) {
-                    System.out.println(threadContext.get() + " objectLookup query " + oi + " costs " + t1);
+                    System.out.println(threadContext.get() + " objectLookup query " + id + " costs " + t1);
                 }
 				
 				data = od.size() > 0 ? od.get(0) : null;
-				getCacheProxy().set(oi.toString(), data != null ? data : NullCache.getInstance());
+				getCacheProxy().set(id, data != null ? data : NullCache.getInstance());
 			}else if(cached != null && !(cached instanceof NullCache)){
 				data = (ObjectData) cached;
 			}
@@ -246,28 +598,24 @@ public class BaseDaoImpl implements BaseDao, RequestAware {
 		}
 		
 		if(spilledIdList.size() > 0){
-			ObjectId oi = new ObjectId(spilledIdList.get(0));
-			final String sql = "select * from " + getTableManager().getObjectDataTable(oi) + " where `id` in (:ids)";
+			final String sql = "select * from " + getTableManager().getObjectDataTableById(spilledIdList.get(0)) + " where `id` in (:ids)";
 			final Map<Integer, List<String>> shardedIds = shardedDataSource.splitByDataSource(spilledIdList);
-			final List<ObjectData> spilledResults = new ArrayList<>();
-			
-			forSelectDataSources(shardedIds.keySet(),new RequestAwareShardRunnable(threadContext.get()) {
+			List<List<ObjectData>> spilledResults = forEachPartition(shardedIds.keySet(), new RequestAwareShardCallable<List<ObjectData>>(threadContext.get()) {
 				@Override
-				public void run(int dataSourceId) {
+				public List<ObjectData> call(int dataSourceId) {
 				    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-					NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
-					List<ObjectData> data = namedjc.query(sql, Collections.singletonMap("ids", shardedIds.get(dataSourceId)), new ObjectDataRowMapper());
-					synchronized (spilledResults) {
-						spilledResults.addAll(data);
-					}
+					NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(getTc(), dataSource);
+					return namedjc.query(sql, Collections.singletonMap("ids", shardedIds.get(dataSourceId)), new ObjectDataRowMapper());
 				}
 			});
 
 			HashMap<String,Object> spilledMap = new HashMap<>();
-			for (ObjectData objectData : spilledResults) {
-				spilledMap.put(objectData.id, objectData);
-				spilledIdList.remove(objectData.id);
-				map.put(objectData.id, objectData);
+			for (List<ObjectData> data : spilledResults) {
+				for (ObjectData objectData : data) {
+					spilledMap.put(objectData.id, objectData);
+					spilledIdList.remove(objectData.id);
+					map.put(objectData.id, objectData);
+				}
 			}
 
 			for(String id : spilledIdList){
@@ -286,12 +634,12 @@ public class BaseDaoImpl implements BaseDao, RequestAware {
 
 	@Override
 	public int delete(String id) {
-		ObjectId oi = new ObjectId(id);
-		ExtendedDataSource dataSource = getDataSourceById(oi);
-		String sql = "delete from " + getTableManager().getObjectDataTable(oi) + " where `id`=?";
-		JdbcTemplate jt = getJdbcTemplate(dataSource);
+		ExtendedDataSource dataSource = getDataSourceById(id);
+		String sql = "delete from " + getTableManager().getObjectDataTableById(id) + " where `id`=?";
+		JdbcTemplate jt = getJdbcTemplate(threadContext.get(), dataSource);
 		int res = jt.update(sql, id);
 		getCacheProxy().set(id, NullCache.getInstance());
+		evictFromRequest(id);
 		return res;
 	}
 
@@ -299,25 +647,24 @@ public class BaseDaoImpl implements BaseDao, RequestAware {
 	public int deleteAll(final Collection<String> ids) {
 		final AtomicInteger ups = new AtomicInteger();
 		if(ids.size() > 0){
-			ObjectId oi = new ObjectId(ids.iterator().next());
-			final String sql = "delete from " + getTableManager().getObjectDataTable(oi) + " where `id` in (:ids)";
+			final String sql = "delete from " + getTableManager().getObjectDataTableById(ids.iterator().next()) + " where `id` in (:ids)";
 			final Map<Integer, List<String>> shardedIds = shardedDataSource.splitByDataSource(ids);
 			
-			forSelectDataSources(shardedIds.keySet(), new RequestAwareShardRunnable(threadContext.get()) {
+			List<Integer> updates = updateEachPartition(shardedIds.keySet(), new RequestAwareShardCallable<Integer>(threadContext.get()) {
 				@Override
-				public void run(int shardId) {
+				public Integer call(int shardId) {
 				    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), shardId);
-					NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
-					int update = namedjc.update(sql, Collections.singletonMap("ids", shardedIds.get(shardId)));
-					synchronized (ups) {
-						ups.getAndAdd(update);
-					}
+					NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(getTc(), dataSource);
+					return namedjc.update(sql, Collections.singletonMap("ids", shardedIds.get(shardId)));
 				}
 			});
+			for(Integer update : updates)
+				ups.getAndAdd(update);
 			
 			HashMap<String,Object> cache = new HashMap<>();
 			for(String id: ids){
 				cache.put(id, NullCache.getInstance());
+				evictFromRequest(id);
 			}
 			getCacheProxy().setBulk(cache);
 		}
@@ -348,276 +695,429 @@ public class BaseDaoImpl implements BaseDao, RequestAware {
 		valueNames.append(")");
 		sql.append(valueNames.toString());
 		
-		ObjectId objectId = new ObjectId((String)values.get("id"));
-		ExtendedDataSource dataSource = getDataSourceById(objectId);
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
-		int res = namedjc.update(sql.toString(), values);
-		getCacheProxy().delete(index.getIndexedLookupKey(values));
+		String id = (String)values.get("id");
+		int dataSourceId = getDataSourceIdForIndexRow(index, values, getDataSourceIdForObjectId(id));
+		ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), dataSourceId);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
+		IndexFilterWrites filterWrites = new IndexFilterWrites();
+		filterWrites.add(index, values, dataSourceId);
+		int res;
+		try {
+			res = namedjc.update(sql.toString(), values);
+		} finally {
+			filterWrites.execute();
+		}
+		if(cacheProxy != null)
+			getCacheProxy().delete(index.getIndexedLookupKey(readIndexCacheVersion(index), values));
 		return res;
 	}
 
 	@Override
 	public List<IndexedData> indexLookup(final String sql, final Map<String, Object> values) {
-		final List<IndexedData> result = new ArrayList<>();
-		ShardRunnable runnable = new RequestAwareShardRunnable(threadContext.get()) {
+		return indexLookup(sql, values, new QueryOptions(queryTimeout, false)).getResult();
+	}
+	
+	@Override
+	public PartialResult<List<IndexedData>> indexLookup(final String sql, final Map<String, Object> values, final QueryOptions options) {
+		PartialResult<List<List<IndexedData>>> results = forEachDataSource(new RequestAwareShardCallable<List<IndexedData>>(threadContext.get()) {
 			@Override
-			public void run(int dataSourceId) {
+			public List<IndexedData> call(int dataSourceId) {
 			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
-				List<IndexedData> data = namedjc.query(sql.toString(), values, new IndexedDataRowMapper());
-				synchronized (result) {
-					result.addAll(data);
-				}
+				NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(getTc(), dataSource, options);
+				return namedjc.query(sql.toString(), values, new IndexedDataRowMapper());
 			}
-		};
-		forEachDataSource(runnable);
-		return result;
+		}, options);
+		return new PartialResult<List<IndexedData>>(concat(results.getResult()), results.getAnswered(), results.getMissing());
+	}
+
+	/**
+	 * Runs an index query on the given data sources only.
+	 */
+	protected List<IndexedData> indexLookup(Collection<Integer> dataSourceIds, final String sql, final Map<String, Object> values) {
+		return concat(forSelectDataSources(dataSourceIds, new RequestAwareShardCallable<List<IndexedData>>(threadContext.get()) {
+			@Override
+			public List<IndexedData> call(int dataSourceId) {
+			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
+				NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(getTc(), dataSource);
+				return namedjc.query(sql, values, new IndexedDataRowMapper());
+			}
+		}));
+	}
+	
+	protected int indexCountLookup(Collection<Integer> dataSourceIds, final String sql, final Map<String, Object> values) {
+		return sum(forSelectDataSources(dataSourceIds, new RequestAwareShardCallable<Integer>(threadContext.get()) {
+			@Override
+			public Integer call(int dataSourceId) {
+			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
+				NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(getTc(), dataSource);
+				return namedjc.queryForObject(sql, values, Integer.class);
+			}
+		}));
 	}
 
 	@Override
 	public List<IndexedData> indexLookup(int dataSourceId, final String sql, final Map<String, Object> values) {
 	    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), dataSourceId);
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		List<IndexedData> data = namedjc.query(sql.toString(), values, new IndexedDataRowMapper());
 		return data;
 	}
 
 	@Override
 	public int indexCountLookup(final String sql, final Map<String, Object> values) {
-		final AtomicInteger ai = new AtomicInteger();
-		ShardRunnable runnable = new RequestAwareShardRunnable(threadContext.get()) {
+		return indexCountLookup(sql, values, new QueryOptions(queryTimeout, false)).getResult();
+	}
+	
+	@Override
+	public PartialResult<Integer> indexCountLookup(final String sql, final Map<String, Object> values, final QueryOptions options) {
+		PartialResult<List<Integer>> counts = forEachDataSource(new RequestAwareShardCallable<Integer>(threadContext.get()) {
 			@Override
-			public void run(int dataSourceId) {
+			public Integer call(int dataSourceId) {
 			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
-				int count = namedjc.queryForObject(sql.toString(), values, Integer.class);
-				ai.addAndGet(count);
+				NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(getTc(), dataSource, options);
+				return namedjc.queryForObject(sql.toString(), values, Integer.class);
 			}
-		};
-		forEachDataSource(runnable);
-		return ai.intValue();
+		}, options);
+		return new PartialResult<Integer>(sum(counts.getResult()), counts.getAnswered(), counts.getMissing());
 	}
 
 	@Override
 	public int indexCountLookup(int dataSourceId, final String sql, final Map<String, Object> values) {
 	    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), dataSourceId);
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		int count = namedjc.queryForObject(sql.toString(), values, Integer.class);
 		return count;
 	}
 	
 	protected int indexedCountLookup(final ClassIndex index, final Map<String, Object> values) {
-		String table = index.getTableName();
-		final StringBuilder sql = new StringBuilder("select count(*) from ").append(table);
-		boolean first = true;
-		Boolean emptyCollection = null;
-		Map<String, Object> params = new HashMap<String, Object>();
-		for(String s : values.keySet()) {
-			String columnName = s.toString().replaceAll("\\.", "__");
-			if(first) {
-				sql.append(" where ");
-				first = false;
-			}else {
-				sql.append(" and ");
-			}
-			Object value = values.get(s);
-			if(value != null && value.getClass().isEnum()) {
-			    value = value.toString();
-			}
-			params.put(columnName, value);
-            sql.append("`").append(columnName).append("`");
-			if(value == null || value instanceof Collection) {
-				sql.append(" in (:").append(columnName).append(")");
-				Collection c = (Collection) value;
-				if(emptyCollection == null && (value == null || c.size() == 0))
-				    emptyCollection = true;
-			}
-			else {
-				sql.append("=:").append(columnName);
-			}
-		}
-		
-		if(Boolean.TRUE.equals(emptyCollection)) 
+		IndexQueryPlan plan = IndexQueryPlan.get(index, values);
+		Map<String, Object> params = plan.params(values);
+		Collection<Integer> dataSourceIds = getDataSourceIdsForLookup(index, values);
+		if(params == null || (dataSourceIds != null && dataSourceIds.isEmpty())) 
 			return 0;
+		else if(dataSourceIds != null)
+			return indexCountLookup(dataSourceIds, plan.countSql, params);
 		else
-			return indexCountLookup(sql.toString(), params);
+			return indexCountLookup(plan.countSql, params);
 	}
 	
 	protected int indexedCountLookup(final ClassIndex index, final Map<String, Object> values, int dataSourceId) {
-		String table = index.getTableName();
-		final StringBuilder sql = new StringBuilder("select count(*) from ").append(table);
-		boolean first = true;
-		Boolean emptyCollection = null;
-		Map<String, Object> params = new HashMap<String, Object>();
-		for(String s : values.keySet()) {
-			String columnName = s.toString().replaceAll("\\.", "__");
-			if(first) {
-				sql.append(" where ");
-				first = false;
-			}else {
-				sql.append(" and ");
-			}
-			Object value = values.get(s);
-            if(value != null && value.getClass().isEnum()) {
-                value = value.toString();
-            }
-			params.put(columnName, value);
-            sql.append("`").append(columnName).append("`");
-			if(value == null || value instanceof Collection) {
-				sql.append(" in (:").append(columnName).append(")");
-				Collection c = (Collection) value;
-				emptyCollection = c.size() == 0;
-			}
-			else {
-				sql.append("=:").append(columnName);
-			}
-		}
-		
-		if(Boolean.TRUE.equals(emptyCollection))
+		IndexQueryPlan plan = IndexQueryPlan.get(index, values);
+		Map<String, Object> params = plan.params(values);
+		if(params == null)
 			return 0;
 		else
-			return indexCountLookup(dataSourceId, sql.toString(), params);
+			return indexCountLookup(dataSourceId, plan.countSql, params);
 	}
 	
 	public List<IndexedData> indexedLookup(Integer dataSourceId, final ClassIndex index, final Map<String, Object> values) {
-		String key = getTableManager().getIndexedLookupKey(index, values);
-		Object cached = getCacheProxy().get(key);
-		if(cached != null) {
-			return (List<IndexedData>) cached;
-		}
-		Map<String, Object> params = new HashMap<String, Object>();
-		String table = index.getTableName();
-		final StringBuilder sql = new StringBuilder("select * from ").append(table);
-		boolean first = true;
-		Boolean emptyCollection = null;
-		for(Object s : values.keySet().toArray()) {
-			String columnName = s.toString().replaceAll("\\.", "__");
-			if(first) {
-				sql.append(" where ");
-				first = false;
-			}else {
-				sql.append(" and ");
-			}
-			Object value = values.get(s);
-            if(value != null && value.getClass().isEnum()) {
-                value = value.toString();
-            }
-			params.put(columnName, value);
-            sql.append("`").append(columnName).append("`");
-			if(value == null || value instanceof Collection) {
-				sql.append(" in (:").append(columnName).append(")");
-				Collection c = (Collection) value;
-				emptyCollection = c.size() == 0;
-			}
-			else {
-				sql.append("=:").append(columnName);
-			}
+		String key = dataSourceId == null ? getIndexCacheKey(index, values) : null;
+		if(key != null) {
+			Object cached = getCacheProxy().get(key);
+			if(cached != null)
+				return (List<IndexedData>) cached;
 		}
-		sql.append(" order by `created` desc ");
+		IndexQueryPlan plan = IndexQueryPlan.get(index, values);
+		Map<String, Object> params = plan.params(values);
+		Collection<Integer> targets = getDataSourceIdsForLookup(index, values);
 		
 		List<IndexedData> result = null;
-		if(Boolean.TRUE.equals(emptyCollection)) 
+		if(params == null || (dataSourceId == null && targets != null && targets.isEmpty())) 
 			result = new ArrayList<IndexedData>();
 		else if(dataSourceId != null)
-			result = indexLookup(dataSourceId, sql.toString(), params);
+			result = indexLookup(dataSourceId, plan.selectSql, params);
+		else if(targets != null)
+			result = indexLookup(targets, plan.selectSql, params);
 		else 
-			result = indexLookup(sql.toString(), params);
-		getCacheProxy().set(key, result);
+			result = indexLookup(plan.selectSql, params);
+		if(key != null)
+			getCacheProxy().set(key, result, result.isEmpty() ? indexCacheEmptyTtl : indexCacheTtl);
 		return result;
 	}
 
+	/**
+	 * @return the index rows the stored object has in the index, null when they
+	 * cannot be told from here
+	 */
+	protected List<Map> getIndexRowsOfObject(ClassIndex index, String id) {
+		return null;
+	}
+
 	@Override
 	public int deleteIndexData(ClassIndex ind, final String id) {
 		final String sql = "delete from " + ind.getTableName() + " where `id` = :id";
-		ExtendedDataSource dataSource = shardedDataSource.getDataSourceByObjectId(threadContext.get(), id);
-        NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
-        int update = namedjc.update(sql, Collections.singletonMap("id", id));
-        return update;
+		// the version moves once the rows are gone, and again once the request completes
+		IndexCacheEviction eviction = new IndexCacheEviction();
+		eviction.invalidate(ind);
+		try {
+			if(ind.isHashed()) {
+				List<Map> rows = getIndexRowsOfObject(ind, id);
+				// without the object's values its rows can be on any data source
+				if(rows == null)
+					return updateAll(sql, Collections.singletonMap("id", id));
+				Set<Integer> dataSourceIds = new LinkedHashSet<Integer>();
+				for(Map row : rows)
+					dataSourceIds.add(getDataSourceIdForIndexRow(ind, row, -1));
+				int update = 0;
+				for(int dataSourceId : dataSourceIds) {
+					ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), dataSourceId);
+					update += getNamedParameterJdbcTemplate(threadContext.get(), dataSource).update(sql, Collections.singletonMap("id", id));
+				}
+				return update;
+			}
+			ExtendedDataSource dataSource = shardedDataSource.getDataSourceByObjectId(threadContext.get(), id);
+			NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
+			int update = namedjc.update(sql, Collections.singletonMap("id", id));
+			return update;
+		} finally {
+			eviction.execute();
+		}
 	}
 
 	@Override
 	public int updateAll(final String sql, final Object... objects) {
-		final AtomicInteger ups = new AtomicInteger();
-		forEachDataSource(new RequestAwareShardRunnable(threadContext.get()) {
+		List<Integer> updates = updateEachDataSource(new RequestAwareShardCallable<Integer>(threadContext.get()) {
 			@Override
-			public void run(int dataSourceId) {
+			public Integer call(int dataSourceId) {
 			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				JdbcTemplate jc = getJdbcTemplate(dataSource);
+				JdbcTemplate jc = getJdbcTemplate(getTc(), dataSource);
 				int update = jc.update(sql, objects);
 				logger.debug(dataSourceId + " DBUpdate: " + sql);
-				synchronized (ups) {
-					ups.getAndAdd(update);
-				}
+				return update;
 			}
 		});
-		return ups.intValue();
+		return sum(updates);
 	}
 
 	@Override
 	public int updateAll(final String sql, final Map<String, ?> params) {
-		final AtomicInteger ups = new AtomicInteger();
-		forEachDataSource(new RequestAwareShardRunnable(threadContext.get()) {
+		List<Integer> updates = updateEachDataSource(new RequestAwareShardCallable<Integer>(threadContext.get()) {
 			@Override
-			public void run(int dataSourceId) {
+			public Integer call(int dataSourceId) {
 			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				NamedParameterJdbcTemplate jc = getNamedParameterJdbcTemplate(dataSource);
-				int update = jc.update(sql, params);
-				synchronized (ups) {
-					ups.getAndAdd(update);
+				NamedParameterJdbcTemplate jc = getNamedParameterJdbcTemplate(getTc(), dataSource);
+				return jc.update(sql, params);
+			}
+		});
+		return sum(updates);
+	}
+	
+	public int executeBatch(final ShardedBatch batch) {
+		if(batch.isEmpty())
+			return 0;
+		List<Integer> updates = updateEachPartition(batch.getDataSourceIds(), new RequestAwareShardCallable<Integer>(threadContext.get()) {
+			@Override
+			public Integer call(int dataSourceId) {
+				int ups = 0;
+				for(ShardedBatch.Statement statement : batch.getStatements(dataSourceId)) {
+					ExtendedDataSource dataSource = statement.shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
+					JdbcTemplate jt = getJdbcTemplate(getTc(), dataSource);
+					logger.debug(dataSourceId + " DBBatch: " + statement.sql + " x " + statement.args.size() + "/" + statement.ids.size());
+					if(statement.args.size() > 0) {
+						for(int res : jt.batchUpdate(statement.sql, statement.args)) {
+							ups += res > 0 ? res : 0;
+						}
+					}
+					if(statement.ids.size() > 0) {
+						NamedParameterJdbcTemplate namedjc = new NamedParameterJdbcTemplate(jt);
+						List<Object> ids = new ArrayList<Object>(statement.ids);
+						for(int i=0; i<ids.size(); i+=BATCH_IN_SIZE) {
+							List<Object> chunk = ids.subList(i, Math.min(ids.size(), i + BATCH_IN_SIZE));
+							ups += namedjc.update(statement.sql, Collections.singletonMap("ids", chunk));
+						}
+					}
 				}
+				return ups;
 			}
 		});
-		return ups.intValue();
+		return sum(updates);
+	}
+
+	/**
+	 * Runs the runnable once per distinct data source and waits for all of them.
+	 */
+	public void forEachDataSource(final ShardRunnable runnable){
+		updateEachDataSource(new ShardCallable<Object>() {
+			@Override
+			public Object call(int dataSourceId) {
+				runnable.run(dataSourceId);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Runs the callable once per distinct data source, results are in data source order.
+	 */
+	public <R> List<R> forEachDataSource(ShardCallable<R> callable){
+		return scatterGather(getDistinctDataSourceIds(), callable).getResults();
+	}
+	
+	/**
+	 * Like {@link #forEachDataSource(ShardCallable)} for writes: waits for every
+	 * data source, also after a failure, and throws the first failure at the end.
+	 */
+	protected <R> List<R> updateEachDataSource(ShardCallable<R> callable){
+		return scatterGather(getDistinctDataSourceIds(), callable, 0, false, true).getResults();
 	}
 	
-	public void forEachDataSource(ShardRunnable runnable){
-		MultiTask mt = new MultiTask();
+	public void forEachDataSourceOneByOne(ShardRunnable runnable){
 		Set<String> urlSet = new HashSet<>();
 		for(int i= 0; i<shardResolver.getNumberOfShards() / shardedDataSource.getShardsPerDataSource(); i++) {
 			ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), i);
 			if (dataSource != null && !urlSet.contains(dataSource.getUrl())) {
 				urlSet.add(dataSource.getUrl());
-				ShardTask shardTask = new ShardTask(i, runnable);
-				mt.addTask(shardTask);
+				runnable.run(i);
 			}
 		}
-		mt.execute(getExecutorService());
 	}
 	
-	public void forEachDataSourceOneByOne(ShardRunnable runnable){
+	/**
+	 * Runs the runnable once per distinct data source of the given ids and waits for all of them.
+	 */
+	public void forSelectDataSources(Collection<Integer> dataSourceIds, final ShardRunnable runnable){
+		ShardCallable<Object> callable = new ShardCallable<Object>() {
+			@Override
+			public Object call(int dataSourceId) {
+				runnable.run(dataSourceId);
+				return null;
+			}
+		};
+		if(dataSourceIds.size() == 1)
+			callable.call(dataSourceIds.iterator().next());
+		else
+			scatterGather(distinctByUrl(dataSourceIds), callable, 0, false, true);
+	}
+	
+	/**
+	 * Runs the callable once per given data source id, also for ids whose data
+	 * sources share a url. For work that is split by data source id, where every
+	 * id has its own part, unlike broadcasts which must reach each database once.
+	 */
+	public <R> List<R> forEachPartition(Collection<Integer> dataSourceIds, ShardCallable<R> callable){
+		if(dataSourceIds.size() == 1) {
+			return Collections.singletonList(callable.call(dataSourceIds.iterator().next()));
+		}
+		return scatterGather(new ArrayList<Integer>(dataSourceIds), callable).getResults();
+	}
+	
+	/**
+	 * Like {@link #forEachPartition(Collection, ShardCallable)} for writes: waits for
+	 * every partition, also after a failure, and throws the first failure at the end.
+	 */
+	protected <R> List<R> updateEachPartition(Collection<Integer> dataSourceIds, ShardCallable<R> callable){
+		if(dataSourceIds.size() == 1) {
+			return Collections.singletonList(callable.call(dataSourceIds.iterator().next()));
+		}
+		return scatterGather(new ArrayList<Integer>(dataSourceIds), callable, 0, false, true).getResults();
+	}
+	
+	public <R> List<R> forSelectDataSources(Collection<Integer> dataSourceIds, ShardCallable<R> callable){
+		if(dataSourceIds.size() == 1) {
+			return Collections.singletonList(callable.call(dataSourceIds.iterator().next()));
+		}
+		return scatterGather(distinctByUrl(dataSourceIds), callable).getResults();
+	}
+	
+	private List<Integer> distinctByUrl(Collection<Integer> dataSourceIds) {
+		List<Integer> ids = new ArrayList<Integer>();
+		Set<String> urlSet = new HashSet<>();
+		for(Integer dataSourceId : dataSourceIds) {
+			ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), dataSourceId);
+			if (dataSource != null && urlSet.add(dataSource.getUrl()))
+				ids.add(dataSourceId);
+		}
+		return ids;
+	}
+	
+	protected static <T> List<T> concat(List<List<T>> lists) {
+		int size = 0;
+		for(List<T> list : lists)
+			size += list.size();
+		List<T> result = new ArrayList<T>(size);
+		for(List<T> list : lists)
+			result.addAll(list);
+		return result;
+	}
+	
+	protected static int sum(List<Integer> values) {
+		int sum = 0;
+		for(Integer value : values)
+			sum += value;
+		return sum;
+	}
+	
+	protected List<Integer> getDistinctDataSourceIds() {
+		List<Integer> ids = new ArrayList<Integer>();
 		Set<String> urlSet = new HashSet<>();
 		for(int i= 0; i<shardResolver.getNumberOfShards() / shardedDataSource.getShardsPerDataSource(); i++) {
 			ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), i);
-			if (dataSource != null && !urlSet.contains(dataSource.getUrl())) {
-				urlSet.add(dataSource.getUrl());
-				runnable.run(i);
+			if (dataSource != null && urlSet.add(dataSource.getUrl()))
+				ids.add(i);
+		}
+		return ids;
+	}
+	
+	/**
+	 * Runs the callable once per distinct data source within the options' timeout.
+	 * Data sources that failed or did not answer in time are reported as missing
+	 * when partial results are allowed.
+	 */
+	public <R> PartialResult<List<R>> forEachDataSource(ShardCallable<R> callable, QueryOptions options){
+		List<Integer> dataSourceIds = getDistinctDataSourceIds();
+		ScatterGather.Result<R> result = scatterGather(dataSourceIds, callable, options.shardTimeout, options.allowPartial);
+		List<R> results = new ArrayList<R>(dataSourceIds.size());
+		List<Integer> answered = new ArrayList<Integer>(dataSourceIds.size());
+		List<Integer> missing = new ArrayList<Integer>();
+		for(int i=0; i<dataSourceIds.size(); i++) {
+			if(result.isAnswered(i)) {
+				answered.add(dataSourceIds.get(i));
+				results.add(result.get(i));
+			}
+			else {
+				missing.add(dataSourceIds.get(i));
 			}
 		}
+		if(!missing.isEmpty())
+			logger.warn("data sources " + missing + " did not answer within " + options.shardTimeout + "ms");
+		return new PartialResult<List<R>>(results, answered, missing);
+	}
+	
+	protected <R> ScatterGather.Result<R> scatterGather(List<Integer> dataSourceIds, final ShardCallable<R> callable) {
+		return scatterGather(dataSourceIds, callable, queryTimeout, false);
 	}
 	
-	public void forSelectDataSources(Collection<Integer> dataSourceIds, ShardRunnable runnable){
-        if(dataSourceIds.size()>1) {
-            MultiTask mt = new MultiTask();
-			Set<String> urlSet = new HashSet<>();
-            for(Integer dataSourceId : dataSourceIds) {
-				ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), dataSourceId);
-				if (dataSource != null && !urlSet.contains(dataSource.getUrl())) {
-					urlSet.add(dataSource.getUrl());
-					ShardTask shardTask = new ShardTask(dataSourceId, runnable);
-					mt.addTask(shardTask);
+	/**
+	 * Fan-out for reads. Within a request, an untimed fan-out uses the request's
+	 * connections and waits for every worker. A fan-out with a timeout or
+	 * partial results runs on pooled connections instead, so it can give up on
+	 * late data sources without leaving a request connection busy. It then reads
+	 * committed data only, not the request's own uncommitted writes.
+	 */
+	protected <R> ScatterGather.Result<R> scatterGather(List<Integer> dataSourceIds, final ShardCallable<R> callable, long timeout, boolean allowPartial) {
+		boolean inRequest = threadContext.get() != null;
+		boolean abandonable = timeout > 0 || allowPartial;
+		if(inRequest && abandonable && callable instanceof RequestAwareShardCallable)
+			((RequestAwareShardCallable) callable).setTc(null);
+		return scatterGather(dataSourceIds, callable, timeout, allowPartial, inRequest && !abandonable);
+	}
+	
+	protected <R> ScatterGather.Result<R> scatterGather(List<Integer> dataSourceIds, final ShardCallable<R> callable, long timeout, boolean allowPartial, boolean waitForAll) {
+		ScatterGather<R> sg = new ScatterGather<R>().setTimeout(timeout).setAllowPartial(allowPartial).setWaitForAll(waitForAll);
+		for(final Integer dataSourceId : dataSourceIds) {
+			sg.addTask(new Callable<R>() {
+				@Override
+				public R call() throws Exception {
+					return callable.call(dataSourceId);
 				}
-            }
-            mt.execute(getExecutorService());
-        }
-        else if(dataSourceIds.size() == 1) {
-            int dataSourceId = (int) dataSourceIds.toArray()[0];
-            ShardTask shardTask = new ShardTask(dataSourceId, runnable);
-            shardTask.run();
-        }
+			});
+		}
+		return sg.execute(getExecutorService());
 	}
 	
 	static class ObjectDataRowMapper<T extends ObjectData> implements RowMapper<T>{
 		private Class cls = null;
+		private PayloadColumn payload = new PayloadColumn();
 		public ObjectDataRowMapper() {
 			try {
 				if(this.getClass().equals(ObjectDataRowMapper.class))
@@ -641,7 +1141,7 @@ public class BaseDaoImpl implements BaseDao, RequestAware {
 				row.created = arg0.getLong("created");
 				row.updated = arg0.getLong("updated");
 				row.version = arg0.getInt("version");
-				row.json = arg0.getString("json");
+				payload.read(arg0, row);
 				return row;
 			} catch (Exception e) {
 				throw new RuntimeException(e);
@@ -658,40 +1158,51 @@ public class BaseDaoImpl implements BaseDao, RequestAware {
 	public <T extends ObjectData> List<T> objectLookup(final Class<T> cls, int offset, int size) {
 		final Map<String, Object> keyValues = new HashMap<String, Object>();
 		final StringBuilder sb = new StringBuilder();
-		sb.append("select * from ").append("`"+cls.getSimpleName()+"`");
-		boolean first = true;
-		for(Entry<String, Object>entry : keyValues.entrySet()) {
-			if(first) {
-				sb.append(" where ");
-				first = false;
-			}else {
-				sb.append(" and ");
-			}
-			sb.append("`").append(entry.getKey()).append("`").append(" = :").append(entry.getKey());
-		}
-		sb.append(" order by `created` desc ");
+		sb.append("select * from ").append(TableManager.getObjectDataTable(cls));
+		sb.append(" order by `created` desc, `id` desc ");
 		
 		if(offset>-1) {
-			sb.append(" limit :offset, :size");
-			keyValues.put("offset", offset);
-			keyValues.put("size", size);
+			// every data source has to return its first offset+size rows, the merge drops the rest
+			sb.append(" limit :size");
+			keyValues.put("size", offset + size);
 		}
-		
-		final List<T> results = new ArrayList<T>();
-		forEachDataSource(new RequestAwareShardRunnable(threadContext.get()) {
+		return mergeObjectLookup(cls, sb.toString(), keyValues, offset > -1 ? offset : 0, offset > -1 ? size : -1);
+	}
+	
+	@Override
+	public <T extends ObjectData> List<T> objectLookup(final Class<T> cls, long beforeCreated, String beforeId, int size) {
+		final Map<String, Object> keyValues = new HashMap<String, Object>();
+		final StringBuilder sb = new StringBuilder();
+		sb.append("select * from ").append(TableManager.getObjectDataTable(cls));
+		sb.append(" where `created` < :created or (`created` = :created and `id` < :id)");
+		sb.append(" order by `created` desc, `id` desc limit :size");
+		keyValues.put("created", beforeCreated);
+		keyValues.put("id", beforeId);
+		keyValues.put("size", size);
+		return mergeObjectLookup(cls, sb.toString(), keyValues, 0, size);
+	}
+	
+	private <T extends ObjectData> List<T> mergeObjectLookup(final Class<T> cls, final String sql, final Map<String, Object> keyValues, int offset, int size) {
+		List<List<T>> results = forEachDataSource(new RequestAwareShardCallable<List<T>>(threadContext.get()) {
 			@Override
-			public void run(int dataSourceId) {
+			public List<T> call(int dataSourceId) {
 			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				NamedParameterJdbcTemplate jc = getNamedParameterJdbcTemplate(dataSource);
-				List<T> dsResults = jc.query(sb.toString(), keyValues, new ObjectDataRowMapper(cls));
-				synchronized (results) {
-					results.addAll(dsResults);
-				}
+				NamedParameterJdbcTemplate jc = getNamedParameterJdbcTemplate(getTc(), dataSource);
+				return jc.query(sql, keyValues, new ObjectDataRowMapper(cls));
 			}
 		});
-		return results;
+		return SortedMerge.merge(results, CREATED_DESC, offset, size);
 	}
 	
+	public static final Comparator<ObjectData> CREATED_DESC = new Comparator<ObjectData>() {
+		@Override
+		public int compare(ObjectData o1, ObjectData o2) {
+			if(o1.created != o2.created)
+				return o1.created > o2.created ? -1 : 1;
+			return o2.id.compareTo(o1.id);
+		}
+	};
+	
 	@Override
 	public boolean isType(String id, Class clss) {
 		return tableManager.isType(id, clss);
@@ -709,12 +1220,15 @@ public class BaseDaoImpl implements BaseDao, RequestAware {
 			public void run(int dataSourceId) {
 				String sql = "select `json` from " + tableName.replaceAll(" ", "");
 				ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				JdbcTemplate jc = getJdbcTemplate(dataSource);
+				JdbcTemplate jc = getJdbcTemplate(getTc(), dataSource);
+				final PayloadColumn payload = new PayloadColumn();
 				jc.query(sql, new RowCallbackHandler(){
 					@Override
 					public void processRow(ResultSet rs) throws SQLException {
 						try {
-							String json = rs.getString(1);
+							ObjectData row = new ObjectData();
+							payload.read(rs, row);
+							String json = BeanCodecs.toJson(row);
 							if(names == null)
 								output.write(json.getBytes());
 							else {
@@ -752,26 +1266,22 @@ public class BaseDaoImpl implements BaseDao, RequestAware {
 	public <T> List<T> indexQuery(int dataSourceId, String sql,
 			Map<String, Object> params, RowMapper<T> rowMapper) {
 	    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), dataSourceId);
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		return namedjc.query(sql, params, rowMapper);
 	}
 	
 	@Override
 	public <T> List<T> indexQuery(final String sql, final Map<String, Object> params,
 			final RowMapper<T> rowMapper) {
-		final List<T> result = new ArrayList<T>();
-		forEachDataSource(new RequestAwareShardRunnable(threadContext.get()) {
+		List<List<T>> results = forEachDataSource(new RequestAwareShardCallable<List<T>>(threadContext.get()) {
 			@Override
-			public void run(int dataSourceId) {
+			public List<T> call(int dataSourceId) {
 			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
-				List<T> list = namedjc.query(sql, params, rowMapper);
-				synchronized (result) {
-					result.addAll(list);
-				}
+				NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(getTc(), dataSource);
+				return namedjc.query(sql, params, rowMapper);
 			}
 		});
-		return result;
+		return concat(results);
 	}
 
 }
@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.bcgdv.dbshard2.dao.DbShardUtils;
+import com.bcgdv.dbshard2.dao.PayloadCompression;
+import com.bcgdv.dbshard2.dao.ShardedTable;
+import com.bcgdv.dbshard2.dao.entity.ObjectData;
+import com.bcgdv.dbshard2.util.BinaryJson;
+import com.bcgdv.dbshard2.util.CompressedPayload;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Jackson readers and writers of the bean classes, built once per class and
+ * shared by every path that turns beans into json and back. Readers and writers
+ * are immutable and thread safe.
+ * 
+ * Classes with binary storage are written as {@link BinaryJson} into the
+ * payload of the ObjectData, all classes read either form. Payloads of classes
+ * with compression are compressed from the class threshold on, and stay
+ * compressed in the ObjectData, in cache included, until a bean is decoded.
+ * 
+ * Modules, e.g. afterburner, can be registered on the ObjectMapper passed to the
+ * constructor before the first bean is read.
+ */
+@SuppressWarnings({"rawtypes","unchecked"})
+public class BeanCodecs {
+	private static final BeanCodecs instance = new BeanCodecs(createObjectMapper());
+	
+	private final ObjectMapper objectMapper;
+	private final ConcurrentHashMap<Class, BeanCodec> codecs = new ConcurrentHashMap<Class, BeanCodec>();
+	
+	public BeanCodecs(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+	
+	public static BeanCodecs getInstance() {
+		return instance;
+	}
+	
+	public static ObjectMapper createObjectMapper() {
+		ObjectMapper objectMapper = new ObjectMapper();
+		objectMapper.setSerializationInclusion(Include.NON_NULL);
+		objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		objectMapper.configure(DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT, true);
+		return objectMapper;
+	}
+	
+	public ObjectMapper getObjectMapper() {
+		return objectMapper;
+	}
+	
+	public BeanCodec getCodec(Class cls) {
+		BeanCodec codec = codecs.get(cls);
+		if(codec == null) {
+			ShardedTable table = (ShardedTable) cls.getAnnotation(ShardedTable.class);
+			codec = new BeanCodec(objectMapper.reader(cls), objectMapper.writerWithType(cls), DbShardUtils.isBinaryStorage(cls),
+					table == null ? PayloadCompression.NONE : table.compression(), table == null ? 0 : table.compressionThreshold());
+			BeanCodec existing = codecs.putIfAbsent(cls, codec);
+			if(existing != null)
+				codec = existing;
+		}
+		return codec;
+	}
+	
+	public <T> T decode(String json, Class<T> cls) {
+		return json == null ? null : (T) getCodec(cls).decode(json);
+	}
+	
+	public <T> T decode(ObjectData data, Class<T> cls) {
+		return data == null ? null : (T) getCodec(cls).decode(data);
+	}
+	
+	public String encode(Object bean) {
+		return getCodec(bean.getClass()).encode(bean);
+	}
+	
+	/**
+	 * Sets json or payload of the row, depending on the storage of the bean class.
+	 */
+	public void encode(Object bean, ObjectData row) {
+		getCodec(bean.getClass()).encode(bean, row);
+	}
+	
+	/**
+	 * Builds an object of the given class from a map of its properties.
+	 */
+	public <T> T convert(Map<String, Object> values, Class<T> cls) {
+		return objectMapper.convertValue(values, cls);
+	}
+	
+	/**
+	 * Reads the given paths from the stored payload with a streaming parser,
+	 * skipping every other field and stopping once all are found.
+	 * 
+	 * @param paths field names, or dotted paths into nested objects; "id" is
+	 *        always the id of the row, not read from the payload
+	 * @return id followed by each path in order, null for absent paths
+	 */
+	public Map<String, Object> project(ObjectData data, Collection<String> paths) {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("id", data.id);
+		Map<String, List<String>> byField = new LinkedHashMap<String, List<String>>();
+		for(String path : paths) {
+			if("id".equals(path))
+				continue;
+			result.put(path, null);
+			int dot = path.indexOf('.');
+			String field = dot < 0 ? path : path.substring(0, dot);
+			List<String> list = byField.get(field);
+			if(list == null) {
+				list = new ArrayList<String>();
+				byField.put(field, list);
+			}
+			list.add(path);
+		}
+		
+		try {
+			JsonParser parser = createParser(data);
+			if(parser == null || parser.nextToken() != JsonToken.START_OBJECT)
+				return result;
+			int remaining = byField.size();
+			while(remaining > 0 && parser.nextToken() == JsonToken.FIELD_NAME) {
+				List<String> list = byField.get(parser.getCurrentName());
+				parser.nextToken();
+				if(list == null) {
+					parser.skipChildren();
+					continue;
+				}
+				remaining--;
+				if(list.size() == 1 && list.get(0).indexOf('.') < 0) {
+					result.put(list.get(0), objectMapper.readValue(parser, Object.class));
+					continue;
+				}
+				JsonNode node = objectMapper.readTree(parser);
+				for(String path : list) {
+					int dot = path.indexOf('.');
+					JsonNode value = dot < 0 ? node : node.at("/" + path.substring(dot + 1).replace('.', '/'));
+					if(!value.isMissingNode())
+						result.put(path, objectMapper.treeToValue(value, Object.class));
+				}
+			}
+			parser.close();
+		} catch (IOException e) {
+			throw new RuntimeException("json error", e);
+		}
+		return result;
+	}
+	
+	private JsonParser createParser(ObjectData data) throws IOException {
+		if(data.payload == null)
+			return data.json == null ? null : objectMapper.getFactory().createParser(data.json);
+		byte[] bytes = CompressedPayload.decompress(data.payload);
+		return BinaryJson.isBinary(bytes) ? BinaryJson.parser(bytes, objectMapper) : objectMapper.getFactory().createParser(bytes);
+	}
+	
+	/**
+	 * @return the stored bean as json text, whichever form it is stored in
+	 */
+	public static String toJson(ObjectData data) {
+		return data.getJson();
+	}
+	
+	public static class BeanCodec {
+		private final ObjectReader reader;
+		private final ObjectWriter writer;
+		private final boolean binary;
+		private final PayloadCompression compression;
+		private final int compressionThreshold;
+		
+		BeanCodec(ObjectReader reader, ObjectWriter writer, boolean binary, PayloadCompression compression, int compressionThreshold) {
+			this.compression = compression;
+			this.compressionThreshold = compressionThreshold;
+			this.reader = reader;
+			this.writer = writer;
+			this.binary = binary;
+		}
+		
+		public boolean isBinary() {
+			return binary;
+		}
+		
+		public Object decode(ObjectData data) {
+			if(data.payload == null)
+				return decode(data.json);
+			byte[] bytes = CompressedPayload.decompress(data.payload);
+			try {
+				return BinaryJson.isBinary(bytes) ? BinaryJson.decode(reader, bytes) : reader.readValue(bytes);
+			} catch (Exception e) {
+				throw new RuntimeException("json error", e);
+			}
+		}
+		
+		public void encode(Object bean, ObjectData row) {
+			String json = binary ? null : encode(bean);
+			byte[] bytes = binary ? encodeBinary(bean) : null;
+			if(compression != PayloadCompression.NONE) {
+				byte[] raw = bytes != null ? bytes : json.getBytes(StandardCharsets.UTF_8);
+				if(raw.length >= compressionThreshold) {
+					byte[] compressed = CompressedPayload.compress(compression, raw);
+					if(compressed != raw) {
+						json = null;
+						bytes = compressed;
+					}
+				}
+			}
+			row.json = json;
+			row.payload = bytes;
+		}
+		
+		public byte[] encodeBinary(Object bean) {
+			try {
+				return BinaryJson.encode(writer, bean);
+			} catch (Exception e) {
+				throw new RuntimeException("binary json error", e);
+			}
+		}
+		
+		public Object decode(String json) {
+			try {
+				return reader.readValue(json);
+			} catch (Exception e) {
+				throw new RuntimeException("json error", e);
+			}
+		}
+		
+		public String encode(Object bean) {
+			try {
+				return writer.writeValueAsString(bean);
+			} catch (Exception e) {
+				throw new RuntimeException("json error", e);
+			}
+		}
+	}
+}
@@ -17,10 +17,13 @@
 
 package com.bcgdv.dbshard2.dao.impl;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -33,7 +36,7 @@ import com.bcgdv.dbshard2.dao.RequestAware;
 import com.bcgdv.dbshard2.dao.RequestContext;
 import com.bcgdv.dbshard2.dao.ShardResolver;
 import com.bcgdv.dbshard2.dao.ShardedDataSource;
-import com.bcgdv.dbshard2.util.MultiTask;
+import com.bcgdv.dbshard2.util.ScatterGather;
 
 public abstract class DuplicatedDataDaoImpl implements DuplicatedDataDao, RequestAware {
 	public ShardResolver shardResolver;
@@ -72,21 +75,41 @@ public abstract class DuplicatedDataDaoImpl implements DuplicatedDataDao, Reques
 	}
 
 	public void forEachDataSource(ShardRunnable runnable){
-		MultiTask mt = new MultiTask();
+		List<Integer> dataSourceIds = new ArrayList<Integer>();
 		for(int i= 0; i<shardResolver.getNumberOfShards() / shardedDataSource.getShardsPerDataSource(); i++) {
-			ShardTask shardTask = new ShardTask(i, runnable);
-			mt.addTask(shardTask);
+			dataSourceIds.add(i);
 		}
-		mt.execute(executorService);
+		forSelectDataSources(dataSourceIds, runnable);
 	}
 	
-	public void forSelectDataSources(Collection<Integer> dataSourceIds, ShardRunnable runnable){
-		MultiTask mt = new MultiTask();
-		for(Integer dataSourceId : dataSourceIds) {
-			ShardTask shardTask = new ShardTask(dataSourceId, runnable);
-			mt.addTask(shardTask);
+	public void forSelectDataSources(Collection<Integer> dataSourceIds, final ShardRunnable runnable){
+		ScatterGather<Object> sg = new ScatterGather<Object>().setWaitForAll(true);
+		for(final Integer dataSourceId : dataSourceIds) {
+			sg.addTask(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					runnable.run(dataSourceId);
+					return null;
+				}
+			});
+		}
+		sg.execute(executorService);
+	}
+
+	protected JdbcTemplate getJdbcTemplate(RequestContext tc, ExtendedDataSource dataSource) {
+		try {
+			return new JdbcTemplate(dataSource.getRequestDataSource(tc));
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	protected NamedParameterJdbcTemplate getNamedParameterJdbcTemplate(RequestContext tc, ExtendedDataSource dataSource) {
+		try {
+			return new NamedParameterJdbcTemplate(dataSource.getRequestDataSource(tc));
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
 		}
-		mt.execute(executorService);
 	}
 
 	@Override
@@ -95,7 +118,7 @@ public abstract class DuplicatedDataDaoImpl implements DuplicatedDataDao, Reques
 			@Override
 			public void run(int dataSourceId) {
 				ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				JdbcTemplate jt = new JdbcTemplate(dataSource);
+				JdbcTemplate jt = getJdbcTemplate(getTc(), dataSource);
 				jt.update(sql, args);
 			}
 		});
@@ -107,7 +130,7 @@ public abstract class DuplicatedDataDaoImpl implements DuplicatedDataDao, Reques
 			@Override
 			public void run(int dataSourceId) {
 				ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				NamedParameterJdbcTemplate jt = new NamedParameterJdbcTemplate(dataSource);
+				NamedParameterJdbcTemplate jt = getNamedParameterJdbcTemplate(getTc(), dataSource);
 				jt.update(sql, args);
 			}
 		});
@@ -116,14 +139,14 @@ public abstract class DuplicatedDataDaoImpl implements DuplicatedDataDao, Reques
 	public <T> List<T> query(String sql, RowMapper<T> rowMapper, Object...args) {
 		int shardId = new Random().nextInt(shardResolver.getNumberOfShards());
 		ExtendedDataSource dataSource = shardedDataSource.getDataSourceByShardId(threadContext.get(), shardId);
-		JdbcTemplate jt = new JdbcTemplate(dataSource);
+		JdbcTemplate jt = getJdbcTemplate(threadContext.get(), dataSource);
 		return jt.query(sql, args, rowMapper);
 	}
 	
 	public <T> List<T> query(String sql, RowMapper<T> rowMapper, Map<String, Object>args) {
 		int shardId = new Random().nextInt(shardResolver.getNumberOfShards());
 		ExtendedDataSource dataSource = shardedDataSource.getDataSourceByShardId(threadContext.get(), shardId);
-		NamedParameterJdbcTemplate jt = new NamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate jt = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		return jt.query(sql, args, rowMapper);
 	}
 }
@@ -21,6 +21,11 @@ import java.lang.reflect.Field;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -28,6 +33,7 @@ import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 
+import com.bcgdv.dbshard2.dao.BeanView;
 import com.bcgdv.dbshard2.dao.ClassIndex;
 import com.bcgdv.dbshard2.dao.ClassMapping;
 import com.bcgdv.dbshard2.dao.ClassTable;
@@ -41,32 +47,26 @@ import com.bcgdv.dbshard2.dao.ExtendedDataSource;
 import com.bcgdv.dbshard2.dao.Index;
 import com.bcgdv.dbshard2.dao.Mapping;
 import com.bcgdv.dbshard2.dao.ObjectId;
+import com.bcgdv.dbshard2.dao.PartialResult;
+import com.bcgdv.dbshard2.dao.QueryOptions;
+import com.bcgdv.dbshard2.dao.RequestContext;
+import com.bcgdv.dbshard2.dao.ShardedDataSource;
 import com.bcgdv.dbshard2.dao.ShardedTable;
 import com.bcgdv.dbshard2.dao.entity.IndexedData;
 import com.bcgdv.dbshard2.dao.entity.MappedData;
 import com.bcgdv.dbshard2.dao.entity.ObjectData;
+import com.bcgdv.dbshard2.util.SortedMerge;
 import com.bcgdv.dbshard2.util.reflection.ReflectionUtil;
 import com.bcgdv.dbshard2.util.DateUtil;
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.Gson;
 
 public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 	private static Logger logger = Logger.getLogger(ExtendedDaoImpl.class);
 	
-	private static ObjectMapper objectMapper;
-	static {
-		objectMapper = new ObjectMapper();
-		objectMapper.setSerializationInclusion(Include.NON_NULL);
-		objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		objectMapper.configure(DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT, true);
-	}
-	
-	private static Gson gson = new Gson();
+	private BeanCodecs beanCodecs = BeanCodecs.getInstance();
 	
 	private List<Class> forClasses;
+	private ScheduledExecutorService filterRebuilder;
+	private Map<List<Object>, ClassIndex> indexesByKeys = new ConcurrentHashMap<List<Object>, ClassIndex>();
 	
 	public ExtendedDaoImpl(Class... forClass){
 		forClasses = new ArrayList<Class>();
@@ -74,6 +74,58 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 			addClass(cls);
 	}
 	
+	public BeanCodecs getBeanCodecs() {
+		return beanCodecs;
+	}
+
+	public void setBeanCodecs(BeanCodecs beanCodecs) {
+		this.beanCodecs = beanCodecs;
+	}
+
+	/**
+	 * Rebuilds the index filters of all colocated indexes of the managed classes.
+	 */
+	public void rebuildIndexFilters() {
+		if(indexFilters == null)
+			return;
+		for(Class cls : forClasses) {
+			for(ClassIndex ti : getClassIndexes(cls)) {
+				rebuildIndexFilter(ti);
+			}
+		}
+	}
+	
+	/**
+	 * Rebuilds the index filters right away and then every interval milliseconds
+	 * on a daemon thread, 0 stops the rebuilds.
+	 */
+	public synchronized void setIndexFilterRebuildInterval(long interval) {
+		if(filterRebuilder != null) {
+			filterRebuilder.shutdownNow();
+			filterRebuilder = null;
+		}
+		if(interval <= 0)
+			return;
+		filterRebuilder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "index-filter-rebuild");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		filterRebuilder.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					rebuildIndexFilters();
+				} catch (Exception e) {
+					logger.warn("index filter rebuild failed", e);
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
 	public void addClass(Class forcls) {
 		forClasses.add(forcls);
 		DaoManager.getInstance().add(forcls, this);
@@ -115,13 +167,48 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 	
 	@Override
 	public void createBeans(List<? extends ObjectData> objs) {
-		for(ObjectData od : objs) {
-			createBean(od);
+		if(objs == null || objs.size() == 0)
+			return;
+		
+		ShardedBatch batch = new ShardedBatch();
+		Map<String, Object> cache = new HashMap<String, Object>();
+		IndexCacheEviction eviction = new IndexCacheEviction();
+		for(ObjectData obj : objs) {
+			ObjectData od = prepareBean(obj);
+			int dataSourceId = getDataSourceIdForObjectId(od.id);
+			String sql = "insert into " + getTableManager().getObjectDataTableById(od.id) + " (`id`, `created`, `updated`, `version`, `json`) values (?, ?, ?, ?, ?)";
+			ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(threadContext.get(), dataSourceId);
+			batch.add(shardedDataSource, dataSourceId, sql, od.id, od.created, od.updated, od.version, payloadColumnValue(dataSource, od));
+			cache.put(od.id, od);
+			
+			for(ClassIndex ti : getClassIndexes(obj.getClass())) {
+				addIndexRows(batch, dataSourceId, ti, obj, eviction);
+			}
+			
+			for(Mapping mapping : getTableForBean(obj).mappings()) {
+				Object[] values = mappingRowForBean(mapping, obj);
+				if(values == null)
+					continue;
+				ShardedDataSource mappedDataSource = getDaoForClass(mapping.map2cls()).getShardedDataSource();
+				int mappedDataSourceId = mappedDataSource.getDataSourceByObjectId(threadContext.get(), (String)values[0]).getDataSourceId();
+				batch.add(mappedDataSource, mappedDataSourceId, mappingInsertSql(new ClassMapping(obj.getClass(), mapping)), values);
+			}
 		}
+		
+		executeBatch(batch);
+		getCacheProxy().setBulk(cache);
+		eviction.execute();
 	}
 
 	@Override
 	public void createBean(ObjectData obj) {
+		ObjectData od = prepareBean(obj);
+		super.create(od);
+		addIndexesForBean(obj);
+		addMappingsForBean(obj);
+	}
+	
+	protected ObjectData prepareBean(ObjectData obj) {
 		if(obj.getClass().equals(ObjectData.class))
 			throw new RuntimeException("use BaseDao.create method");
 		
@@ -146,15 +233,8 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 		od.id = id;
 		od.version = obj.version;
 		
-		try {
-			String json = objectMapper.writeValueAsString(obj);
-			od.json = json ;
-		} catch (JsonProcessingException e) {
-			throw new RuntimeException("json error", e);
-		}
-		super.create(od);
-		addIndexesForBean(obj);
-		addMappingsForBean(obj);
+		beanCodecs.encode(obj, od);
+		return od;
 	}
 	
 	@Override
@@ -178,25 +258,16 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
         else
             obj.updated = DateUtil.currentTimeMillis();
         
-        ObjectId oi = new ObjectId(id);
-        Class<?> cls = tableManager.getCls(oi.getType());
+        Class<?> cls = tableManager.getObjectTypeFromId(id);
         if(!forClasses.contains(cls))
             throw new RuntimeException("cannot use " + this.getClass().getSimpleName() + " update " + cls.getSimpleName());
         
-        ObjectData indb = getBean(id);
-        removeIndexesForBean(indb);
-        removeMappingsForBean(indb);
+        ObjectData indb = loadBean(id);
         
         od.id = id;
-        try {
-            String json = objectMapper.writeValueAsString(obj);
-            od.json = json ;
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("json error", e);
-        }
+        beanCodecs.encode(obj, od);
         super.update(od);
-        addIndexesForBean(obj);
-        addMappingsForBean(obj);
+        updateIndexesForBean(indb, obj);
     }
 
     @Override
@@ -210,28 +281,174 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
         else
             obj.updated = DateUtil.currentTimeMillis();
         
-        ObjectId oi = new ObjectId(id);
-        Class<?> cls = tableManager.getCls(oi.getType());
+        Class<?> cls = tableManager.getObjectTypeFromId(id);
         if(!forClasses.contains(cls))
             throw new RuntimeException("cannot use " + this.getClass().getSimpleName() + " update " + cls.getSimpleName());
         
         od.id = id;
-        try {
-            String json = objectMapper.writeValueAsString(obj);
-            od.json = json ;
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("json error", e);
-        }
+        beanCodecs.encode(obj, od);
         super.update(od);
     }
 	
+	/**
+	 * Writes all index rows of the bean as one jdbc batch per index table and
+	 * evicts their lookup keys with one deleteBulk.
+	 */
 	protected int addIndexesForBean(ObjectData obj){
-		int ret = 0;
-		ShardedTable annotation = obj.getClass().getAnnotation(ShardedTable.class);
-		for(Index index : annotation.indexes()) {
-			ret += addIndexForBean(index, obj);
+		ShardedBatch batch = new ShardedBatch();
+		IndexCacheEviction eviction = new IndexCacheEviction();
+		int dataSourceId = getDataSourceIdForObjectId(obj.id);
+		for(ClassIndex ti : getClassIndexes(obj.getClass())) {
+			addIndexRows(batch, dataSourceId, ti, obj, eviction);
 		}
-		return ret;
+		return executeIndexBatch(batch, eviction);
+	}
+	
+	protected int addIndexForBean(Index index, ObjectData obj){
+		ShardedBatch batch = new ShardedBatch();
+		IndexCacheEviction eviction = new IndexCacheEviction();
+		for(ClassIndex ti : getClassIndexes(obj.getClass())) {
+			if(ti.index.equals(index))
+				addIndexRows(batch, getDataSourceIdForObjectId(obj.id), ti, obj, eviction);
+		}
+		return executeIndexBatch(batch, eviction);
+	}
+	
+	/**
+	 * Brings the index and mapping rows of a bean from its old to its new state.
+	 * Only the rows whose values differ are deleted or inserted, so an update that
+	 * leaves every indexed and mapped field alone does not touch these tables.
+	 */
+	protected int updateIndexesForBean(ObjectData old, ObjectData obj) {
+		if(old == null)
+			return addIndexesForBean(obj) + addMappingsForBean(obj);
+		
+		ShardedBatch batch = new ShardedBatch();
+		IndexCacheEviction eviction = new IndexCacheEviction();
+		int dataSourceId = getDataSourceIdForObjectId(obj.id);
+		for(ClassIndex ti : getClassIndexes(obj.getClass())) {
+			Map<List<Object>, Map> oldRows = indexTuples(ti, old);
+			Map<List<Object>, Map> newRows = indexTuples(ti, obj);
+			for(Map.Entry<List<Object>, Map> entry : oldRows.entrySet()) {
+				if(newRows.containsKey(entry.getKey()))
+					continue;
+				addIndexRowDelete(batch, dataSourceId, ti, entry.getValue());
+				eviction.add(ti, entry.getValue());
+			}
+			for(Map.Entry<List<Object>, Map> entry : newRows.entrySet()) {
+				if(oldRows.containsKey(entry.getKey()))
+					continue;
+				int rowDataSourceId = getDataSourceIdForIndexRow(ti, entry.getValue(), dataSourceId);
+				batch.add(shardedDataSource, rowDataSourceId, ti.getInsertSql(), entry.getKey().toArray());
+				eviction.addToIndexFilter(ti, entry.getValue(), rowDataSourceId);
+				eviction.add(ti, entry.getValue());
+			}
+		}
+		
+		for(Mapping mapping : getTableForBean(obj).mappings()) {
+			Object[] oldValues = mappingRowForBean(mapping, old);
+			Object[] newValues = mappingRowForBean(mapping, obj);
+			if(Arrays.equals(oldValues, newValues))
+				continue;
+			ClassMapping cm = new ClassMapping(obj.getClass(), mapping);
+			ShardedDataSource mappedDataSource = getDaoForClass(mapping.map2cls()).getShardedDataSource();
+			if(oldValues != null) {
+				int mappedDataSourceId = mappedDataSource.getDataSourceByObjectId(threadContext.get(), (String)oldValues[0]).getDataSourceId();
+				batch.add(mappedDataSource, mappedDataSourceId, "delete from " + cm.getTableName() + " where `sid`=?", obj.id);
+			}
+			if(newValues != null) {
+				int mappedDataSourceId = mappedDataSource.getDataSourceByObjectId(threadContext.get(), (String)newValues[0]).getDataSourceId();
+				batch.add(mappedDataSource, mappedDataSourceId, mappingInsertSql(cm), newValues);
+			}
+		}
+		return executeIndexBatch(batch, eviction);
+	}
+	
+	/**
+	 * @return the index rows of the bean keyed by their insert arguments
+	 */
+	protected static Map<List<Object>, Map> indexTuples(ClassIndex ti, ObjectData obj) {
+		List<String> columns = ti.getInsertColumns();
+		Map<List<Object>, Map> tuples = new LinkedHashMap<List<Object>, Map>();
+		for(Map m : indexRowsForBean(ti.index, obj)) {
+			Object[] args = new Object[columns.size()];
+			for(int i=0; i<args.length; i++) {
+				Object value = m.get(columns.get(i));
+				args[i] = value instanceof Enum<?> ? value.toString() : value;
+			}
+			tuples.put(Arrays.asList(args), m);
+		}
+		return tuples;
+	}
+	
+	private void addIndexRowDelete(ShardedBatch batch, int dataSourceId, ClassIndex ti, Map row) {
+		StringBuilder sql = new StringBuilder("delete from ").append(ti.getTableName()).append(" where `id`=?");
+		List<Object> args = new ArrayList<Object>();
+		args.add(row.get("id"));
+		for(String column : ti.getInsertColumns()) {
+			if("id".equals(column) || "created".equals(column))
+				continue;
+			Object value = row.get(column);
+			if(value == null) {
+				sql.append(" and `").append(column).append("` is null");
+			}else {
+				sql.append(" and `").append(column).append("`=?");
+				args.add(value instanceof Enum<?> ? value.toString() : value);
+			}
+		}
+		batch.add(shardedDataSource, getDataSourceIdForIndexRow(ti, row, dataSourceId), sql.toString(), args.toArray());
+	}
+	
+	/**
+	 * @return the index rows of the stored bean, which place the rows of a hashed index
+	 */
+	@Override
+	protected List<Map> getIndexRowsOfObject(ClassIndex index, String id) {
+		ObjectData obj = loadBean(id);
+		return obj == null ? null : indexRowsForBean(index.index, obj);
+	}
+	
+	private int executeIndexBatch(ShardedBatch batch, IndexCacheEviction eviction) {
+		try {
+			return executeBatch(batch);
+		} finally {
+			eviction.execute();
+		}
+	}
+	
+	/**
+	 * Adds one insert per value combination of the index to the batch and the
+	 * cache key of each row to the eviction.
+	 */
+	protected void addIndexRows(ShardedBatch batch, int dataSourceId, ClassIndex ti, ObjectData obj, IndexCacheEviction eviction) {
+		List<String> columns = ti.getInsertColumns();
+		String sql = ti.getInsertSql();
+		for(Map m : indexRowsForBean(ti.index, obj)) {
+			Object[] args = new Object[columns.size()];
+			for(int i=0; i<args.length; i++) {
+				Object value = m.get(columns.get(i));
+				args[i] = value instanceof Enum<?> ? value.toString() : value;
+			}
+			int rowDataSourceId = getDataSourceIdForIndexRow(ti, m, dataSourceId);
+			batch.add(shardedDataSource, rowDataSourceId, sql, args);
+			eviction.addToIndexFilter(ti, m, rowDataSourceId);
+			eviction.add(ti, m);
+		}
+	}
+	
+	/**
+	 * @return the indexes of the class, shared through the table manager when it manages the class
+	 */
+	protected List<ClassIndex> getClassIndexes(Class cls) {
+		List<ClassIndex> list = getTableManager() == null ? null : getTableManager().getIndexes(cls);
+		if(list == null) {
+			list = new ArrayList<ClassIndex>();
+			ShardedTable annotation = (ShardedTable) cls.getAnnotation(ShardedTable.class);
+			for(Index index : annotation.indexes()) {
+				list.add(new ClassIndex(cls, index));
+			}
+		}
+		return list;
 	}
 	
 	protected int addMappingsForBean(ObjectData obj){
@@ -241,51 +458,62 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 			Class primaryCls = mapping.map2cls();
 			ExtendedDao dao = getDaoForClass(primaryCls);
 			
-			ClassMapping cm = new ClassMapping(obj.getClass(), mapping);
-			String table = cm.getTableName();
-			StringBuilder sql = new StringBuilder().append("insert into ").append(table).append(" (`pid`, `sid`, `created`");
-			for(String s : mapping.otherColumns()) {
-				String columnName = new ColumnPath(s).getColumnName();
-				sql.append(",").append("`").append(columnName).append("`");
-			}
-			sql.append(")").append(" values (?, ?, ?");
-			for(String s : mapping.otherColumns()) {
-				sql.append(", ?");
-			}
-			sql.append(")");
+			Object[] values = mappingRowForBean(mapping, obj);
+			if(values == null)
+				continue;
 
-			Object[] values = new Object[mapping.otherColumns().length + 3];
+			ExtendedDataSource dataSource = dao.getShardedDataSource().getDataSourceByObjectId(threadContext.get(), (String)values[0]);
+			JdbcTemplate jt = getJdbcTemplate(threadContext.get(), dataSource);
+			ret += jt.update(mappingInsertSql(new ClassMapping(obj.getClass(), mapping)), values);
+		}
+		return ret;
+	}
+	
+	protected static String mappingInsertSql(ClassMapping cm) {
+		Mapping mapping = cm.mapping;
+		StringBuilder sql = new StringBuilder().append("insert into ").append(cm.getTableName()).append(" (`pid`, `sid`, `created`");
+		for(String s : mapping.otherColumns()) {
+			String columnName = new ColumnPath(s).getColumnName();
+			sql.append(",").append("`").append(columnName).append("`");
+		}
+		sql.append(")").append(" values (?, ?, ?");
+		for(int i = 0; i< mapping.otherColumns().length; i++) {
+			sql.append(", ?");
+		}
+		sql.append(")");
+		return sql.toString();
+	}
+	
+	/**
+	 * @return pid, sid, created followed by the other columns, or null if the bean has no pid
+	 */
+	protected static Object[] mappingRowForBean(Mapping mapping, ObjectData obj) {
+		Object[] values = new Object[mapping.otherColumns().length + 3];
+		try {
+			values[0] = ReflectionUtil.getFieldValue(obj, mapping.column());
+			if(values[0] == null)
+				return null;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		values[1] = obj.id;
+		values[2] = obj.created;
+		
+		for(int i = 0; i< mapping.otherColumns().length; i++) {
 			try {
-				values[0] = ReflectionUtil.getFieldValue(obj, mapping.column());
-				if(values[0] == null)
-					continue;
+				values[i+3] = ReflectionUtil.getFieldValue(obj, mapping.otherColumns()[i]);
 			} catch (Exception e) {
 				throw new RuntimeException(e);
 			}
-			values[1] = obj.id;
-			values[2] = obj.created;
-			
-			for(int i = 0; i< mapping.otherColumns().length; i++) {
-				try {
-					values[i+3] = ReflectionUtil.getFieldValue(obj, mapping.otherColumns()[i]);
-				} catch (Exception e) {
-					throw new RuntimeException(e);
-				}
-			}
-
-			ExtendedDataSource dataSource = dao.getShardedDataSource().getDataSourceByObjectId(threadContext.get(), (String)values[0]);
-			JdbcTemplate jt = getJdbcTemplate(dataSource);
-			ret += jt.update(sql.toString(), values);
 		}
-		return ret;
+		return values;
 	}
 
 	public static ExtendedDao getDaoForClass(Class cls) {
 		return DaoManager.getInstance().get(cls);
 	}
 	
-	protected int addIndexForBean(Index index, ObjectData obj){
-		ClassIndex ti = new ClassIndex(obj.getClass(), index);
+	protected static List<Map> indexRowsForBean(Index index, ObjectData obj){
 		List<ColumnValues> columnValues = new ArrayList<ColumnValues>();
 		for(String indexColumnName : index.value()) {
 			try {
@@ -298,15 +526,12 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 			}
 		}
 		
-		int ret = 0;
 		List<Map> values = valueCombination(columnValues);
 		for(Map m : values) {
 			m.put("id", obj.id);
 			m.put("created", obj.created);
-			ret += super.createIndex(ti, m);
 		}
-		
-		return ret;
+		return values;
 	}
 	
 	public static List<Map> valueCombination(List<ColumnValues> columnValues) {
@@ -379,19 +604,25 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 	
 	protected int removeIndexesForBean(ObjectData obj){
 		if(obj == null) return 0;
-		int ret = 0;
-		for(Index index : getTableForBean(obj).indexes()) {
-			ClassIndex ti = new ClassIndex();
-			ti.index = index;
-			ti.forClass = obj.getClass();
-			deleteIndexData(ti, obj.id);
+		ShardedBatch batch = new ShardedBatch();
+		IndexCacheEviction eviction = new IndexCacheEviction();
+		int dataSourceId = getDataSourceIdForObjectId(obj.id);
+		for(ClassIndex ti : getClassIndexes(obj.getClass())) {
+			String sql = "delete from " + ti.getTableName() + " where `id`=?";
+			if(!ti.isHashed())
+				batch.add(shardedDataSource, dataSourceId, sql, obj.id);
+			for(Map m : indexRowsForBean(ti.index, obj)) {
+				if(ti.isHashed())
+					batch.add(shardedDataSource, getDataSourceIdForIndexRow(ti, m, dataSourceId), sql, obj.id);
+				eviction.add(ti, m);
+			}
 		}
-		return ret;
+		return executeIndexBatch(batch, eviction);
 	}
 	
 	@Override
 	public int delete(String id) {
-		ObjectData od = getBean(id);
+		ObjectData od = loadBean(id);
 		removeIndexesForBean(od);
 		removeMappingsForBean(od);
 		return super.delete(id);
@@ -408,9 +639,60 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 	
 	@Override
 	public int deleteAll(Collection<String> ids) {
-		int total = 0;
+		if(ids == null || ids.size() == 0)
+			return 0;
+		
+		Map<Class, List<String>> idsByType = new LinkedHashMap<Class, List<String>>();
 		for(String id : ids) {
-			total += delete(id);
+			Class type = getTableManager().getObjectTypeFromId(id);
+			List<String> list = idsByType.get(type);
+			if(list == null) {
+				list = new ArrayList<String>();
+				idsByType.put(type, list);
+			}
+			list.add(id);
+		}
+		
+		ShardedBatch batch = new ShardedBatch();
+		IndexCacheEviction eviction = new IndexCacheEviction();
+		List<ObjectData> objects = new ArrayList<ObjectData>();
+		for(List<String> list : idsByType.values()) {
+			objects.addAll(super.objectLookup(list));
+		}
+		for(ObjectData data : objects) {
+			Class cls = getTableManager().getObjectTypeFromId(data.id);
+			ObjectData obj = (ObjectData) beanCodecs.decode(data, cls);
+			obj.id = data.id;
+			
+			int dataSourceId = getDataSourceIdForObjectId(obj.id);
+			for(ClassIndex ti : getClassIndexes(cls)) {
+				String sql = "delete from " + ti.getTableName() + " where `id` in (:ids)";
+				if(!ti.isHashed())
+					batch.addIn(shardedDataSource, dataSourceId, sql, obj.id);
+				for(Map m : indexRowsForBean(ti.index, obj)) {
+					if(ti.isHashed())
+						batch.addIn(shardedDataSource, getDataSourceIdForIndexRow(ti, m, dataSourceId), sql, obj.id);
+					eviction.add(ti, m);
+				}
+			}
+			
+			for(Mapping mapping : getTableForBean(obj).mappings()) {
+				String sql = "delete from " + new ClassMapping(cls, mapping).getTableName() + " where `sid` in (:ids)";
+				ShardedDataSource mappedDataSource = getDaoForClass(mapping.map2cls()).getShardedDataSource();
+				List<Object> list = new ArrayList();
+				getValues(obj, mapping.column(), list);
+				for(Object pid : list) {
+					if(pid == null) continue;
+					int mappedDataSourceId = mappedDataSource.getDataSourceByObjectId(threadContext.get(), (String)pid).getDataSourceId();
+					batch.addIn(mappedDataSource, mappedDataSourceId, sql, obj.id);
+				}
+			}
+		}
+		executeIndexBatch(batch, eviction);
+		
+		int total = 0;
+		for(List<String> list : idsByType.values()) {
+			total += super.deleteAll(list);
 		}
 		return total;
 	}
@@ -427,7 +709,7 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 				if(sid == null) continue;
 				ExtendedDao dao = getDaoForClass(mapping.map2cls());
 				ExtendedDataSource dataSource = dao.getShardedDataSource().getDataSourceByObjectId(threadContext.get(), (String)sid);
-				JdbcTemplate jt = getJdbcTemplate(dataSource);
+				JdbcTemplate jt = getJdbcTemplate(threadContext.get(), dataSource);
 				String sql = "delete from " + table + " where `sid`='" + obj.id + "'";
 				ret += jt.update(sql);
 			}
@@ -435,19 +717,33 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 		return ret;
 	}
 	
+	/**
+	 * Returns the bean already read in this request when the request context has
+	 * its identity map enabled, otherwise reads it from cache or database.
+	 */
 	@Override
 	public <Z>Z getBean(String id) {
+		RequestContext rc = threadContext.get();
+		Z value = rc == null ? null : (Z) rc.getBean(id);
+		if(value == null) {
+			value = loadBean(id);
+			if(rc != null)
+				rc.putBean(id, value);
+		}
+		return value;
+	}
+	
+	/**
+	 * Reads the bean bypassing the request identity map, used where the stored
+	 * state is needed rather than the instance the caller may have changed.
+	 */
+	protected <Z>Z loadBean(String id) {
 	    long t0 = DateUtil.currentTimeMillis();
 		Z value = null;
 		ObjectData data = super.objectLookup(id);
 		if(data != null){
 			Class cls = getTableManager().getObjectTypeFromId(id);
-			try {
-			    value = (Z) gson.fromJson(data.json, cls);
-//				value = (Z) objectMapper.readValue(data.json, cls);
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
+			value = (Z) beanCodecs.decode(data, cls);
 		}
         long t1 = DateUtil.currentTimeMillis() - t0;
         if(t1>1000) {
@@ -463,12 +759,9 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 		HashMap<String, T> map = new HashMap<String, T>();
 		if(list.size() > 0){
 			Class cls = getTableManager().getObjectTypeFromId(list.get(0).id);
+			BeanCodecs.BeanCodec codec = beanCodecs.getCodec(cls);
 			for (ObjectData data : list) {
-				try {
-					map.put(data.id, (T)objectMapper.readValue(data.json, cls));
-				} catch (Exception e) {
-					throw new RuntimeException(e);
-				}
+				map.put(data.id, (T)codec.decode(data));
 			}
 			for(ObjectData od : list) {
 				result.add(map.get(od.id));
@@ -477,6 +770,26 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 		return result;
 	}
 	
+	@Override
+	public <T> List<BeanView<T>> listBeanViews(Collection<String> ids) {
+		List<BeanView<T>> result = new ArrayList<BeanView<T>>();
+		for(ObjectData data : super.objectLookup(ids)) {
+			Class<T> cls = getTableManager().getObjectTypeFromId(data.id);
+			result.add(new BeanView<T>(data, cls, beanCodecs));
+		}
+		return result;
+	}
+
+	@Override
+	public List<Map<String, Object>> listProjections(Collection<String> ids, String... paths) {
+		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+		List<String> list = Arrays.asList(paths);
+		for(ObjectData data : super.objectLookup(ids)) {
+			result.add(beanCodecs.project(data, list));
+		}
+		return result;
+	}
+
 	@Override
 	public void removeBeans(List<? extends ObjectData> list) {
 		for(ObjectData od : list) {
@@ -563,8 +876,10 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 	@Override
 	public List<ObjectData> indexLookup(Class cls, String field, String indexedId, int offset, int size){
 		ClassIndex index = indexByKeys(cls, Arrays.asList(field));
+		if(index.isHashed())
+			return objectLookup(hashedIndexPage(index, "`" + field + "` = :field", indexedId, getDataSourceIdsForLookup(index, Collections.singletonMap(field, indexedId)), offset, size));
 		ExtendedDataSource dataSource = shardedDataSource.getDataSourceByObjectId(threadContext.get(), indexedId);
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		String sql = "select * from " + index.getTableName() + " where `" + field + "` = :field limit " + offset + ", " + size;
 		List<IndexedData> data = namedjc.query(sql.toString(), Collections.singletonMap("field", indexedId), new IndexedDataRowMapper());
 		List<String> ids = new ArrayList<>();
@@ -574,6 +889,36 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 		return objectLookup(ids);
 	}
 	
+	/**
+	 * @return the ids of a page of hashed index rows, newest first. The rows can
+	 * be on any of the data sources, or on all of them when null, so each returns
+	 * its first offset+size rows and the merge drops the rest.
+	 */
+	private List<String> hashedIndexPage(ClassIndex index, String condition, Object value, Collection<Integer> dataSourceIds, int offset, int size) {
+		String sql = "select * from " + index.getTableName() + " where " + condition + " order by `created` desc, `id` desc limit :size";
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("field", value);
+		params.put("size", offset + size);
+		List<IndexedData> rows = dataSourceIds == null ? indexLookup(sql, params) : indexLookup(dataSourceIds, sql, params);
+		Collections.sort(rows, INDEXED_CREATED_DESC);
+		List<String> ids = new ArrayList<>();
+		for(IndexedData row : rows.subList(Math.min(offset, rows.size()), Math.min(offset + size, rows.size()))){
+			ids.add(row.getId());
+		}
+		return ids;
+	}
+	
+	private static final Comparator<IndexedData> INDEXED_CREATED_DESC = new Comparator<IndexedData>() {
+		@Override
+		public int compare(IndexedData o1, IndexedData o2) {
+			long c1 = ((Number) o1.get("created")).longValue();
+			long c2 = ((Number) o2.get("created")).longValue();
+			if(c1 != c2)
+				return c1 > c2 ? -1 : 1;
+			return o2.getId().compareTo(o1.getId());
+		}
+	};
+	
 	@Override
 	public ClassIndex indexByKeys(Class forClass, String... keys) {
 		List<String> list = new ArrayList<String>();
@@ -585,24 +930,29 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 	
 	@Override
 	public ClassIndex indexByKeys(Class forClass, Collection<String>keys) {
-		ClassIndex ti = new ClassIndex();
-		ti.forClass = forClass;
-		ShardedTable annotation = (ShardedTable) forClass.getAnnotation(ShardedTable.class);
+		List<Object> cacheKey = new ArrayList<Object>(keys.size() + 1);
+		cacheKey.add(forClass);
+		cacheKey.addAll(keys);
+		ClassIndex ti = indexesByKeys.get(cacheKey);
+		if(ti != null)
+			return ti;
+		
 		int maxMatched = 0;
-		for(Index i : annotation.indexes()) {
+		for(ClassIndex ci : getClassIndexes(forClass)) {
 			int matched = 0;
-			for(String s : i.value()) {
+			for(String s : ci.index.value()) {
 				if(keys.contains(s)) {
 					matched++;
 				}
 			}
 			if(matched>maxMatched) {
-				ti.index = i;
+				ti = ci;
 				maxMatched = matched;
 			}
 		}
 		if(maxMatched == 0)
 			throw new RuntimeException("index doesn't exist for " + keys);
+		indexesByKeys.put(cacheKey, ti);
 		return ti;
 	}
 
@@ -627,7 +977,7 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 		ClassMapping cm = ct.getClassMapping(pclass);
 		final ExtendedDataSource dataSource = getShardedDataSource().getDataSourceByObjectId(threadContext.get(), pid);
 		final String sql = "select * from " + cm.getTableName() + " where `pid` = :pid";
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		List<MappedData> data = namedjc.query(sql, Collections.singletonMap("pid", pid), new MappedDataRowMapper());
 		return data;
 	}
@@ -643,7 +993,7 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 		sql = sql.replace("__mappedTable__", cm.getTableName());
 
 		final ExtendedDataSource dataSource = getShardedDataSource().getDataSourceByObjectId(threadContext.get(), params.get("pid").toString());
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		List<MappedData> data = namedjc.query(sql, params, new MappedDataRowMapper());
 
 		return data;
@@ -655,7 +1005,7 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 		ClassMapping cm = ct.getClassMapping(pclass);
 		final ExtendedDataSource dataSource = getShardedDataSource().getDataSourceByObjectId(threadContext.get(), pid);
 		final String sql = "select count(*) from " + cm.getTableName() + " where `pid` = :pid";
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		int cnt = namedjc.queryForObject(sql, Collections.singletonMap("pid", pid), Integer.class);
 		return cnt;
 	}
@@ -671,7 +1021,7 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 		sql = sql.replace("__mappedTable__", cm.getTableName());
 
 		final ExtendedDataSource dataSource = getShardedDataSource().getDataSourceByObjectId(threadContext.get(), params.get("pid").toString());
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		int cnt = namedjc.queryForObject(sql, params, Integer.class);
 
 		return cnt;
@@ -684,27 +1034,46 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 		if(pid != null) {
 			final ExtendedDataSource dataSource = getShardedDataSource().getDataSourceByObjectId(threadContext.get(), pid);
 			final String sql = "select * from " + cm.getTableName() + " where `pid` = :pid order by `created` desc limit " + offset + "," + size;
-			NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
-			List<MappedData> data = namedjc.query(sql, Collections.singletonMap("pid", pid), new MappedDataRowMapper());
+			NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
+			List<MappedData> data = namedjc.query(sql, Collections.singletonMap("pid", pid), new MappedDataRowMapper(true));
 			return data;
 		}
 		else {
-			final List<MappedData> list = new ArrayList<MappedData>();
-			forEachDataSource(new RequestAwareShardRunnable(threadContext.get()) {
-				@Override
-				public void run(int dataSourceId) {
-					ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-					final String sql = "select * from " + cm.getTableName() + " order by `created` desc limit " + offset + "," + size;
-					NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
-					List<MappedData> data = namedjc.query(sql, new MappedDataRowMapper());
-					synchronized (list) {
-						list.addAll(data);
-					}
-				}
-			});
-			return list;
+			final String sql = "select * from " + cm.getTableName() + " order by `created` desc, `sid` desc limit " + (offset + size);
+			return mergeMappedLookup(sql, Collections.<String, Object>emptyMap(), offset, size);
 		}
 	}
+	
+	@Override
+	public List<MappedData> mappedLookup(Class pclass, Class sclass, long beforeCreated, String beforeSid, int size) {
+		ClassMapping cm = new ClassTable(sclass).getClassMapping(pclass);
+		String sql = "select * from " + cm.getTableName() + " where `created` < :created or (`created` = :created and `sid` < :sid) order by `created` desc, `sid` desc limit " + size;
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("created", beforeCreated);
+		params.put("sid", beforeSid);
+		return mergeMappedLookup(sql, params, 0, size);
+	}
+	
+	private List<MappedData> mergeMappedLookup(final String sql, final Map<String, Object> params, int offset, int size) {
+		List<List<MappedData>> list = forEachDataSource(new RequestAwareShardCallable<List<MappedData>>(threadContext.get()) {
+			@Override
+			public List<MappedData> call(int dataSourceId) {
+				ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
+				NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(getTc(), dataSource);
+				return namedjc.query(sql, params, new MappedDataRowMapper(true));
+			}
+		});
+		return SortedMerge.merge(list, MAPPED_CREATED_DESC, offset, size);
+	}
+	
+	private static final Comparator<MappedData> MAPPED_CREATED_DESC = new Comparator<MappedData>() {
+		@Override
+		public int compare(MappedData o1, MappedData o2) {
+			if(o1.getCreated() != o2.getCreated())
+				return o1.getCreated() > o2.getCreated() ? -1 : 1;
+			return o2.getSid().compareTo(o1.getSid());
+		}
+	};
 
 	@Override
 	public List<String> mappedIdLookup(Class pclass, Class sclass, String pid) {
@@ -751,8 +1120,10 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 	@Override
 	public <Z> List<Z> indexBeanLookup(Class<Z> cls, String field, String indexedId, int offset, int size) {
 		ClassIndex index = indexByKeys(cls, Arrays.asList(field));
+		if(index.isHashed())
+			return listBeans(hashedIndexPage(index, "`" + new ColumnPath(field).getColumnName() + "` = :field", indexedId, getDataSourceIdsForLookup(index, Collections.singletonMap(field, indexedId)), offset, size));
 		ExtendedDataSource dataSource = shardedDataSource.getDataSourceByObjectId(threadContext.get(), indexedId);
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		String sql = "select * from " + index.getTableName() + " where `" + new ColumnPath(field).getColumnName() + "` = :field order by `created` desc limit " + offset + ", " + size;
 		List<IndexedData> data = namedjc.query(sql.toString(), Collections.singletonMap("field", indexedId), new IndexedDataRowMapper());
 		List<String> ids = new ArrayList<>();
@@ -765,8 +1136,10 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 	@Override
 	public <Z> List<Z> indexBeanLikeLookup(Class<Z> cls, String field, String indexedId, int offset, int size) {
 		ClassIndex index = indexByKeys(cls, Arrays.asList(field));
+		if(index.isHashed())
+			return listBeans(hashedIndexPage(index, "`" + new ColumnPath(field).getColumnName() + "` like :field", indexedId, null, offset, size));
 		ExtendedDataSource dataSource = shardedDataSource.getDataSourceByObjectId(threadContext.get(), indexedId);
-		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(dataSource);
+		NamedParameterJdbcTemplate namedjc = getNamedParameterJdbcTemplate(threadContext.get(), dataSource);
 		String sql = "select * from " + index.getTableName() + " where `" + new ColumnPath(field).getColumnName() + "` like :field order by `created` desc limit " + offset + ", " + size;
 		List<IndexedData> data = namedjc.query(sql.toString(), Collections.singletonMap("field", indexedId), new IndexedDataRowMapper());
 		List<String> ids = new ArrayList<>();
@@ -792,12 +1165,9 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 			int size) {
 		List<T> objs = objectLookup(cls, offset, size);
 		List<T> beans = new ArrayList<T>();
+		BeanCodecs.BeanCodec codec = beanCodecs.getCodec(cls);
 		for (ObjectData data : objs) {
-			try {
-				beans.add(objectMapper.readValue(data.json, cls));
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
+			beans.add((T) codec.decode(data));
 		}
 		return beans;
 	}
@@ -814,22 +1184,20 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 
 	@Override
 	public <T> void forEachBean(final Class<T> cls, final BeanHandler<T> handler) {
+		final BeanCodecs.BeanCodec codec = beanCodecs.getCodec(cls);
 		ShardRunnable runnable = new RequestAwareShardRunnable(threadContext.get()) {
 			@Override
 			public void run(int dataSourceId) {
 			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
 				String sql = "select json from " + getTableManager().getObjectDataTable(cls);
-				JdbcTemplate jt = getJdbcTemplate(dataSource);
+				JdbcTemplate jt = getJdbcTemplate(getTc(), dataSource);
+				final PayloadColumn payload = new PayloadColumn();
 				jt.query(sql, new RowCallbackHandler() {
 					@Override
 					public void processRow(ResultSet rs) throws SQLException {
-						String json = rs.getString("json");
-						try {
-							T bean = objectMapper.readValue(json, cls);
-							handler.processBean(bean);
-						} catch (Exception e) {
-							throw new RuntimeException(e);
-						}
+						ObjectData row = new ObjectData();
+						payload.read(rs, row);
+						handler.processBean((T) codec.decode(row));
 					}
 				});
 			}
@@ -844,7 +1212,8 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 			public void run(int dataSourceId) {
 			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
 				String sql = "select * from " + getTableManager().getObjectDataTable(cls);
-				JdbcTemplate jt = getJdbcTemplate(dataSource);
+				JdbcTemplate jt = getJdbcTemplate(getTc(), dataSource);
+				final PayloadColumn payload = new PayloadColumn();
 				jt.query(sql, new RowCallbackHandler() {
 					@Override
 					public void processRow(ResultSet arg0) throws SQLException {
@@ -853,7 +1222,7 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 						row.created = arg0.getLong("created");
 						row.updated = arg0.getLong("updated");
 						row.version = arg0.getInt("version");
-						row.json = arg0.getString("json");
+						payload.read(arg0, row);
 						handler.processBean(row);
 					}
 				});
@@ -909,55 +1278,82 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 			Map<String, Object> keyValues, int offset, int size,
 			int dataSourceId) {
 		ClassIndex index = indexByKeys(cls, keyValues.keySet());
-		final StringBuilder sql = new StringBuilder("select * from ").append(index.getTableName());
-		boolean first = true;
-		Boolean emptyCollection = null;
-        Map<String, Object> params = new HashMap<String, Object>();
-        for(String s : keyValues.keySet()) {
-            String columnName = s.toString().replaceAll("\\.", "__");
-            if(first) {
-                sql.append(" where ");
-                first = false;
-            }else {
-                sql.append(" and ");
-            }
-            Object value = keyValues.get(s);
-            if(value != null && value.getClass().isEnum()) {
-                value = value.toString();
-            }
-            params.put(columnName, value);
-			sql.append("`").append(columnName).append("`");
-            if(value == null || value instanceof Collection) {
-                sql.append(" in (:").append(columnName).append(")");
-                Collection c = (Collection) value;
-                if(emptyCollection == null && (value == null || c.size() == 0))
-                    emptyCollection = true;
-            }
-            else {
-                sql.append("=:").append(columnName);
-            }
-        }
-		sql.append(" order by `created` desc ");
-		if(offset>=0)
-			sql.append(" limit :offset,:size");
-		
-		if(offset>=0) {
-			params.put("offset", offset);
-			params.put("size", size);
-		}
-
-		List<IndexedData> data = null;
-		if(Boolean.TRUE.equals(emptyCollection)) 
-			data = new ArrayList<IndexedData>();
-		else
-			data = super.indexLookup(dataSourceId, sql.toString(), params);
-		
 		List<String> ids = new ArrayList<>();
-		for(IndexedData id: data){
+		for(IndexedData id: indexedPageLookup(index, keyValues, offset, size, dataSourceId)){
 			ids.add(id.getId());
 		}
 		return listBeans(ids);
 	}
+	
+	/**
+	 * Index rows of one data source, newest first, a negative offset reads them all.
+	 */
+	protected List<IndexedData> indexedPageLookup(ClassIndex index, Map<String, Object> keyValues, int offset, int size, int dataSourceId) {
+		IndexQueryPlan plan = IndexQueryPlan.get(index, keyValues);
+		Map<String, Object> params = plan.params(keyValues);
+		if(params == null)
+			return new ArrayList<IndexedData>();
+		if(offset < 0)
+			return super.indexLookup(dataSourceId, plan.selectSql, params);
+		params.put("offset", offset);
+		params.put("size", size);
+		return super.indexLookup(dataSourceId, plan.pagedSql, params);
+	}
+	
+	@Override
+	public <P> List<P> indexProjectionLookup(Class cls, String field, Object value, Class<P> projection) {
+		return indexProjectionLookup(cls, Collections.singletonMap(field, value), projection);
+	}
+	
+	@Override
+	public <P> List<P> indexProjectionLookup(Class cls, Map<String, Object> keyValues, Class<P> projection) {
+		ClassIndex index = indexByKeys(cls, keyValues.keySet());
+		return toProjections(index, super.indexedLookup(null, index, keyValues), projection);
+	}
+	
+	@Override
+	public <P> List<P> indexProjectionLookup(Class cls, Map<String, Object> keyValues, int offset, int size, int dataSourceId, Class<P> projection) {
+		ClassIndex index = indexByKeys(cls, keyValues.keySet());
+		return toProjections(index, indexedPageLookup(index, keyValues, offset, size, dataSourceId), projection);
+	}
+	
+	/**
+	 * Converts index rows to projections, dotted index paths become nested objects.
+	 */
+	protected <P> List<P> toProjections(ClassIndex index, List<IndexedData> rows, Class<P> projection) {
+		String[] paths = index.index.value();
+		String[] keys = new String[paths.length];
+		for(int i=0; i<paths.length; i++) {
+			keys[i] = index.getInsertColumns().get(i).toUpperCase();
+		}
+		
+		List<P> result = new ArrayList<P>(rows.size());
+		for(IndexedData row : rows) {
+			Map<String, Object> values = new LinkedHashMap<String, Object>();
+			values.put("id", row.getId());
+			values.put("created", row.getValues().get("CREATED"));
+			for(int i=0; i<paths.length; i++) {
+				putPath(values, paths[i], row.getValues().get(keys[i]));
+			}
+			result.add(beanCodecs.convert(values, projection));
+		}
+		return result;
+	}
+	
+	private static void putPath(Map<String, Object> values, String path, Object value) {
+		int pos = path.indexOf('.');
+		if(pos == -1) {
+			values.put(path, value);
+			return;
+		}
+		String name = path.substring(0, pos);
+		Map<String, Object> child = (Map<String, Object>) values.get(name);
+		if(child == null) {
+			child = new LinkedHashMap<String, Object>();
+			values.put(name, child);
+		}
+		putPath(child, path.substring(pos+1), value);
+	}
 
 	@Override
 	public List<Class> listManagedClasses() {
@@ -966,47 +1362,40 @@ public class ExtendedDaoImpl extends BaseDaoImpl implements ExtendedDao {
 	
 	@Override
 	public <T> List<T> query(final String sql, final RowMapper<T> mapper) {
-		final List<T> list = new ArrayList<T>();
-		forEachDataSource(new RequestAwareShardRunnable(threadContext.get()) {
-			@Override
-			public void run(int dataSourceId) {
-			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				JdbcTemplate jt = getJdbcTemplate(dataSource);
-				List<T> result = jt.query(sql, mapper);
-				synchronized (list) {
-					list.addAll(result);
-				}
-			}
-		});
-		return list;
+		return query(sql, mapper, new QueryOptions(queryTimeout, false)).getResult();
 	}
 
 	@Override
 	public <T> List<T> queryBeans(final String sql, final Class<T>cls) {
-		final List<T> list = new ArrayList<T>();
-		forEachDataSource(new RequestAwareShardRunnable(threadContext.get()) {
+		return queryBeans(sql, cls, new QueryOptions(queryTimeout, false)).getResult();
+	}
+	
+	@Override
+	public <T> PartialResult<List<T>> query(final String sql, final RowMapper<T> mapper, final QueryOptions options) {
+		PartialResult<List<List<T>>> results = forEachDataSource(new RequestAwareShardCallable<List<T>>(threadContext.get()) {
 			@Override
-			public void run(int dataSourceId) {
+			public List<T> call(int dataSourceId) {
 			    ExtendedDataSource dataSource = shardedDataSource.getDataSourceByDataSourceId(getTc(), dataSourceId);
-				JdbcTemplate jt = getJdbcTemplate(dataSource);
-				List<T> result = jt.query(sql, new RowMapper<T>(){
-					@Override
-					public T mapRow(ResultSet rs, int rowNum)
-							throws SQLException {
-						try {
-							String json = rs.getString("json");
-							T obj = objectMapper.readValue(json, cls);
-							return obj;
-						} catch (Exception e) {
-							throw new RuntimeException(e);
-						}
-					}});
-				synchronized (list) {
-					list.addAll(result);
-				}
+				JdbcTemplate jt = getJdbcTemplate(getTc(), dataSource, options);
+				return jt.query(sql, mapper);
 			}
-		});
-		return list;
+		}, options);
+		return new PartialResult<List<T>>(concat(results.getResult()), results.getAnswered(), results.getMissing());
+	}
+
+	@Override
+	public <T> PartialResult<List<T>> queryBeans(final String sql, final Class<T>cls, QueryOptions options) {
+		final BeanCodecs.BeanCodec codec = beanCodecs.getCodec(cls);
+		return query(sql, new RowMapper<T>(){
+			private PayloadColumn payload = new PayloadColumn();
+			
+			@Override
+			public T mapRow(ResultSet rs, int rowNum)
+					throws SQLException {
+				ObjectData row = new ObjectData();
+				payload.read(rs, row);
+				return (T) codec.decode(row);
+			}}, options);
 	}
 
     @Override
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bcgdv.dbshard2.dao.impl;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.bcgdv.dbshard2.dao.ClassIndex;
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Bloom filters of the values of the first column of colocated indexes, one
+ * per index table and data source. A broadcast index lookup only queries the
+ * data sources whose filter may contain the looked-up value.
+ * <p>
+ * The filters live in this JVM and only see the index writes of the daos they
+ * are set on, so they are not consulted unless {@link #setExclusiveWriter(boolean)}
+ * declares that those daos are the only writers of the index tables. Each
+ * rebuild checks that claim: a row the filters did not see turns them off.
+ * <p>
+ * A filter is only consulted after it has been rebuilt from its index table,
+ * until then its data source is always queried. Index writes are queried from
+ * the moment they are made and added once committed, deletes leave their values
+ * in the filter until the next rebuild. Values are compared the way the column
+ * compares them: numbers by value, strings trimmed and without case or accents.
+ * Floating point columns are never filtered.
+ */
+public class IndexFilters {
+	private static Logger logger = Logger.getLogger(IndexFilters.class);
+	
+	private int expectedInsertions = 100000;
+	private double fpp = 0.01;
+	private volatile boolean exclusiveWriter;
+	private volatile boolean foreignWrites;
+	private ConcurrentHashMap<String, Filter> filters = new ConcurrentHashMap<String, Filter>();
+	
+	public int getExpectedInsertions() {
+		return expectedInsertions;
+	}
+	
+	/**
+	 * Expected number of distinct values per index table and data source, 100000 by default.
+	 */
+	public void setExpectedInsertions(int expectedInsertions) {
+		this.expectedInsertions = expectedInsertions;
+	}
+	
+	public double getFpp() {
+		return fpp;
+	}
+	
+	/**
+	 * False positive probability at the expected number of values, 0.01 by default.
+	 */
+	public void setFpp(double fpp) {
+		this.fpp = fpp;
+	}
+	
+	public boolean isExclusiveWriter() {
+		return exclusiveWriter;
+	}
+	
+	/**
+	 * Declares that every index row of the filtered tables is written by daos of
+	 * this JVM that share this instance, false by default. Set it only when no
+	 * other process writes these tables. Setting it back drops the filters,
+	 * they are not kept up to date while off.
+	 */
+	public void setExclusiveWriter(boolean exclusiveWriter) {
+		this.exclusiveWriter = exclusiveWriter;
+		if(!exclusiveWriter)
+			filters.clear();
+	}
+	
+	/**
+	 * @return true once a rebuild found index rows written around the filters, they are not consulted after that
+	 */
+	public boolean isForeignWrites() {
+		return foreignWrites;
+	}
+	
+	/**
+	 * @return true when lookups on the index may be pruned by its filters
+	 */
+	public boolean isEnabled(ClassIndex index) {
+		return exclusiveWriter && !foreignWrites && !index.isHashed() && isFilterable(index.getPlacementColumnType());
+	}
+	
+	/**
+	 * Registers the value of an index row about to be written, the data source
+	 * is queried for it until {@link #endPut} adds it to the filter.
+	 */
+	public void beginPut(ClassIndex index, String dataSource, Object value) {
+		if(value == null)
+			return;
+		getFilter(index.getTableName(), dataSource).beginPut(normalize(value, index.getPlacementColumnType()));
+	}
+	
+	/**
+	 * Ends a {@link #beginPut}, adding the value to the filter unless the write was rolled back.
+	 */
+	public void endPut(ClassIndex index, String dataSource, Object value, boolean committed) {
+		if(value == null)
+			return;
+		getFilter(index.getTableName(), dataSource).endPut(normalize(value, index.getPlacementColumnType()), committed);
+	}
+	
+	/**
+	 * @return false only when the data source has no index row with the value
+	 */
+	public boolean mightContain(ClassIndex index, String dataSource, Object value) {
+		if(!isEnabled(index))
+			return true;
+		Filter filter = filters.get(key(index.getTableName(), dataSource));
+		return filter == null || filter.mightContain(normalize(value, index.getPlacementColumnType()));
+	}
+	
+	public void beginRebuild(ClassIndex index, String dataSource) {
+		getFilter(index.getTableName(), dataSource).beginRebuild(newBloomFilter());
+	}
+	
+	/**
+	 * Adds a value read from the index table during a rebuild.
+	 */
+	public void putRebuilt(ClassIndex index, String dataSource, Object value) {
+		if(value == null)
+			return;
+		String table = index.getTableName();
+		if(!getFilter(table, dataSource).putRebuilt(normalize(value, index.getPlacementColumnType())) && !foreignWrites) {
+			foreignWrites = true;
+			logger.error("index filters turned off, " + table + " on " + dataSource + " has a row written without them: " + value);
+		}
+	}
+	
+	public void endRebuild(ClassIndex index, String dataSource, boolean success) {
+		getFilter(index.getTableName(), dataSource).endRebuild(success);
+	}
+	
+	/**
+	 * @return the value as the column compares it, null when it cannot be told
+	 */
+	static String normalize(Object value, String columnType) {
+		if(!isFilterable(columnType))
+			return null;
+		return ClassIndex.normalizeValue(value, columnType);
+	}
+	
+	private static boolean isFilterable(String columnType) {
+		if(columnType == null)
+			return false;
+		String type = columnType.toLowerCase(Locale.ROOT);
+		return !(type.startsWith("float") || type.startsWith("double") || type.startsWith("real"));
+	}
+	
+	private Filter getFilter(String table, String dataSource) {
+		String key = key(table, dataSource);
+		Filter filter = filters.get(key);
+		if(filter == null) {
+			filters.putIfAbsent(key, new Filter());
+			filter = filters.get(key);
+		}
+		return filter;
+	}
+	
+	private static String key(String table, String dataSource) {
+		return table + "@" + dataSource;
+	}
+	
+	private BloomFilter<CharSequence> newBloomFilter() {
+		return BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), expectedInsertions, fpp);
+	}
+	
+	/**
+	 * Null columns never match a lookup and are left out. A null normalized
+	 * value is one that cannot be told apart from others: a write of it
+	 * drops the filter until the next rebuild and a rebuild reading it fails.
+	 */
+	private static class Filter {
+		private BloomFilter<CharSequence> active;
+		private BloomFilter<CharSequence> rebuilding;
+		private boolean verifying;
+		private Map<String, Integer> pending = new HashMap<String, Integer>();
+		
+		synchronized void beginPut(String value) {
+			if(value == null) {
+				active = null;
+				rebuilding = null;
+				return;
+			}
+			Integer count = pending.get(value);
+			pending.put(value, count == null ? 1 : count + 1);
+		}
+		
+		synchronized void endPut(String value, boolean committed) {
+			if(value == null)
+				return;
+			if(committed) {
+				if(active != null)
+					active.put(value);
+				if(rebuilding != null)
+					rebuilding.put(value);
+			}
+			Integer count = pending.get(value);
+			if(count == null || count <= 1)
+				pending.remove(value);
+			else
+				pending.put(value, count - 1);
+		}
+		
+		synchronized boolean mightContain(String value) {
+			return active == null || value == null || pending.containsKey(value) || active.mightContain(value);
+		}
+		
+		synchronized void beginRebuild(BloomFilter<CharSequence> filter) {
+			rebuilding = filter;
+			verifying = active != null;
+		}
+		
+		/**
+		 * @return false when the filter being replaced should have had the value but has not
+		 */
+		synchronized boolean putRebuilt(String value) {
+			if(rebuilding == null)
+				return true;
+			if(value == null) {
+				rebuilding = null;
+				return true;
+			}
+			rebuilding.put(value);
+			return !verifying || pending.containsKey(value) || active.mightContain(value);
+		}
+		
+		synchronized void endRebuild(boolean success) {
+			if(success && rebuilding != null)
+				active = rebuilding;
+			rebuilding = null;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bcgdv.dbshard2.dao.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.bcgdv.dbshard2.dao.ClassIndex;
+
+/**
+ * The sql of an indexed lookup, built once per index table, key list and
+ * shape of the values (which keys are bound to a collection). Lookups with the
+ * same shape reuse the plan and only bind their parameters.
+ */
+public class IndexQueryPlan {
+	private static final ConcurrentHashMap<Key, IndexQueryPlan> plans = new ConcurrentHashMap<Key, IndexQueryPlan>();
+	
+	public final String[] keys;
+	public final String[] columns;
+	/** select * ... order by `created` desc */
+	public final String selectSql;
+	/** selectSql followed by limit :offset,:size */
+	public final String pagedSql;
+	public final String countSql;
+	
+	private IndexQueryPlan(String table, String[] keys, long collections) {
+		this.keys = keys;
+		this.columns = new String[keys.length];
+		StringBuilder where = new StringBuilder();
+		for(int i=0; i<keys.length; i++) {
+			columns[i] = keys[i].replace(".", "__");
+			where.append(i == 0 ? " where " : " and ");
+			where.append("`").append(columns[i]).append("`");
+			if((collections & (1L << i)) != 0)
+				where.append(" in (:").append(columns[i]).append(")");
+			else
+				where.append("=:").append(columns[i]);
+		}
+		selectSql = "select * from " + table + where + " order by `created` desc ";
+		pagedSql = selectSql + " limit :offset,:size";
+		countSql = "select count(*) from " + table + where;
+	}
+	
+	public static IndexQueryPlan get(ClassIndex index, Map<String, ?> values) {
+		String[] keys = values.keySet().toArray(new String[values.size()]);
+		long collections = 0;
+		for(int i=0; i<keys.length; i++) {
+			Object value = values.get(keys[i]);
+			if(value == null || value instanceof Collection)
+				collections |= 1L << i;
+		}
+		Key key = new Key(index.getTableName(), keys, collections);
+		IndexQueryPlan plan = plans.get(key);
+		if(plan == null) {
+			plan = new IndexQueryPlan(key.table, keys, collections);
+			plans.putIfAbsent(key, plan);
+		}
+		return plan;
+	}
+	
+	/**
+	 * @return the named parameters of the lookup, or null when a key is bound to
+	 * null or an empty collection and the lookup cannot match any row
+	 */
+	public Map<String, Object> params(Map<String, ?> values) {
+		Map<String, Object> params = new HashMap<String, Object>();
+		for(int i=0; i<keys.length; i++) {
+			Object value = values.get(keys[i]);
+			if(value == null || (value instanceof Collection && ((Collection) value).size() == 0))
+				return null;
+			if(value.getClass().isEnum())
+				value = value.toString();
+			params.put(columns[i], value);
+		}
+		return params;
+	}
+	
+	private static class Key {
+		private final String table;
+		private final String[] keys;
+		private final long collections;
+		private final int hash;
+		
+		private Key(String table, String[] keys, long collections) {
+			this.table = table;
+			this.keys = keys;
+			this.collections = collections;
+			this.hash = (table.hashCode() * 31 + Arrays.hashCode(keys)) * 31 + (int) collections;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return collections == other.collections && table.equals(other.table) && Arrays.equals(keys, other.keys);
+		}
+	}
+}
@@ -18,23 +18,50 @@
 package com.bcgdv.dbshard2.dao.impl;
 
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.springframework.jdbc.core.RowMapper;
 
 import com.bcgdv.dbshard2.dao.entity.IndexedData;
 
+/**
+ * Maps index table rows. Column names are read and upper cased once per
+ * result set, not once per column and row.
+ */
 public class IndexedDataRowMapper implements RowMapper<IndexedData>{
+	private ResultSet resultSet;
+	private String[] keys;
+	private int idColumn;
 	
 	@Override
 	public IndexedData mapRow(ResultSet arg0, int arg1)
 			throws SQLException {
+		if(arg0 != resultSet)
+			readMetaData(arg0);
 		IndexedData row = new IndexedData();
-		row.setId(arg0.getString("id"));
-		for(int i=0; i<arg0.getMetaData().getColumnCount(); i++) {
-			String columnName = arg0.getMetaData().getColumnName(i+1);
-			row.put(columnName, arg0.getObject(i+1));
+		row.setId(arg0.getString(idColumn));
+		Map<String, Object> values = new HashMap<String, Object>(keys.length * 4 / 3 + 1);
+		for(int i=0; i<keys.length; i++) {
+			values.put(keys[i], arg0.getObject(i+1));
 		}
+		row.setUpperCaseValues(values);
 		return row;
 	}
-}
\ No newline at end of file
+	
+	private void readMetaData(ResultSet rs) throws SQLException {
+		ResultSetMetaData metaData = rs.getMetaData();
+		keys = new String[metaData.getColumnCount()];
+		idColumn = -1;
+		for(int i=0; i<keys.length; i++) {
+			keys[i] = metaData.getColumnName(i+1).toUpperCase();
+			if("ID".equals(keys[i]))
+				idColumn = i+1;
+		}
+		if(idColumn == -1)
+			idColumn = rs.findColumn("id");
+		resultSet = rs;
+	}
+}
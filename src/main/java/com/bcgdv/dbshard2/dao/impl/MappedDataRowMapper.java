@@ -25,12 +25,23 @@ import org.springframework.jdbc.core.RowMapper;
 import com.bcgdv.dbshard2.dao.entity.MappedData;
 
 public class MappedDataRowMapper implements RowMapper<MappedData>{
+	private boolean withCreated;
+	
+	public MappedDataRowMapper() {
+	}
+	
+	public MappedDataRowMapper(boolean withCreated) {
+		this.withCreated = withCreated;
+	}
+	
 	@Override
 	public MappedData mapRow(ResultSet arg0, int arg1)
 			throws SQLException {
 		MappedData row = new MappedData();
 		row.setPid(arg0.getString("pid"));
 		row.setSid(arg0.getString("sid"));
+		if(withCreated)
+			row.setCreated(arg0.getLong("created"));
 		return row;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import com.bcgdv.dbshard2.dao.entity.ObjectData;
+import com.bcgdv.dbshard2.util.BinaryJson;
+import com.bcgdv.dbshard2.util.CompressedPayload;
+
+/**
+ * Reads the `json` column of an object table into json or payload of an
+ * ObjectData. The column type is looked up on the first row only; a blob column
+ * may still hold rows written as json before the class switched to binary.
+ * 
+ * Not thread safe, use one instance per query.
+ */
+class PayloadColumn {
+	private final String column;
+	private Boolean binary;
+	
+	PayloadColumn() {
+		this("json");
+	}
+	
+	PayloadColumn(String column) {
+		this.column = column;
+	}
+	
+	void read(ResultSet rs, ObjectData row) throws SQLException {
+		if(binary == null)
+			binary = isBinaryType(rs.getMetaData().getColumnType(rs.findColumn(column)));
+		if(binary) {
+			byte[] bytes = rs.getBytes(column);
+			if(BinaryJson.isBinary(bytes) || CompressedPayload.isCompressed(bytes))
+				row.payload = bytes;
+			else
+				row.json = bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+		}
+		else {
+			row.json = rs.getString(column);
+		}
+	}
+	
+	static boolean isBinaryType(int type) {
+		return type == Types.BLOB || type == Types.BINARY || type == Types.VARBINARY || type == Types.LONGVARBINARY;
+	}
+}
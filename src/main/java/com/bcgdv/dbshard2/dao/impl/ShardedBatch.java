@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.bcgdv.dbshard2.dao.ShardedDataSource;
+
+/**
+ * Collects parameterized statements per data source so that each distinct sql
+ * can be sent to its data source as one jdbc batch. Statements added with
+ * {@link #addIn} use a single named parameter <code>:ids</code> and are sent as
+ * one statement per data source with all collected values. Statements for the
+ * same data source id of different sharded data sources are kept apart.
+ */
+public class ShardedBatch {
+	private Map<Integer, Map<List<Object>, Statement>> batches = new LinkedHashMap<Integer, Map<List<Object>, Statement>>();
+	
+	public void add(ShardedDataSource shardedDataSource, int dataSourceId, String sql, Object... args) {
+		getStatement(shardedDataSource, dataSourceId, sql).args.add(args);
+	}
+	
+	public void addIn(ShardedDataSource shardedDataSource, int dataSourceId, String sql, Object id) {
+		getStatement(shardedDataSource, dataSourceId, sql).ids.add(id);
+	}
+	
+	private Statement getStatement(ShardedDataSource shardedDataSource, int dataSourceId, String sql) {
+		Map<List<Object>, Statement> statements = batches.get(dataSourceId);
+		if(statements == null) {
+			statements = new LinkedHashMap<List<Object>, Statement>();
+			batches.put(dataSourceId, statements);
+		}
+		List<Object> key = Arrays.<Object>asList(shardedDataSource, sql);
+		Statement statement = statements.get(key);
+		if(statement == null) {
+			statement = new Statement(shardedDataSource, sql);
+			statements.put(key, statement);
+		}
+		return statement;
+	}
+	
+	public Set<Integer> getDataSourceIds() {
+		return batches.keySet();
+	}
+	
+	/**
+	 * @return the statements of a data source id in the order they were first added
+	 */
+	public Collection<Statement> getStatements(int dataSourceId) {
+		return batches.get(dataSourceId).values();
+	}
+	
+	public boolean isEmpty() {
+		return batches.isEmpty();
+	}
+	
+	public static class Statement {
+		public ShardedDataSource shardedDataSource;
+		public String sql;
+		public List<Object[]> args = new ArrayList<Object[]>();
+		public LinkedHashSet<Object> ids = new LinkedHashSet<Object>();
+		
+		public Statement(ShardedDataSource shardedDataSource, String sql) {
+			this.shardedDataSource = shardedDataSource;
+			this.sql = sql;
+		}
+	}
+}
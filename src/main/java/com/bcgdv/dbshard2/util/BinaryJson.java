@@ -0,0 +1,699 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.core.base.GeneratorBase;
+import com.fasterxml.jackson.core.base.ParserMinimalBase;
+import com.fasterxml.jackson.core.json.JsonReadContext;
+import com.fasterxml.jackson.core.json.JsonWriteContext;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Compact binary form of a json document: field names are written once per
+ * document and referenced by index afterwards, integers are zigzag varints,
+ * strings are length prefixed utf-8 and nothing is quoted or escaped.
+ * 
+ * Beans are written and read through a streaming generator and parser, so
+ * databind works on this format exactly as on json text. Documents start with
+ * a magic byte that cannot start a json text, so a column can hold both forms
+ * and readers tell them apart by the first byte.
+ */
+public class BinaryJson {
+	public static final byte MAGIC = (byte) 0xB5;
+	public static final byte VERSION = 1;
+	
+	private static final int START_OBJECT = 1;
+	private static final int END_OBJECT = 2;
+	private static final int START_ARRAY = 3;
+	private static final int END_ARRAY = 4;
+	private static final int NEW_NAME = 5;
+	private static final int NAME_REF = 6;
+	private static final int STRING = 7;
+	private static final int INT = 8;
+	private static final int BIG_INTEGER = 9;
+	private static final int DOUBLE = 10;
+	private static final int BIG_DECIMAL = 11;
+	private static final int TRUE = 12;
+	private static final int FALSE = 13;
+	private static final int NULL = 14;
+	private static final int BINARY = 15;
+	
+	private static final JsonFactory jsonFactory = new JsonFactory();
+	
+	public static boolean isBinary(byte[] bytes) {
+		return bytes != null && bytes.length > 1 && bytes[0] == MAGIC;
+	}
+	
+	public static byte[] encode(ObjectWriter writer, Object value) throws IOException {
+		Generator generator = new Generator(null);
+		writer.writeValue(generator, value);
+		return generator.toByteArray();
+	}
+	
+	/**
+	 * Encodes the current value of the parser, e.g. json text.
+	 */
+	public static byte[] encode(JsonParser parser) throws IOException {
+		Generator generator = new Generator(parser.getCodec());
+		if(parser.getCurrentToken() == null)
+			parser.nextToken();
+		generator.copyCurrentStructure(parser);
+		return generator.toByteArray();
+	}
+	
+	public static <T> T decode(ObjectReader reader, byte[] bytes) throws IOException {
+		return reader.readValue(parser(bytes, null));
+	}
+	
+	public static JsonParser parser(byte[] bytes, ObjectCodec codec) throws IOException {
+		return new Parser(bytes, codec);
+	}
+	
+	public static String toJson(byte[] bytes) {
+		try {
+			StringWriter writer = new StringWriter(bytes.length * 2);
+			JsonGenerator generator = jsonFactory.createGenerator(writer);
+			JsonParser parser = parser(bytes, null);
+			parser.nextToken();
+			generator.copyCurrentStructure(parser);
+			generator.close();
+			return writer.toString();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static class Generator extends GeneratorBase {
+		private byte[] buf = new byte[256];
+		private int len;
+		private Map<String, Integer> names = new HashMap<String, Integer>();
+		
+		Generator(ObjectCodec codec) {
+			super(JsonGenerator.Feature.collectDefaults(), codec);
+			buf[len++] = MAGIC;
+			buf[len++] = VERSION;
+		}
+		
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, len);
+		}
+		
+		@Override
+		public void writeStartArray() throws IOException {
+			_verifyValueWrite("start an array");
+			_writeContext = _writeContext.createChildArrayContext();
+			writeType(START_ARRAY);
+		}
+		
+		@Override
+		public void writeEndArray() throws IOException {
+			if(!_writeContext.inArray())
+				_reportError("Current context not an array but " + _writeContext.getTypeDesc());
+			_writeContext = _writeContext.getParent();
+			writeType(END_ARRAY);
+		}
+		
+		@Override
+		public void writeStartObject() throws IOException {
+			_verifyValueWrite("start an object");
+			_writeContext = _writeContext.createChildObjectContext();
+			writeType(START_OBJECT);
+		}
+		
+		@Override
+		public void writeEndObject() throws IOException {
+			if(!_writeContext.inObject())
+				_reportError("Current context not an object but " + _writeContext.getTypeDesc());
+			_writeContext = _writeContext.getParent();
+			writeType(END_OBJECT);
+		}
+		
+		@Override
+		public void writeFieldName(String name) throws IOException {
+			if(_writeContext.writeFieldName(name) == JsonWriteContext.STATUS_EXPECT_VALUE)
+				_reportError("Can not write a field name, expecting a value");
+			Integer ref = names.get(name);
+			if(ref != null) {
+				writeType(NAME_REF);
+				writeVarint(ref);
+			}
+			else {
+				writeType(NEW_NAME);
+				writeUtf8(name);
+				names.put(name, names.size());
+			}
+		}
+		
+		@Override
+		public void writeString(String text) throws IOException {
+			if(text == null) {
+				writeNull();
+				return;
+			}
+			_verifyValueWrite("write a string");
+			writeType(STRING);
+			writeUtf8(text);
+		}
+		
+		@Override
+		public void writeString(char[] text, int offset, int length) throws IOException {
+			writeString(new String(text, offset, length));
+		}
+		
+		@Override
+		public void writeRawUTF8String(byte[] text, int offset, int length) throws IOException {
+			writeString(new String(text, offset, length, StandardCharsets.UTF_8));
+		}
+		
+		@Override
+		public void writeUTF8String(byte[] text, int offset, int length) throws IOException {
+			writeString(new String(text, offset, length, StandardCharsets.UTF_8));
+		}
+		
+		@Override
+		public void writeRaw(String text) throws IOException {
+			throw new UnsupportedOperationException("raw output is not supported by binary json");
+		}
+		
+		@Override
+		public void writeRaw(String text, int offset, int len) throws IOException {
+			writeRaw(text);
+		}
+		
+		@Override
+		public void writeRaw(char[] text, int offset, int len) throws IOException {
+			writeRaw(new String(text, offset, len));
+		}
+		
+		@Override
+		public void writeRaw(char c) throws IOException {
+			writeRaw(String.valueOf(c));
+		}
+		
+		/**
+		 * Raw values are json text, they are stored as the tokens they parse to.
+		 */
+		@Override
+		public void writeRawValue(String text) throws IOException {
+			JsonParser parser = jsonFactory.createParser(text);
+			parser.nextToken();
+			copyCurrentStructure(parser);
+		}
+		
+		@Override
+		public void writeRawValue(String text, int offset, int len) throws IOException {
+			writeRawValue(text.substring(offset, offset + len));
+		}
+		
+		@Override
+		public void writeRawValue(char[] text, int offset, int len) throws IOException {
+			writeRawValue(new String(text, offset, len));
+		}
+		
+		@Override
+		public void writeBinary(Base64Variant b64variant, byte[] data, int offset, int length) throws IOException {
+			if(data == null) {
+				writeNull();
+				return;
+			}
+			_verifyValueWrite("write a binary value");
+			writeType(BINARY);
+			writeVarint(length);
+			ensure(length);
+			System.arraycopy(data, offset, buf, len, length);
+			len += length;
+		}
+		
+		@Override
+		public void writeNumber(int v) throws IOException {
+			writeNumber((long) v);
+		}
+		
+		@Override
+		public void writeNumber(long v) throws IOException {
+			_verifyValueWrite("write a number");
+			writeType(INT);
+			writeVarint((v << 1) ^ (v >> 63));
+		}
+		
+		@Override
+		public void writeNumber(BigInteger v) throws IOException {
+			if(v == null) {
+				writeNull();
+				return;
+			}
+			if(v.bitLength() < 64) {
+				writeNumber(v.longValue());
+				return;
+			}
+			_verifyValueWrite("write a number");
+			writeType(BIG_INTEGER);
+			writeUtf8(v.toString());
+		}
+		
+		@Override
+		public void writeNumber(double v) throws IOException {
+			_verifyValueWrite("write a number");
+			writeType(DOUBLE);
+			long bits = Double.doubleToLongBits(v);
+			ensure(8);
+			for(int i=56; i>=0; i-=8)
+				buf[len++] = (byte) (bits >>> i);
+		}
+		
+		@Override
+		public void writeNumber(float v) throws IOException {
+			writeNumber((double) v);
+		}
+		
+		@Override
+		public void writeNumber(BigDecimal v) throws IOException {
+			if(v == null) {
+				writeNull();
+				return;
+			}
+			_verifyValueWrite("write a number");
+			writeType(BIG_DECIMAL);
+			writeUtf8(v.toString());
+		}
+		
+		@Override
+		public void writeNumber(String encodedValue) throws IOException {
+			if(encodedValue == null) {
+				writeNull();
+				return;
+			}
+			try {
+				writeNumber(Long.parseLong(encodedValue));
+			} catch (NumberFormatException e) {
+				writeNumber(new BigDecimal(encodedValue));
+			}
+		}
+		
+		@Override
+		public void writeBoolean(boolean state) throws IOException {
+			_verifyValueWrite("write a boolean value");
+			writeType(state ? TRUE : FALSE);
+		}
+		
+		@Override
+		public void writeNull() throws IOException {
+			_verifyValueWrite("write a null");
+			writeType(NULL);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+		}
+		
+		@Override
+		protected void _releaseBuffers() {
+		}
+		
+		@Override
+		protected void _verifyValueWrite(String typeMsg) throws IOException {
+			if(_writeContext.writeValue() == JsonWriteContext.STATUS_EXPECT_NAME)
+				_reportError("Can not " + typeMsg + ", expecting field name");
+		}
+		
+		private void ensure(int n) {
+			if(len + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+		}
+		
+		private void writeType(int type) {
+			ensure(1);
+			buf[len++] = (byte) type;
+		}
+		
+		private void writeVarint(long value) {
+			ensure(10);
+			while((value & ~0x7FL) != 0) {
+				buf[len++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buf[len++] = (byte) value;
+		}
+		
+		private void writeUtf8(String s) {
+			int length = s.length();
+			boolean ascii = true;
+			for(int i=0; i<length; i++) {
+				if(s.charAt(i) >= 0x80) {
+					ascii = false;
+					break;
+				}
+			}
+			if(ascii) {
+				writeVarint(length);
+				ensure(length);
+				for(int i=0; i<length; i++)
+					buf[len++] = (byte) s.charAt(i);
+			}
+			else {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				writeVarint(bytes.length);
+				ensure(bytes.length);
+				System.arraycopy(bytes, 0, buf, len, bytes.length);
+				len += bytes.length;
+			}
+		}
+	}
+	
+	private static class Parser extends ParserMinimalBase {
+		private final byte[] bytes;
+		private int pos;
+		private ObjectCodec codec;
+		private boolean closed;
+		private JsonReadContext context = JsonReadContext.createRootContext(null);
+		private List<String> names = new ArrayList<String>();
+		private String text;
+		private Number number;
+		private NumberType numberType;
+		private byte[] binary;
+		
+		Parser(byte[] bytes, ObjectCodec codec) throws IOException {
+			if(!isBinary(bytes))
+				throw new IOException("not binary json");
+			if(bytes[1] != VERSION)
+				throw new IOException("unsupported binary json version " + bytes[1]);
+			this.bytes = bytes;
+			this.pos = 2;
+			this.codec = codec;
+		}
+		
+		@Override
+		public JsonToken nextToken() throws IOException {
+			text = null;
+			number = null;
+			binary = null;
+			if(closed || pos >= bytes.length) {
+				if(!context.inRoot())
+					_reportInvalidEOF(": unclosed " + context.getTypeDesc());
+				return _currToken = null;
+			}
+			int type = bytes[pos++] & 0xFF;
+			switch (type) {
+			case START_OBJECT:
+				context = context.createChildObjectContext(-1, -1);
+				return _currToken = JsonToken.START_OBJECT;
+			case END_OBJECT:
+				context = context.getParent();
+				return _currToken = JsonToken.END_OBJECT;
+			case START_ARRAY:
+				context = context.createChildArrayContext(-1, -1);
+				return _currToken = JsonToken.START_ARRAY;
+			case END_ARRAY:
+				context = context.getParent();
+				return _currToken = JsonToken.END_ARRAY;
+			case NEW_NAME: {
+				String name = readString();
+				names.add(name);
+				context.setCurrentName(name);
+				return _currToken = JsonToken.FIELD_NAME;
+			}
+			case NAME_REF:
+				context.setCurrentName(names.get((int) readVarint()));
+				return _currToken = JsonToken.FIELD_NAME;
+			case STRING:
+				text = readString();
+				return _currToken = JsonToken.VALUE_STRING;
+			case INT: {
+				long zigzag = readVarint();
+				long value = (zigzag >>> 1) ^ -(zigzag & 1);
+				if(value == (int) value) {
+					number = Integer.valueOf((int) value);
+					numberType = NumberType.INT;
+				}
+				else {
+					number = Long.valueOf(value);
+					numberType = NumberType.LONG;
+				}
+				return _currToken = JsonToken.VALUE_NUMBER_INT;
+			}
+			case BIG_INTEGER:
+				number = new BigInteger(readString());
+				numberType = NumberType.BIG_INTEGER;
+				return _currToken = JsonToken.VALUE_NUMBER_INT;
+			case DOUBLE: {
+				long bits = 0;
+				for(int i=0; i<8; i++)
+					bits = (bits << 8) | (bytes[pos++] & 0xFF);
+				number = Double.valueOf(Double.longBitsToDouble(bits));
+				numberType = NumberType.DOUBLE;
+				return _currToken = JsonToken.VALUE_NUMBER_FLOAT;
+			}
+			case BIG_DECIMAL:
+				number = new BigDecimal(readString());
+				numberType = NumberType.BIG_DECIMAL;
+				return _currToken = JsonToken.VALUE_NUMBER_FLOAT;
+			case TRUE:
+				return _currToken = JsonToken.VALUE_TRUE;
+			case FALSE:
+				return _currToken = JsonToken.VALUE_FALSE;
+			case NULL:
+				return _currToken = JsonToken.VALUE_NULL;
+			case BINARY: {
+				int length = (int) readVarint();
+				binary = Arrays.copyOfRange(bytes, pos, pos + length);
+				pos += length;
+				return _currToken = JsonToken.VALUE_EMBEDDED_OBJECT;
+			}
+			default:
+				_reportError("corrupted binary json, type " + type + " at " + (pos - 1));
+				return null;
+			}
+		}
+		
+		private long readVarint() {
+			long value = 0;
+			for(int shift = 0; ; shift += 7) {
+				int b = bytes[pos++];
+				value |= (long) (b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					return value;
+			}
+		}
+		
+		private String readString() {
+			int length = (int) readVarint();
+			String value = new String(bytes, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return value;
+		}
+		
+		@Override
+		protected void _handleEOF() {
+		}
+		
+		@Override
+		public String getCurrentName() throws IOException {
+			if((_currToken == JsonToken.START_OBJECT || _currToken == JsonToken.START_ARRAY) && context.getParent() != null)
+				return context.getParent().getCurrentName();
+			return context.getCurrentName();
+		}
+		
+		@Override
+		public void overrideCurrentName(String name) {
+			try {
+				context.setCurrentName(name);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		@Override
+		public JsonStreamContext getParsingContext() {
+			return context;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			closed = true;
+		}
+		
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+		
+		@Override
+		public String getText() throws IOException {
+			if(_currToken == null)
+				return null;
+			switch (_currToken) {
+			case VALUE_STRING:
+				return text;
+			case FIELD_NAME:
+				return context.getCurrentName();
+			case VALUE_NUMBER_INT:
+			case VALUE_NUMBER_FLOAT:
+				return number.toString();
+			default:
+				return _currToken.asString();
+			}
+		}
+		
+		@Override
+		public char[] getTextCharacters() throws IOException {
+			String s = getText();
+			return s == null ? null : s.toCharArray();
+		}
+		
+		@Override
+		public boolean hasTextCharacters() {
+			return false;
+		}
+		
+		@Override
+		public int getTextLength() throws IOException {
+			String s = getText();
+			return s == null ? 0 : s.length();
+		}
+		
+		@Override
+		public int getTextOffset() throws IOException {
+			return 0;
+		}
+		
+		@Override
+		public byte[] getBinaryValue(Base64Variant b64variant) throws IOException {
+			if(_currToken == JsonToken.VALUE_EMBEDDED_OBJECT)
+				return binary;
+			if(_currToken == JsonToken.VALUE_STRING) {
+				ByteArrayBuilder builder = new ByteArrayBuilder();
+				_decodeBase64(text, builder, b64variant);
+				return builder.toByteArray();
+			}
+			_reportError("Current token (" + _currToken + ") not VALUE_STRING or VALUE_EMBEDDED_OBJECT, can not access as binary");
+			return null;
+		}
+		
+		@Override
+		public Object getEmbeddedObject() throws IOException {
+			return _currToken == JsonToken.VALUE_EMBEDDED_OBJECT ? binary : null;
+		}
+		
+		@Override
+		public ObjectCodec getCodec() {
+			return codec;
+		}
+		
+		@Override
+		public void setCodec(ObjectCodec codec) {
+			this.codec = codec;
+		}
+		
+		@Override
+		public Version version() {
+			return Version.unknownVersion();
+		}
+		
+		@Override
+		public JsonLocation getTokenLocation() {
+			return new JsonLocation(null, pos, -1, -1);
+		}
+		
+		@Override
+		public JsonLocation getCurrentLocation() {
+			return new JsonLocation(null, pos, -1, -1);
+		}
+		
+		private Number number() throws IOException {
+			if(number == null)
+				_reportError("Current token (" + _currToken + ") not numeric, can not use numeric value accessors");
+			return number;
+		}
+		
+		@Override
+		public Number getNumberValue() throws IOException {
+			return number();
+		}
+		
+		@Override
+		public NumberType getNumberType() throws IOException {
+			return number == null ? null : numberType;
+		}
+		
+		@Override
+		public int getIntValue() throws IOException {
+			return number().intValue();
+		}
+		
+		@Override
+		public long getLongValue() throws IOException {
+			return number().longValue();
+		}
+		
+		@Override
+		public BigInteger getBigIntegerValue() throws IOException {
+			Number n = number();
+			if(n instanceof BigInteger)
+				return (BigInteger) n;
+			if(n instanceof BigDecimal)
+				return ((BigDecimal) n).toBigInteger();
+			if(n instanceof Double)
+				return BigDecimal.valueOf(n.doubleValue()).toBigInteger();
+			return BigInteger.valueOf(n.longValue());
+		}
+		
+		@Override
+		public float getFloatValue() throws IOException {
+			return number().floatValue();
+		}
+		
+		@Override
+		public double getDoubleValue() throws IOException {
+			return number().doubleValue();
+		}
+		
+		@Override
+		public BigDecimal getDecimalValue() throws IOException {
+			Number n = number();
+			if(n instanceof BigDecimal)
+				return (BigDecimal) n;
+			if(n instanceof BigInteger)
+				return new BigDecimal((BigInteger) n);
+			if(n instanceof Double)
+				return BigDecimal.valueOf(n.doubleValue());
+			return BigDecimal.valueOf(n.longValue());
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.util;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.bcgdv.dbshard2.dao.PayloadCompression;
+
+/**
+ * Compressed payloads are a marker byte, the compression, the varint length of
+ * the raw bytes and the compressed bytes. The marker cannot start json text or
+ * {@link BinaryJson}, so readers recognize compressed values by the first byte.
+ * 
+ * Deflaters and inflaters hold native memory and are kept one per thread.
+ */
+public class CompressedPayload {
+	public static final byte MAGIC = (byte) 0xB6;
+	
+	private static final int DEFLATE = 1;
+	
+	private static ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED, true);
+		}
+	};
+	
+	private static ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	
+	public static boolean isCompressed(byte[] bytes) {
+		return bytes != null && bytes.length > 2 && bytes[0] == MAGIC;
+	}
+	
+	/**
+	 * @return the compressed form, or the raw bytes when compression does not make them smaller
+	 */
+	public static byte[] compress(PayloadCompression compression, byte[] raw) {
+		if(compression != PayloadCompression.DEFLATE)
+			return raw;
+		
+		byte[] out = new byte[raw.length + 16];
+		out[0] = MAGIC;
+		out[1] = DEFLATE;
+		int pos = writeVarint(out, 2, raw.length);
+		
+		Deflater d = deflater.get();
+		d.reset();
+		d.setInput(raw);
+		d.finish();
+		pos += d.deflate(out, pos, out.length - pos);
+		if(!d.finished() || pos >= raw.length)
+			return raw;
+		return Arrays.copyOf(out, pos);
+	}
+	
+	public static byte[] decompress(byte[] bytes) {
+		if(!isCompressed(bytes))
+			return bytes;
+		if(bytes[1] != DEFLATE)
+			throw new RuntimeException("unknown payload compression " + bytes[1]);
+		
+		int length = 0;
+		int pos = 2;
+		for(int shift = 0; ; shift += 7) {
+			int b = bytes[pos++];
+			length |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				break;
+		}
+		
+		byte[] raw = new byte[length];
+		Inflater i = inflater.get();
+		i.reset();
+		i.setInput(bytes, pos, bytes.length - pos);
+		try {
+			int n = 0;
+			while(n < length && !i.finished()) {
+				int read = i.inflate(raw, n, length - n);
+				if(read == 0 && (i.needsInput() || i.needsDictionary()))
+					break;
+				n += read;
+			}
+			if(n != length)
+				throw new RuntimeException("truncated compressed payload");
+		} catch (DataFormatException e) {
+			throw new RuntimeException("corrupted compressed payload", e);
+		}
+		return raw;
+	}
+	
+	private static int writeVarint(byte[] out, int pos, int value) {
+		while((value & ~0x7F) != 0) {
+			out[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[pos++] = (byte) value;
+		return pos;
+	}
+}
@@ -21,6 +21,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 
+/**
+ * @deprecated use {@link ScatterGather}, which runs one task on the calling thread,
+ * supports a deadline and keeps every failure.
+ */
+@Deprecated
 public class MultiTask {
 	private List<Runnable> tasks;
 	private int finished;
@@ -0,0 +1,302 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Fan-out of one task per partition. Without a timeout all tasks but the first
+ * are submitted to the executor and the first one runs on the calling thread.
+ * With a timeout every task goes to the executor, so the deadline bounds all of
+ * them. Each task completes its own future, so results are collected without
+ * any shared lock.
+ * 
+ * By default the first failure ends the wait, and at the deadline the tasks
+ * still running are cancelled with interruption. Abandoning tasks is only safe for reads
+ * that hold nothing the caller goes on using. Writes, and tasks that share the
+ * caller's connections, set waitForAll: every task is waited for, none is
+ * cancelled whatever the timeout, and the first failure is thrown once all are
+ * done. With allowPartial, failed or late tasks are reported through
+ * {@link Result#isAnswered(int)} instead of an exception.
+ */
+public class ScatterGather<R> {
+	private static Logger logger = Logger.getLogger(ScatterGather.class);
+	
+	private List<Callable<R>> tasks = new ArrayList<Callable<R>>();
+	private long timeout;
+	private boolean allowPartial;
+	private boolean waitForAll;
+	
+	public ScatterGather<R> addTask(Callable<R> task) {
+		tasks.add(task);
+		return this;
+	}
+	
+	public int size() {
+		return tasks.size();
+	}
+	
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Deadline in milliseconds for the whole fan-out, 0 waits forever.
+	 */
+	public ScatterGather<R> setTimeout(long timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	public boolean isAllowPartial() {
+		return allowPartial;
+	}
+
+	public ScatterGather<R> setAllowPartial(boolean allowPartial) {
+		this.allowPartial = allowPartial;
+		return this;
+	}
+
+	public boolean isWaitForAll() {
+		return waitForAll;
+	}
+
+	/**
+	 * Waits for every task to finish and never cancels one, the timeout is ignored.
+	 */
+	public ScatterGather<R> setWaitForAll(boolean waitForAll) {
+		this.waitForAll = waitForAll;
+		return this;
+	}
+
+	/**
+	 * Starts all tasks and returns their futures in task order. Unless there is a
+	 * deadline to keep, the first task runs on the calling thread and this
+	 * returns after it is done.
+	 */
+	public List<CompletableFuture<R>> submit(ExecutorService es) {
+		boolean inline = timeout <= 0 || waitForAll;
+		List<CompletableFuture<R>> futures = new ArrayList<CompletableFuture<R>>(tasks.size());
+		for(int i=inline ? 1 : 0; i<tasks.size(); i++) {
+			TaskFuture<R> future = new TaskFuture<R>(tasks.get(i));
+			future.task = es.submit(future);
+			futures.add(future);
+		}
+		if(inline && tasks.size() > 0) {
+			TaskFuture<R> future = new TaskFuture<R>(tasks.get(0));
+			future.run();
+			futures.add(0, future);
+		}
+		return futures;
+	}
+	
+	/**
+	 * Runs all tasks and waits for them, up to the timeout if one is set.
+	 */
+	public Result<R> execute(ExecutorService es) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		List<CompletableFuture<R>> futures = submit(es);
+		
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable t) {
+				done.complete(null);
+			}
+		});
+		if(!allowPartial && !waitForAll) {
+			// fail fast, the first error ends the wait
+			for(CompletableFuture<R> future : futures) {
+				future.whenComplete(new BiConsumer<R, Throwable>() {
+					@Override
+					public void accept(R r, Throwable t) {
+						if(t != null)
+							done.complete(null);
+					}
+				});
+			}
+		}
+		
+		if(waitForAll) {
+			awaitAll(done);
+		}
+		else {
+			try {
+				if(timeout > 0)
+					done.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				else
+					done.get();
+			} catch (InterruptedException e) {
+				cancel(futures);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e);
+			} catch (TimeoutException e) {
+				logger.warn("scatter gather timed out after " + timeout + "ms");
+			}
+			cancel(futures);
+		}
+		
+		Result<R> result = new Result<R>(futures);
+		if(!allowPartial && !result.isComplete())
+			throw result.getException();
+		return result;
+	}
+	
+	/**
+	 * Waits for all tasks even when interrupted, the interrupt is restored afterwards.
+	 */
+	private static void awaitAll(CompletableFuture<Void> done) {
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	private static <R> void cancel(List<CompletableFuture<R>> futures) {
+		for(CompletableFuture<R> future : futures) {
+			if(!future.isDone())
+				future.cancel(true);
+		}
+	}
+	
+	private static class TaskFuture<R> extends CompletableFuture<R> implements Runnable {
+		private Callable<R> callable;
+		private volatile Future<?> task;
+		
+		TaskFuture(Callable<R> callable) {
+			this.callable = callable;
+		}
+		
+		@Override
+		public void run() {
+			if(isDone())
+				return;
+			try {
+				complete(callable.call());
+			} catch (Throwable t) {
+				completeExceptionally(t);
+			}
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			Future<?> f = task;
+			if(cancelled && f != null)
+				f.cancel(mayInterruptIfRunning);
+			return cancelled;
+		}
+	}
+	
+	public static class Result<R> {
+		private List<CompletableFuture<R>> futures;
+		
+		Result(List<CompletableFuture<R>> futures) {
+			this.futures = futures;
+		}
+		
+		public int size() {
+			return futures.size();
+		}
+		
+		public boolean isAnswered(int task) {
+			CompletableFuture<R> future = futures.get(task);
+			return future.isDone() && !future.isCompletedExceptionally();
+		}
+		
+		public boolean isComplete() {
+			for(int i=0; i<futures.size(); i++) {
+				if(!isAnswered(i))
+					return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Result of the given task, null if it did not answer.
+		 */
+		public R get(int task) {
+			return isAnswered(task) ? futures.get(task).getNow(null) : null;
+		}
+		
+		/**
+		 * Results of the tasks that answered, in task order.
+		 */
+		public List<R> getResults() {
+			List<R> list = new ArrayList<R>(futures.size());
+			for(int i=0; i<futures.size(); i++) {
+				if(isAnswered(i))
+					list.add(futures.get(i).getNow(null));
+			}
+			return list;
+		}
+		
+		/**
+		 * First failure as a RuntimeException, other failures are suppressed into it.
+		 */
+		public RuntimeException getException() {
+			RuntimeException ex = null;
+			int late = 0;
+			for(CompletableFuture<R> future : futures) {
+				if(future.isCancelled() || !future.isDone()) {
+					late++;
+					continue;
+				}
+				if(!future.isCompletedExceptionally())
+					continue;
+				Throwable cause = null;
+				try {
+					future.join();
+				} catch (CompletionException e) {
+					cause = e.getCause();
+				}
+				if(ex == null)
+					ex = cause instanceof RuntimeException ? (RuntimeException)cause : new RuntimeException(cause);
+				else
+					ex.addSuppressed(cause);
+			}
+			if(late > 0 && ex == null) {
+				ex = new RuntimeException(new TimeoutException(late + " of " + futures.size() + " tasks did not answer in time"));
+			}
+			return ex;
+		}
+	}
+}
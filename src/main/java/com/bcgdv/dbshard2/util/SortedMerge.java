@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * K-way merge of lists that are each already sorted by the same comparator,
+ * e.g. the per data source results of a scatter-gather query.
+ */
+public class SortedMerge {
+	/**
+	 * @param offset number of merged rows to skip
+	 * @param size maximum number of rows to return, or -1 for all of them
+	 */
+	public static <T> List<T> merge(Collection<? extends List<T>> sortedLists, final Comparator<? super T> comparator, int offset, int size) {
+		PriorityQueue<Cursor<T>> heap = new PriorityQueue<Cursor<T>>(Math.max(1, sortedLists.size()), new Comparator<Cursor<T>>() {
+			@Override
+			public int compare(Cursor<T> o1, Cursor<T> o2) {
+				return comparator.compare(o1.head, o2.head);
+			}
+		});
+		for(List<T> list : sortedLists) {
+			Cursor<T> cursor = new Cursor<T>(list.iterator());
+			if(cursor.next())
+				heap.add(cursor);
+		}
+		
+		List<T> result = new ArrayList<T>(size > 0 ? size : 16);
+		int skipped = 0;
+		while(!heap.isEmpty() && (size < 0 || result.size() < size)) {
+			Cursor<T> cursor = heap.poll();
+			if(skipped < offset)
+				skipped++;
+			else
+				result.add(cursor.head);
+			if(cursor.next())
+				heap.add(cursor);
+		}
+		return result;
+	}
+	
+	private static class Cursor<T> {
+		private Iterator<T> it;
+		private T head;
+		
+		Cursor(Iterator<T> it) {
+			this.it = it;
+		}
+		
+		boolean next() {
+			if(!it.hasNext())
+				return false;
+			head = it.next();
+			return true;
+		}
+	}
+}
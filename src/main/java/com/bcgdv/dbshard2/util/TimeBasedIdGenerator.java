@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.util;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.uuid.EthernetAddress;
+
+/**
+ * Type 1 (time based) uuid generator. The node address is resolved once per
+ * jvm and the generator picks one random clock sequence, as rfc 4122 does for
+ * a node without stable storage. Timestamps are handed out from a shared
+ * counter with compare and set, so generating an id takes no lock and does
+ * not touch the network interfaces, and no two ids of a generator share a
+ * timestamp. When ids are requested faster than one per 100ns the counter runs
+ * ahead of the clock and catches up once the load drops.
+ */
+public class TimeBasedIdGenerator {
+	// 100ns intervals between 1582-10-15 and 1970-01-01
+	private static final long GREGORIAN_OFFSET = 0x01b21dd213814000L;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private static final TimeBasedIdGenerator instance = new TimeBasedIdGenerator();
+	public static TimeBasedIdGenerator getInstance() {
+		return instance;
+	}
+	
+	private final long node;
+	private final int clockSequence;
+	private final AtomicLong lastTimestamp = new AtomicLong();
+	
+	public TimeBasedIdGenerator() {
+		this(resolveNode());
+	}
+	
+	public TimeBasedIdGenerator(long node) {
+		this.node = node & 0xffffffffffffL;
+		this.clockSequence = new SecureRandom().nextInt() & 0x3fff;
+	}
+	
+	private static long resolveNode() {
+		EthernetAddress addr = EthernetAddress.fromInterface();
+		if(addr == null)
+			addr = EthernetAddress.constructMulticastAddress(new SecureRandom());
+		return addr.toLong();
+	}
+	
+	public String generate() {
+		return format(reserve(1), clockSequence);
+	}
+	
+	/**
+	 * Reserves count consecutive timestamps in one step and returns the ids for them.
+	 */
+	public List<String> generate(int count) {
+		long timestamp = reserve(count);
+		List<String> ids = new ArrayList<String>(count);
+		for(int i=0; i<count; i++) {
+			ids.add(format(timestamp + i, clockSequence));
+		}
+		return ids;
+	}
+	
+	/**
+	 * @return the first of count unused timestamps
+	 */
+	private long reserve(int count) {
+		while(true) {
+			long last = lastTimestamp.get();
+			long now = System.currentTimeMillis() * 10000 + GREGORIAN_OFFSET;
+			long first = now > last ? now : last + 1;
+			if(lastTimestamp.compareAndSet(last, first + count - 1))
+				return first;
+		}
+	}
+	
+	private String format(long timestamp, int clockSequence) {
+		char[] buf = new char[36];
+		hex(buf, 0, timestamp, 8);
+		buf[8] = '-';
+		hex(buf, 9, timestamp >>> 32, 4);
+		buf[13] = '-';
+		hex(buf, 14, ((timestamp >>> 48) & 0x0fff) | 0x1000, 4);
+		buf[18] = '-';
+		hex(buf, 19, clockSequence | 0x8000, 4);
+		buf[23] = '-';
+		hex(buf, 24, node, 12);
+		return new String(buf);
+	}
+	
+	private static void hex(char[] buf, int offset, long value, int digits) {
+		for(int i=offset+digits-1; i>=offset; i--) {
+			buf[i] = HEX[(int)(value & 0xf)];
+			value >>>= 4;
+		}
+	}
+}
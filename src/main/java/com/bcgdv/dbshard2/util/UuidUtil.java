@@ -17,17 +17,14 @@
 
 package com.bcgdv.dbshard2.util;
 
-import java.util.UUID;
-
-import com.fasterxml.uuid.EthernetAddress;
-import com.fasterxml.uuid.Generators;
-import com.fasterxml.uuid.impl.TimeBasedGenerator;
+import java.util.List;
 
 public class UuidUtil {
 	public static String randomType1Uuid() {
-		EthernetAddress addr = EthernetAddress.fromInterface();
-		TimeBasedGenerator uuidGenerator = Generators.timeBasedGenerator(addr);
-		UUID uuid = uuidGenerator.generate();
-		return uuid.toString();
+		return TimeBasedIdGenerator.getInstance().generate();
+	}
+	
+	public static List<String> randomType1Uuids(int count) {
+		return TimeBasedIdGenerator.getInstance().generate(count);
 	}
 }
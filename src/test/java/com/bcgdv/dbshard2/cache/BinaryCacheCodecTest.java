@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bcgdv.dbshard2.dao.entity.IndexedData;
+import com.bcgdv.dbshard2.dao.entity.ObjectData;
+
+public class BinaryCacheCodecTest {
+	private BinaryCacheCodec codec = new BinaryCacheCodec();
+	
+	@Test
+	public void objectData() {
+		ObjectData od = new ObjectData();
+		od.id = "usr00136b1c3a0-5c1b-11e4-8d0c-0a7f3b9b8c71";
+		od.json = "{\"firstName\":\"élève\"}";
+		od.version = 3;
+		
+		byte[] bytes = codec.encode(od);
+		ObjectData decoded = (ObjectData) codec.decode(bytes);
+		Assert.assertEquals(od.id, decoded.id);
+		Assert.assertEquals(od.json, decoded.json);
+		Assert.assertEquals(od.version, decoded.version);
+		Assert.assertEquals(od.created, decoded.created);
+		Assert.assertEquals(od.updated, decoded.updated);
+		Assert.assertTrue(bytes.length < new SerializationCacheCodec().encode(od).length);
+	}
+	
+	@Test
+	public void otherValues() {
+		Assert.assertSame(NullCache.getInstance(), codec.decode(codec.encode(NullCache.getInstance())));
+		Assert.assertEquals("v", codec.decode(codec.encode("v")));
+		Assert.assertEquals(42L, codec.decode(codec.encode(42L)));
+		Assert.assertArrayEquals("key".getBytes(), codec.encodeKey("key"));
+		
+		List<IndexedData> list = new ArrayList<IndexedData>();
+		IndexedData data = new IndexedData("id1");
+		data.put("firstName", "f1");
+		data.put("age", 7);
+		data.put("created", 1234567890123L);
+		data.put("none", null);
+		list.add(data);
+		List<IndexedData> decoded = (List<IndexedData>) codec.decode(codec.encode(list));
+		Assert.assertEquals(1, decoded.size());
+		Assert.assertEquals("id1", decoded.get(0).getId());
+		Assert.assertEquals("f1", decoded.get(0).get("firstName"));
+		Assert.assertEquals(7, decoded.get(0).get("age"));
+		Assert.assertEquals(1234567890123L, decoded.get(0).get("created"));
+		Assert.assertNull(decoded.get(0).get("none"));
+	}
+	
+	@Test
+	public void legacyEntries() {
+		ObjectData od = new ObjectData();
+		od.id = "id1";
+		od.json = "{}";
+		ObjectData decoded = (ObjectData) codec.decode(new SerializationCacheCodec().encode(od));
+		Assert.assertEquals("id1", decoded.id);
+		Assert.assertEquals("{}", decoded.json);
+	}
+}
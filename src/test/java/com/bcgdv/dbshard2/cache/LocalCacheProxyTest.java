@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bcgdv.dbshard2.dao.entity.ObjectData;
+
+public class LocalCacheProxyTest {
+	static class MapCacheProxy extends CacheProxyBase {
+		Map<String, Object> map = new HashMap<String, Object>();
+		int gets;
+		
+		@Override
+		public CacheType getType() {
+			return CacheType.nocache;
+		}
+		@Override
+		public Object get(String key, int expiration) {
+			gets++;
+			return map.get(key);
+		}
+		@Override
+		public void set(String key, Object value, int expiration) {
+			map.put(key, value);
+		}
+		@Override
+		public void delete(String key) {
+			map.remove(key);
+		}
+		@Override
+		public long incr(String key, long delta, int expiration) {
+			return 0;
+		}
+		@Override
+		public long decr(String key, long delta, int expiration) {
+			return 0;
+		}
+	}
+	
+	@Test
+	public void test() {
+		MapCacheProxy remote = new MapCacheProxy();
+		LocalCacheProxy proxy = new LocalCacheProxy(remote);
+		
+		ObjectData od = new ObjectData();
+		od.id = "id1";
+		od.json = "{}";
+		proxy.set(od.id, od);
+		remote.set("id2", NullCache.getInstance());
+		
+		ObjectData first = (ObjectData) proxy.get("id1");
+		ObjectData second = (ObjectData) proxy.get("id1");
+		Assert.assertEquals("{}", second.json);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(1, remote.gets);
+		Assert.assertEquals(1, proxy.getHitCount());
+		Assert.assertEquals(1, proxy.getMissCount());
+		
+		Map<String, Object> bulk = proxy.getBulk(Arrays.asList("id1", "id2", "id3"));
+		Assert.assertEquals(2, bulk.size());
+		Assert.assertTrue(bulk.get("id2") instanceof NullCache);
+		Assert.assertEquals(3, remote.gets);
+		
+		od.json = "{\"a\":1}";
+		proxy.set(od.id, od);
+		Assert.assertEquals("{\"a\":1}", ((ObjectData) proxy.get("id1")).json);
+		
+		proxy.delete("id1");
+		Assert.assertNull(proxy.get("id1"));
+	}
+}
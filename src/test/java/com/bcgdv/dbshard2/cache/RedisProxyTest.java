@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+public class RedisProxyTest {
+	@Test
+	public void ringTest() {
+		RedisProxy proxy = new RedisProxy();
+		proxy.setServers("h1:6379,h2:6379 h3:6379");
+		Assert.assertEquals(3, proxy.getJedisPoolList().size());
+		
+		Map<JedisPool, Integer> counts = new HashMap<JedisPool, Integer>();
+		Map<String, JedisPool> owners = new HashMap<String, JedisPool>();
+		for(int i=0; i<3000; i++) {
+			String key = "key" + i;
+			JedisPool pool = proxy.getNode(key);
+			Assert.assertSame(pool, proxy.getNode(key));
+			owners.put(key, pool);
+			Integer count = counts.get(pool);
+			counts.put(pool, count == null ? 1 : count + 1);
+		}
+		Assert.assertEquals(3, counts.size());
+		for(Integer count : counts.values()) {
+			Assert.assertTrue(count > 600);
+		}
+		
+		List<JedisPool> before = proxy.getJedisPoolList();
+		proxy.setServers("h1:6379,h2:6379 h3:6379;h4:6379");
+		Map<JedisPool, JedisPool> renamed = new HashMap<JedisPool, JedisPool>();
+		for(int i=0; i<3; i++) {
+			renamed.put(before.get(i), proxy.getJedisPoolList().get(i));
+		}
+		int moved = 0;
+		for(Map.Entry<String, JedisPool> entry : owners.entrySet()) {
+			JedisPool pool = proxy.getNode(entry.getKey());
+			if(pool != renamed.get(entry.getValue())) {
+				Assert.assertSame(proxy.getJedisPoolList().get(3), pool);
+				moved++;
+			}
+		}
+		Assert.assertTrue(moved > 400 && moved < 1200);
+		Assert.assertEquals(4, new HashSet<JedisPool>(proxy.getJedisPoolList()).size());
+	}
+	
+	@Test
+	public void noServerTest() {
+		RedisProxy proxy = new RedisProxy();
+		Assert.assertNull(proxy.getNode("k"));
+		Assert.assertNull(proxy.get("k"));
+		proxy.set("k", "v");
+	}
+	
+	@Test
+	public void deadNodeTest() {
+		MemoryPool live = new MemoryPool();
+		JedisPool dead = new JedisPool("127.0.0.1", 1);
+		RedisProxy proxy = new RedisProxy();
+		proxy.setJedisPoolList(Arrays.asList(dead, live));
+		String key = null;
+		for(int i=0; key == null; i++) {
+			if(proxy.getNode("key" + i) == dead)
+				key = "key" + i;
+		}
+		
+		// the key stays with its node, reads miss and writes are dropped
+		proxy.set(key, "v");
+		Assert.assertSame(dead, proxy.getNode(key));
+		Assert.assertFalse(proxy.isAvailable(dead));
+		Assert.assertNull(proxy.get(key));
+		Assert.assertTrue(proxy.isAvailable(live));
+	}
+	
+	@Test
+	public void allNodesDownTest() throws Exception {
+		MemoryPool pool = new MemoryPool();
+		RedisProxy proxy = new RedisProxy();
+		proxy.setJedisPoolList(Arrays.asList((JedisPool) pool));
+		proxy.setRetryInterval(100);
+		proxy.set("k", "v");
+		proxy.set("other", "v");
+		Assert.assertEquals("v", proxy.get("k"));
+		
+		pool.down = true;
+		Assert.assertNull(proxy.get("k"));
+		proxy.set("k", "w");
+		proxy.delete("k");
+		Assert.assertEquals(0, proxy.incr("n", 1, -1));
+		
+		// the node is skipped until the interval ends, then tried again
+		pool.down = false;
+		Assert.assertNull(proxy.get("other"));
+		Thread.sleep(150);
+		Assert.assertTrue(proxy.isAvailable(pool));
+		// it missed writes, so it comes back empty instead of serving the old k
+		Assert.assertNull(proxy.get("k"));
+		Assert.assertNull(proxy.get("other"));
+		proxy.set("k", "x");
+		Assert.assertEquals("x", proxy.get("k"));
+	}
+	
+	/**
+	 * Pool of one in-memory connection that understands get, setex, expire and
+	 * flushDB, and that cannot be reached while down.
+	 */
+	private static class MemoryPool extends JedisPool {
+		volatile boolean down;
+		private final Jedis jedis = new Jedis("localhost") {
+			private Map<String, byte[]> data = new HashMap<String, byte[]>();
+			
+			@Override
+			public String flushDB() {
+				data.clear();
+				return "OK";
+			}
+			
+			@Override
+			public byte[] get(byte[] key) {
+				return data.get(new String(key));
+			}
+			
+			@Override
+			public String setex(byte[] key, int seconds, byte[] value) {
+				data.put(new String(key), value);
+				return "OK";
+			}
+			
+			@Override
+			public Long expire(byte[] key, int seconds) {
+				return data.containsKey(new String(key)) ? 1L : 0L;
+			}
+		};
+		
+		MemoryPool() {
+			super("localhost", 1);
+		}
+		
+		@Override
+		public Jedis getResource() {
+			if(down)
+				throw new JedisConnectionException("down");
+			return jedis;
+		}
+		
+		@Override
+		public void returnResource(Jedis resource) {
+		}
+		
+		@Override
+		public void returnBrokenResource(Jedis resource) {
+		}
+	}
+}
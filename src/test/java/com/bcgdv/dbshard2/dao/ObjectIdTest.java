@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bcgdv.dbshard2.util.UuidUtil;
+
+public class ObjectIdTest {
+	@Test
+	public void testFormatAndParse() {
+		for(int shard : new int[]{0, 9, 10, 255, 0xabc, 0xfff}) {
+			ObjectId oi = new ObjectId(shard);
+			oi.setType("usr");
+			String id = oi.toString();
+			Assert.assertEquals(String.format("%s%03x%s", "usr", shard, oi.getUuid()), id);
+			Assert.assertEquals(String.format("%s%03x", "usr", shard), oi.getTypeAndShard());
+			Assert.assertEquals(shard, ObjectId.getShard(id));
+			Assert.assertTrue(ObjectId.isType(id, "usr"));
+			Assert.assertFalse(ObjectId.isType(id, "acc"));
+			
+			ObjectId parsed = new ObjectId(id);
+			Assert.assertEquals("usr", parsed.getType());
+			Assert.assertEquals(shard, parsed.getShard());
+			Assert.assertEquals(oi.getUuid(), parsed.getUuid());
+		}
+		Assert.assertEquals(0xabc, ObjectId.getShard(new StringBuilder("usrABC").append(UuidUtil.randomType1Uuid())));
+	}
+	
+	@Test(expected = InvalidIdException.class)
+	public void testInvalidShard() {
+		ObjectId.getShard("usr0g0" + UuidUtil.randomType1Uuid());
+	}
+	
+	@Test(expected = InvalidIdException.class)
+	public void testInvalidId() {
+		new ObjectId("usr");
+	}
+}
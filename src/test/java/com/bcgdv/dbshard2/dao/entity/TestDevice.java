@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bcgdv.dbshard2.dao.entity;
+
+import com.bcgdv.dbshard2.dao.Index;
+import com.bcgdv.dbshard2.dao.IndexPlacement;
+import com.bcgdv.dbshard2.dao.ShardedTable;
+
+@ShardedTable(
+		type="dev",
+		indexes={@Index(value={"serial"}, unique=true, placement=IndexPlacement.HASHED), @Index({"model"})}
+	)
+public class TestDevice extends ObjectData {
+	private String serial;
+	private String model;
+	
+	public String getSerial() {
+		return serial;
+	}
+	
+	public void setSerial(String serial) {
+		this.serial = serial;
+	}
+	
+	public String getModel() {
+		return model;
+	}
+	
+	public void setModel(String model) {
+		this.model = model;
+	}
+}
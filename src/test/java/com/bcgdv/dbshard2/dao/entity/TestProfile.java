@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao.entity;
+
+import java.util.List;
+import java.util.Map;
+
+import com.bcgdv.dbshard2.dao.Index;
+import com.bcgdv.dbshard2.dao.PayloadCompression;
+import com.bcgdv.dbshard2.dao.ShardedTable;
+import com.bcgdv.dbshard2.dao.StorageFormat;
+
+@ShardedTable(
+		type="prf",
+		indexes={@Index({"nickname"})},
+		storage=StorageFormat.BINARY,
+		compression=PayloadCompression.DEFLATE,
+		compressionThreshold=512
+	)
+public class TestProfile extends ObjectData {
+	private String nickname;
+	private int score;
+	private double rating;
+	private List<String> tags;
+	private Map<String, Long> counters;
+	
+	public String getNickname() {
+		return nickname;
+	}
+	
+	public void setNickname(String nickname) {
+		this.nickname = nickname;
+	}
+	
+	public int getScore() {
+		return score;
+	}
+	
+	public void setScore(int score) {
+		this.score = score;
+	}
+	
+	public double getRating() {
+		return rating;
+	}
+	
+	public void setRating(double rating) {
+		this.rating = rating;
+	}
+	
+	public List<String> getTags() {
+		return tags;
+	}
+	
+	public void setTags(List<String> tags) {
+		this.tags = tags;
+	}
+	
+	public Map<String, Long> getCounters() {
+		return counters;
+	}
+	
+	public void setCounters(Map<String, Long> counters) {
+		this.counters = counters;
+	}
+}
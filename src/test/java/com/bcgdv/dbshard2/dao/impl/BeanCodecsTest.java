@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bcgdv.dbshard2.dao.PayloadCompression;
+import com.bcgdv.dbshard2.dao.ShardedTable;
+import com.bcgdv.dbshard2.dao.entity.ObjectData;
+import com.bcgdv.dbshard2.dao.entity.TestUser;
+import com.bcgdv.dbshard2.util.CompressedPayload;
+
+public class BeanCodecsTest {
+	@Test
+	public void roundTripTest() {
+		BeanCodecs codecs = new BeanCodecs(BeanCodecs.createObjectMapper());
+		Assert.assertSame(codecs.getCodec(TestUser.class), codecs.getCodec(TestUser.class));
+		
+		TestUser user = new TestUser();
+		user.id = "usr000abc";
+		user.setFirstName("f");
+		user.setRegTime(5l);
+		String json = codecs.encode(user);
+		Assert.assertFalse(json.contains("lastName"));
+		Assert.assertFalse(json.contains("\"json\""));
+		
+		TestUser decoded = codecs.decode(json, TestUser.class);
+		Assert.assertEquals("usr000abc", decoded.id);
+		Assert.assertEquals("f", decoded.getFirstName());
+		Assert.assertEquals(Long.valueOf(5), decoded.getRegTime());
+		Assert.assertNull(codecs.decode((String) null, TestUser.class));
+	}
+	
+	@Test
+	public void lenientTest() {
+		BeanCodecs codecs = BeanCodecs.getInstance();
+		TestUser decoded = codecs.decode("{\"id\":\"usr000abc\",\"removedField\":1,\"regTime\":\"\"}", TestUser.class);
+		Assert.assertEquals("usr000abc", decoded.id);
+		Assert.assertNull(decoded.getRegTime());
+	}
+	
+	@Test
+	public void compressionTest() {
+		BeanCodecs codecs = BeanCodecs.getInstance();
+		Note note = new Note();
+		note.text = "short";
+		ObjectData row = new ObjectData();
+		codecs.encode(note, row);
+		Assert.assertNull(row.payload);
+		Assert.assertEquals("short", codecs.decode(row, Note.class).text);
+		
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<100; i++)
+			sb.append("repeated text ");
+		note.text = sb.toString();
+		codecs.encode(note, row);
+		Assert.assertNull(row.json);
+		Assert.assertTrue(CompressedPayload.isCompressed(row.payload));
+		Assert.assertTrue(row.payload.length < 256);
+		Assert.assertEquals(note.text, codecs.decode(row, Note.class).text);
+		Assert.assertTrue(BeanCodecs.toJson(row).contains("\"text\":\"" + note.text + "\""));
+	}
+	
+	@Test
+	public void projectTest() {
+		BeanCodecs codecs = BeanCodecs.getInstance();
+		ObjectData row = new ObjectData();
+		row.id = "usr000abc";
+		row.json = "{\"a\":{\"b\":{\"c\":1},\"d\":[1,2]},\"skipped\":{\"x\":[{}]},\"e\":\"v\"}";
+		Map<String, Object> values = codecs.project(row, Arrays.asList("e", "a.b.c", "a.d", "a.none", "none"));
+		Assert.assertEquals("usr000abc", values.get("id"));
+		Assert.assertEquals("v", values.get("e"));
+		Assert.assertEquals(1, values.get("a.b.c"));
+		Assert.assertEquals(Arrays.asList(1, 2), values.get("a.d"));
+		Assert.assertTrue(values.containsKey("a.none"));
+		Assert.assertNull(values.get("a.none"));
+		Assert.assertNull(values.get("none"));
+	}
+	
+	@Test
+	public void projectIdTest() {
+		BeanCodecs codecs = BeanCodecs.getInstance();
+		ObjectData row = new ObjectData();
+		row.id = "usr000abc";
+		row.json = "{\"e\":\"v\"}";
+		Map<String, Object> values = codecs.project(row, Arrays.asList("id", "e"));
+		Assert.assertEquals(Arrays.asList("id", "e"), new ArrayList<String>(values.keySet()));
+		Assert.assertEquals("usr000abc", values.get("id"));
+		Assert.assertEquals("v", values.get("e"));
+	}
+	
+	@ShardedTable(type="nte", compression=PayloadCompression.DEFLATE, compressionThreshold=256)
+	public static class Note extends ObjectData {
+		public String text;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.dao.impl;
+
+import java.math.BigDecimal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bcgdv.dbshard2.dao.ClassIndex;
+import com.bcgdv.dbshard2.dao.Index;
+import com.bcgdv.dbshard2.dao.ShardedTable;
+import com.bcgdv.dbshard2.dao.entity.ObjectData;
+
+public class IndexFiltersTest {
+	@Test
+	public void normalizeTest() {
+		Assert.assertEquals("1", IndexFilters.normalize(new BigDecimal("1.00"), "bigint"));
+		Assert.assertEquals("1", IndexFilters.normalize(1.0d, "bigint"));
+		Assert.assertEquals("1", IndexFilters.normalize(" 1.0", "bigint"));
+		Assert.assertEquals("1", IndexFilters.normalize(true, "integer"));
+		Assert.assertEquals("0", IndexFilters.normalize(new BigDecimal("0.00"), "integer"));
+		Assert.assertNull(IndexFilters.normalize("abc", "integer"));
+		Assert.assertNull(IndexFilters.normalize(1.5d, "float"));
+		
+		Assert.assertEquals(IndexFilters.normalize("elan", "varchar(64)"), IndexFilters.normalize("Élan ", "varchar(64)"));
+		Assert.assertNull(IndexFilters.normalize(1, "varchar(64)"));
+	}
+	
+	@Test
+	public void filterTest() {
+		ClassIndex index = new ClassIndex(Ranked.class, Ranked.class.getAnnotation(ShardedTable.class).indexes()[0]);
+		IndexFilters filters = new IndexFilters();
+		Assert.assertFalse(filters.isEnabled(index));
+		filters.setExclusiveWriter(true);
+		Assert.assertTrue(filters.isEnabled(index));
+		
+		filters.beginRebuild(index, "ds");
+		filters.putRebuilt(index, "ds", 1);
+		filters.endRebuild(index, "ds", true);
+		Assert.assertTrue(filters.mightContain(index, "ds", new BigDecimal("1.00")));
+		Assert.assertTrue(filters.mightContain(index, "ds", true));
+		Assert.assertFalse(filters.mightContain(index, "ds", 2));
+		
+		// a value being written is queried until its write ends, and kept only if committed
+		filters.beginPut(index, "ds", 2);
+		Assert.assertTrue(filters.mightContain(index, "ds", 2));
+		filters.endPut(index, "ds", 2, false);
+		Assert.assertFalse(filters.mightContain(index, "ds", 2));
+		filters.beginPut(index, "ds", 3);
+		filters.endPut(index, "ds", 3, true);
+		Assert.assertTrue(filters.mightContain(index, "ds", 3));
+		
+		// a rebuild finding a value the filter never saw turns the filters off
+		filters.beginRebuild(index, "ds");
+		filters.putRebuilt(index, "ds", 1);
+		Assert.assertFalse(filters.isForeignWrites());
+		filters.putRebuilt(index, "ds", 4);
+		filters.endRebuild(index, "ds", true);
+		Assert.assertTrue(filters.isForeignWrites());
+		Assert.assertTrue(filters.mightContain(index, "ds", 2));
+	}
+	
+	@ShardedTable(type="rnk", indexes={@Index({"rank"})})
+	public static class Ranked extends ObjectData {
+		public Integer rank;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bcgdv.dbshard2.dao.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bcgdv.dbshard2.dao.ClassIndex;
+import com.bcgdv.dbshard2.dao.ShardedTable;
+import com.bcgdv.dbshard2.dao.entity.TestUser;
+
+public class IndexQueryPlanTest {
+	@Test
+	public void planTest() {
+		ClassIndex index = new ClassIndex(TestUser.class, TestUser.class.getAnnotation(ShardedTable.class).indexes()[0]);
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("firstName", "f");
+		values.put("lastName", Arrays.asList("l1", "l2"));
+		
+		IndexQueryPlan plan = IndexQueryPlan.get(index, values);
+		Assert.assertSame(plan, IndexQueryPlan.get(index, values));
+		Assert.assertEquals("select * from " + index.getTableName() + " where `firstName`=:firstName and `lastName` in (:lastName) order by `created` desc ", plan.selectSql);
+		Assert.assertEquals("select count(*) from " + index.getTableName() + " where `firstName`=:firstName and `lastName` in (:lastName)", plan.countSql);
+		Assert.assertEquals("f", plan.params(values).get("firstName"));
+		
+		values.put("lastName", "l1");
+		IndexQueryPlan single = IndexQueryPlan.get(index, values);
+		Assert.assertNotSame(plan, single);
+		Assert.assertTrue(single.selectSql.contains("`lastName`=:lastName"));
+		
+		values.put("lastName", Collections.emptyList());
+		Assert.assertNull(IndexQueryPlan.get(index, values).params(values));
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class BinaryJsonTest {
+	private ObjectMapper mapper = new ObjectMapper();
+	
+	@Test
+	public void roundTripTest() throws Exception {
+		String json = "{\"a\":\"x\\u00e9\\u4e2d\",\"n\":-5,\"l\":12345678901,\"d\":1.5,\"t\":true,\"f\":false,\"z\":null,"
+				+ "\"big\":123456789012345678901234567890,\"arr\":[{\"a\":1},{\"a\":2,\"n\":[]}],\"o\":{}}";
+		byte[] bytes = BinaryJson.encode(mapper.getFactory().createParser(json));
+		Assert.assertTrue(BinaryJson.isBinary(bytes));
+		Assert.assertTrue(bytes.length < json.length());
+		
+		JsonNode expected = mapper.readTree(json);
+		Assert.assertEquals(expected, mapper.readTree(BinaryJson.toJson(bytes)));
+		JsonNode decoded = mapper.readTree(BinaryJson.parser(bytes, mapper));
+		Assert.assertEquals(expected, decoded);
+		Assert.assertEquals(12345678901l, decoded.get("l").longValue());
+		Assert.assertEquals(new BigInteger("123456789012345678901234567890"), decoded.get("big").bigIntegerValue());
+	}
+	
+	@Test
+	public void valuesTest() throws Exception {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("bytes", new byte[] {1, 2, 3});
+		map.put("decimal", new BigDecimal("0.1"));
+		map.put("min", Long.MIN_VALUE);
+		map.put("list", Arrays.asList("a", "b"));
+		byte[] bytes = BinaryJson.encode(mapper.valueToTree(map).traverse());
+		
+		Map decoded = mapper.readValue(BinaryJson.parser(bytes, mapper), Map.class);
+		Assert.assertEquals(Long.MIN_VALUE, decoded.get("min"));
+		Assert.assertEquals(Arrays.asList("a", "b"), decoded.get("list"));
+		Assert.assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) decoded.get("bytes"));
+		Assert.assertEquals("{\"bytes\":\"AQID\"}", BinaryJson.toJson(BinaryJson.encode(mapper.valueToTree(Collections.singletonMap("bytes", new byte[] {1, 2, 3})).traverse())));
+		Assert.assertEquals(0.1, ((Number) decoded.get("decimal")).doubleValue(), 0);
+		Assert.assertFalse(BinaryJson.isBinary("{}".getBytes()));
+	}
+}
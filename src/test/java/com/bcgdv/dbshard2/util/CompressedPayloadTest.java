@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bcgdv.dbshard2.dao.PayloadCompression;
+
+public class CompressedPayloadTest {
+	@Test
+	public void roundTripTest() {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<5000; i++)
+			sb.append("{\"field\":").append(i % 7).append("},");
+		byte[] raw = sb.toString().getBytes(StandardCharsets.UTF_8);
+		byte[] compressed = CompressedPayload.compress(PayloadCompression.DEFLATE, raw);
+		Assert.assertTrue(CompressedPayload.isCompressed(compressed));
+		Assert.assertTrue(compressed.length * 10 < raw.length);
+		Assert.assertArrayEquals(raw, CompressedPayload.decompress(compressed));
+		Assert.assertSame(raw, CompressedPayload.decompress(raw));
+		Assert.assertSame(raw, CompressedPayload.compress(PayloadCompression.NONE, raw));
+	}
+	
+	@Test
+	public void incompressibleTest() {
+		byte[] raw = new byte[1000];
+		new Random(1).nextBytes(raw);
+		raw[0] = '{';
+		Assert.assertSame(raw, CompressedPayload.compress(PayloadCompression.DEFLATE, raw));
+	}
+}
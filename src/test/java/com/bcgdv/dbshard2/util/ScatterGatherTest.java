@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.util;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScatterGatherTest {
+	private ExecutorService es = Executors.newFixedThreadPool(4);
+	
+	@After
+	public void shutdown() {
+		es.shutdownNow();
+	}
+	
+	@Test
+	public void resultsInTaskOrder() {
+		final Thread caller = Thread.currentThread();
+		final boolean[] firstOnCaller = new boolean[1];
+		ScatterGather<Integer> sg = new ScatterGather<Integer>();
+		for(int i=0; i<5; i++) {
+			final int n = i;
+			sg.addTask(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					if(n == 0)
+						firstOnCaller[0] = Thread.currentThread() == caller;
+					Thread.sleep(5 * (5 - n));
+					return n;
+				}
+			});
+		}
+		ScatterGather.Result<Integer> result = sg.execute(es);
+		Assert.assertTrue(result.isComplete());
+		Assert.assertTrue(firstOnCaller[0]);
+		Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), result.getResults());
+	}
+	
+	@Test
+	public void failureIsRethrown() {
+		ScatterGather<Integer> sg = new ScatterGather<Integer>();
+		sg.addTask(constant(1));
+		sg.addTask(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				throw new IllegalStateException("shard down");
+			}
+		});
+		try {
+			sg.execute(es);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("shard down", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void deadlineCancelsSlowTasks() throws Exception {
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		ScatterGather<Integer> sg = new ScatterGather<Integer>().setTimeout(100);
+		sg.addTask(constant(0));
+		sg.addTask(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+				return 1;
+			}
+		});
+		long t0 = System.currentTimeMillis();
+		try {
+			sg.execute(es);
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		Assert.assertTrue(System.currentTimeMillis() - t0 < 5000);
+		Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		
+		sg.setAllowPartial(true);
+		ScatterGather.Result<Integer> result = sg.execute(es);
+		Assert.assertFalse(result.isComplete());
+		Assert.assertTrue(result.isAnswered(0));
+		Assert.assertFalse(result.isAnswered(1));
+		Assert.assertEquals(Arrays.asList(0), result.getResults());
+	}
+	
+	@Test
+	public void deadlineBoundsFirstTask() throws Exception {
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		ScatterGather<Integer> sg = new ScatterGather<Integer>().setTimeout(100).setAllowPartial(true);
+		sg.addTask(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+				return 0;
+			}
+		});
+		sg.addTask(constant(1));
+		long t0 = System.currentTimeMillis();
+		ScatterGather.Result<Integer> result = sg.execute(es);
+		Assert.assertTrue(System.currentTimeMillis() - t0 < 5000);
+		Assert.assertFalse(result.isAnswered(0));
+		Assert.assertTrue(result.isAnswered(1));
+		Assert.assertEquals(Arrays.asList(1), result.getResults());
+		Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void waitForAllFinishesEveryTask() throws Exception {
+		final AtomicBoolean finished = new AtomicBoolean();
+		ScatterGather<Integer> sg = new ScatterGather<Integer>().setTimeout(50).setWaitForAll(true);
+		sg.addTask(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				throw new IllegalStateException("shard down");
+			}
+		});
+		sg.addTask(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				// neither the failure nor the timeout may abandon or interrupt this write
+				Thread.sleep(300);
+				finished.set(true);
+				return 1;
+			}
+		});
+		try {
+			sg.execute(es);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("shard down", e.getMessage());
+		}
+		Assert.assertTrue(finished.get());
+	}
+	
+	private static Callable<Integer> constant(final int n) {
+		return new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return n;
+			}
+		};
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcgdv.dbshard2.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UuidUtilTest {
+	@Test
+	public void testType1() {
+		long before = System.currentTimeMillis();
+		UUID uuid = UUID.fromString(UuidUtil.randomType1Uuid());
+		Assert.assertEquals(1, uuid.version());
+		Assert.assertEquals(2, uuid.variant());
+		long millis = (uuid.timestamp() - 0x01b21dd213814000L) / 10000;
+		Assert.assertTrue(millis >= before && millis <= System.currentTimeMillis());
+	}
+	
+	@Test
+	public void testUnique() throws Exception {
+		final Set<String> ids = ConcurrentHashMap.newKeySet();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t=0; t<4; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0; i<10000; i++) {
+						ids.add(UuidUtil.randomType1Uuid());
+					}
+					ids.addAll(UuidUtil.randomType1Uuids(1000));
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(4 * 11000, ids.size());
+	}
+	
+	@Test
+	public void testSharedClockSequence() throws Exception {
+		final TimeBasedIdGenerator generator = new TimeBasedIdGenerator(0x0123456789abL);
+		final Set<Long> timestamps = ConcurrentHashMap.newKeySet();
+		final Set<Integer> clockSequences = ConcurrentHashMap.newKeySet();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t=0; t<4; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0; i<5000; i++) {
+						UUID uuid = UUID.fromString(generator.generate());
+						timestamps.add(uuid.timestamp());
+						clockSequences.add(uuid.clockSequence());
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(4 * 5000, timestamps.size());
+		Assert.assertEquals(1, clockSequences.size());
+	}
+}
@@ -25,12 +25,17 @@ import java.util.concurrent.Executors;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
 
 import com.bcgdv.dbshard2.dao.DbDialet;
 import com.bcgdv.dbshard2.dao.DbShardUtils;
 import com.bcgdv.dbshard2.dao.ObjectId;
+import com.bcgdv.dbshard2.dao.PartialResult;
+import com.bcgdv.dbshard2.dao.QueryOptions;
+import com.bcgdv.dbshard2.dao.RequestContext;
 import com.bcgdv.dbshard2.dao.ShardedDataSourceImpl;
 import com.bcgdv.dbshard2.dao.TableManager;
+import com.bcgdv.dbshard2.dao.entity.IndexedData;
 import com.bcgdv.dbshard2.dao.entity.ObjectData;
 import com.bcgdv.dbshard2.dao.entity.TestUser;
 import com.bcgdv.dbshard2.dao.impl.BaseDaoImpl;
@@ -95,6 +100,33 @@ public class BaseDaoImplDbTest {
 		}
 	}
 	
+	@Test
+	public void pagingTest(){
+		BaseDaoImpl baseDao = getDao("paging", 2);
+		for(int i=0; i<10; i++) {
+			ObjectData obj = createObjectData();
+			ObjectId oi = new ObjectId(obj.id);
+			oi.setShard(i % 2);
+			obj.id = oi.toString();
+			obj.created = 1000 + i;
+			baseDao.create(obj);
+		}
+		
+		List<TestUser> page = baseDao.objectLookup(TestUser.class, 2, 3);
+		Assert.assertEquals(3, page.size());
+		Assert.assertEquals(1007, page.get(0).created);
+		Assert.assertEquals(1006, page.get(1).created);
+		Assert.assertEquals(1005, page.get(2).created);
+		
+		ObjectData last = page.get(2);
+		List<TestUser> next = baseDao.objectLookup(TestUser.class, last.created, last.id, 3);
+		Assert.assertEquals(3, next.size());
+		Assert.assertEquals(1004, next.get(0).created);
+		Assert.assertEquals(1002, next.get(2).created);
+		
+		Assert.assertEquals(10, baseDao.objectLookup(TestUser.class).size());
+	}
+	
 	private ObjectData createObjectData() {
 		ObjectData obj = new ObjectData();
 		
@@ -114,7 +146,62 @@ public class BaseDaoImplDbTest {
 		return obj;
 	}
 	
+	@Test
+	public void partialTest(){
+		BaseDaoImpl baseDao = getDao("partial", 2);
+		new JdbcTemplate(baseDao.getShardedDataSource().getDataSourceByDataSourceId(null, 0)).execute("create table partial (a int)");
+		
+		try {
+			baseDao.indexCountLookup("select count(*) from partial", null);
+			Assert.fail();
+		} catch (RuntimeException e) {
+		}
+		
+		PartialResult<Integer> count = baseDao.indexCountLookup("select count(*) from partial", null, new QueryOptions(1000, true));
+		Assert.assertEquals(0, count.getResult().intValue());
+		Assert.assertFalse(count.isComplete());
+		Assert.assertEquals(Arrays.asList(0), count.getAnswered());
+		Assert.assertEquals(Arrays.asList(1), count.getMissing());
+		
+		PartialResult<List<IndexedData>> rows = baseDao.indexLookup("select `id` from `TestUser`", null, new QueryOptions(1000, false));
+		Assert.assertTrue(rows.isComplete());
+		Assert.assertEquals(Arrays.asList(0, 1), rows.getAnswered());
+		Assert.assertEquals(0, rows.getResult().size());
+	}
+	
+	@Test
+	public void partialInRequestTest() throws Exception {
+		BaseDaoImpl baseDao = getDao("partialrq", 2);
+		new JdbcTemplate(baseDao.getShardedDataSource().getDataSourceByDataSourceId(null, 0)).execute("create alias PAUSE for \"" + getClass().getName() + ".fast\"");
+		new JdbcTemplate(baseDao.getShardedDataSource().getDataSourceByDataSourceId(null, 1)).execute("create alias PAUSE for \"" + getClass().getName() + ".slow\"");
+		RequestContext rc = new RequestContext();
+		baseDao.setRequestContext(rc);
+		
+		long t0 = System.currentTimeMillis();
+		PartialResult<Integer> count = baseDao.indexCountLookup("select pause()", null, new QueryOptions(300, true));
+		Assert.assertTrue(System.currentTimeMillis() - t0 < 2000);
+		Assert.assertEquals(Arrays.asList(0), count.getAnswered());
+		Assert.assertEquals(Arrays.asList(1), count.getMissing());
+		
+		// the late data source holds no connection of the request
+		Assert.assertEquals(0, baseDao.indexCountLookup("select count(*) from `TestUser`", null));
+		rc.close();
+	}
+	
+	public static int fast() {
+		return 0;
+	}
+	
+	public static int slow() throws InterruptedException {
+		Thread.sleep(3000);
+		return 0;
+	}
+	
 	private BaseDaoImpl getDao(String dbname) {
+		return getDao(dbname, 1);
+	}
+	
+	private BaseDaoImpl getDao(String dbname, int shards) {
 		BaseDaoImpl baseDao = new BaseDaoImpl();
 //		baseDao.setRequestContext(new RequestContext());
 		
@@ -124,11 +211,11 @@ public class BaseDaoImplDbTest {
 		ds.setUrl("jdbc:h2:mem:" + dbname+ "__DATASOURCEID__;MODE=MySQL;DB_CLOSE_ON_EXIT=FALSE");
 		baseDao.setShardedDataSource(ds);
 		
-		ShardResolverBase shardResolver = new ShardResolverBase(0, 1);
+		ShardResolverBase shardResolver = new ShardResolverBase(0, shards);
 		baseDao.setShardResolver(shardResolver);
-		shardResolver.setNumberOfShards(1);
+		shardResolver.setNumberOfShards(shards);
 		
-		ExecutorService executorService = Executors.newFixedThreadPool(1);
+		ExecutorService executorService = Executors.newFixedThreadPool(shards);
 		baseDao.setExecutorService(executorService);
 		baseDao.setTableManager(new TableManager(Arrays.asList((Class)TestUser.class)));
 		
@@ -17,17 +17,27 @@
 
 package com.gaoshin.dao.impl;
 
+import java.io.ByteArrayOutputStream;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
 
+import com.bcgdv.dbshard2.cache.CacheProxyBase;
+import com.bcgdv.dbshard2.cache.CacheType;
+import com.bcgdv.dbshard2.dao.BeanView;
 import com.bcgdv.dbshard2.dao.ClassIndex;
 import com.bcgdv.dbshard2.dao.ColumnValues;
 import com.bcgdv.dbshard2.dao.DbDialet;
@@ -36,10 +46,20 @@ import com.bcgdv.dbshard2.dao.RequestContext;
 import com.bcgdv.dbshard2.dao.ShardedDataSourceImpl;
 import com.bcgdv.dbshard2.dao.TableManager;
 import com.bcgdv.dbshard2.dao.entity.IndexedData;
+import com.bcgdv.dbshard2.dao.entity.ObjectData;
 import com.bcgdv.dbshard2.dao.entity.TestAccount;
+import com.bcgdv.dbshard2.dao.entity.TestDevice;
+import com.bcgdv.dbshard2.dao.entity.TestNote;
+import com.bcgdv.dbshard2.dao.entity.TestProfile;
 import com.bcgdv.dbshard2.dao.entity.TestUser;
+import com.bcgdv.dbshard2.dao.impl.AsyncExtendedDaoImpl;
+import com.bcgdv.dbshard2.dao.impl.BeanCodecs;
+import com.bcgdv.dbshard2.dao.impl.BeanHandler;
 import com.bcgdv.dbshard2.dao.impl.ExtendedDaoImpl;
+import com.bcgdv.dbshard2.dao.impl.IndexFilters;
 import com.bcgdv.dbshard2.dao.impl.ShardResolverBase;
+import com.bcgdv.dbshard2.util.BinaryJson;
+import com.bcgdv.dbshard2.util.CompressedPayload;
 
 public class ExtendedDaoImplDbTest {
 	@Test
@@ -99,27 +119,839 @@ public class ExtendedDaoImplDbTest {
 		Assert.assertEquals("l1", list.get(0).get("lastName"));
 	}
 	
+	@Test
+	public void createBeansTest(){
+		ExtendedDaoImpl dao = getDao("exttestbatch");
+
+		List<TestUser> users = new ArrayList<TestUser>();
+		for(int i=0; i<10; i++) {
+			TestUser user = new TestUser();
+			user.setFirstName("f" + (i % 2));
+			user.setLastName("l");
+			users.add(user);
+		}
+		dao.createBeans(users);
+
+		for(TestUser user : users) {
+			Assert.assertNotNull(user.id);
+			TestUser db = dao.getBean(user.id);
+			Assert.assertEquals(user.getFirstName(), db.getFirstName());
+		}
+
+		Map values = new HashMap<String, Object>();
+		values.put("firstName", "f1");
+		values.put("lastName", "l");
+		List<TestUser> list = dao.indexBeanLookup(TestUser.class, values);
+		Assert.assertEquals(5, list.size());
+	}
+
+	@Test
+	public void indexBatchTest(){
+		ExtendedDaoImpl dao = getDao("exttestindexbatch");
+		
+		List<ClassIndex> indexes = dao.getTableManager().getIndexes(TestUser.class);
+		Assert.assertSame(indexes.get(0).getInsertSql(), dao.getTableManager().getIndexes(TestUser.class).get(0).getInsertSql());
+		
+		TestUser user = new TestUser();
+		user.setFirstName("f1");
+		user.setLastName("l1");
+		dao.createBean(user);
+		
+		user.setFirstName("f2");
+		dao.updateBean(user);
+		
+		Map values = new HashMap<String, Object>();
+		values.put("firstName", "f1");
+		values.put("lastName", "l1");
+		Assert.assertEquals(0, dao.indexBeanLookup(TestUser.class, values).size());
+		values.put("firstName", "f2");
+		List<TestUser> list = dao.indexBeanLookup(TestUser.class, values);
+		Assert.assertEquals(1, list.size());
+		Assert.assertEquals(user.id, list.get(0).id);
+	}
+
+	@Test
+	public void indexDiffTest(){
+		ExtendedDaoImpl dao = getDao("exttestindexdiff");
+		
+		TestUser user = new TestUser();
+		user.setFirstName("f1");
+		user.setLastName("l1");
+		dao.createBean(user);
+		
+		// unchanged index values keep their rows
+		dao.updateBean(user);
+		dao.updateBean(user);
+		Map values = new HashMap<String, Object>();
+		values.put("firstName", "f1");
+		values.put("lastName", "l1");
+		Assert.assertEquals(1, dao.indexBeanLookup(TestUser.class, values).size());
+		
+		user.setLastName("l2");
+		dao.updateBean(user);
+		Assert.assertEquals(0, dao.indexBeanLookup(TestUser.class, values).size());
+		values.put("lastName", "l2");
+		Assert.assertEquals(1, dao.indexBeanLookup(TestUser.class, values).size());
+		
+		user.setLastName(null);
+		dao.updateBean(user);
+		Assert.assertEquals(0, dao.indexBeanLookup(TestUser.class, values).size());
+		user.setLastName("l2");
+		dao.updateBean(user);
+		Assert.assertEquals(1, dao.indexBeanLookup(TestUser.class, values).size());
+	}
+
+	@Test
+	public void hashedIndexTest(){
+		ExtendedDaoImpl dao = getDao("exttesthashed", TestDevice.class, 4);
+		ClassIndex index = dao.indexByKeys(TestDevice.class, "serial");
+		String sql = "select * from " + index.getTableName();
+		
+		List<TestDevice> devices = new ArrayList<TestDevice>();
+		for(int i=0; i<20; i++) {
+			TestDevice device = new TestDevice();
+			device.setSerial("sn" + i);
+			device.setModel("m");
+			devices.add(device);
+		}
+		dao.createBeans(devices.subList(0, 10));
+		for(TestDevice device : devices.subList(10, 20))
+			dao.createBean(device);
+		
+		int dataSourcesUsed = 0;
+		for(int dataSourceId=0; dataSourceId<4; dataSourceId++) {
+			List<IndexedData> rows = dao.indexLookup(dataSourceId, sql, new HashMap<String, Object>());
+			for(IndexedData row : rows) {
+				// one shard per data source, so the shard is the data source id
+				Assert.assertEquals(dataSourceId, (index.placementHash(row.get("serial")) & Integer.MAX_VALUE) % 4);
+			}
+			dataSourcesUsed += rows.size() > 0 ? 1 : 0;
+		}
+		Assert.assertTrue(dataSourcesUsed > 1);
+		Assert.assertEquals(20, dao.indexBeanLookup(TestDevice.class, "model", "m").size());
+		
+		TestDevice device = devices.get(3);
+		List<TestDevice> found = dao.indexBeanLookup(TestDevice.class, "serial", "sn3");
+		Assert.assertEquals(1, found.size());
+		Assert.assertEquals(device.id, found.get(0).id);
+		Assert.assertEquals(2, dao.indexBeanLookup(TestDevice.class, "serial", Arrays.asList("sn3", "sn4")).size());
+		Assert.assertEquals(1, dao.indexCountLookup(TestDevice.class, "serial", "sn3"));
+		
+		device.setSerial("sn3x");
+		dao.updateBean(device);
+		Assert.assertEquals(0, dao.indexBeanLookup(TestDevice.class, "serial", "sn3").size());
+		Assert.assertEquals(1, dao.indexBeanLookup(TestDevice.class, "serial", "sn3x").size());
+		
+		dao.delete(device.id);
+		Assert.assertEquals(0, dao.indexBeanLookup(TestDevice.class, "serial", "sn3x").size());
+		dao.deleteAll(Arrays.asList(devices.get(4).id));
+		Assert.assertEquals(0, dao.indexBeanLookup(TestDevice.class, "serial", "sn4").size());
+		Assert.assertEquals(18, dao.indexBeanLookup(TestDevice.class, "model", "m").size());
+	}
+
+	@Test
+	public void hashedIndexCaseTest(){
+		// the column compares without case, so lookups in any case find the row's data source
+		ExtendedDaoImpl dao = getDao(4, "jdbc:h2:mem:exttesthashedcase__DATASOURCEID__;MODE=MySQL;IGNORECASE=TRUE;DB_CLOSE_ON_EXIT=FALSE", TestDevice.class);
+		ClassIndex index = dao.indexByKeys(TestDevice.class, "serial");
+		Assert.assertEquals(index.placementHash("alice@x.com"), index.placementHash(" Alice@X.com"));
+		
+		List<TestDevice> devices = new ArrayList<TestDevice>();
+		for(String serial : new String[] {"Alice@x.com", "BOB@x.com", "Carol@X.com", "dave@x.com"}) {
+			TestDevice device = new TestDevice();
+			device.setSerial(serial);
+			device.setModel("m");
+			dao.createBean(device);
+			devices.add(device);
+		}
+		for(TestDevice device : devices) {
+			String lower = device.getSerial().toLowerCase();
+			Assert.assertEquals(1, dao.indexBeanLookup(TestDevice.class, "serial", lower).size());
+			Assert.assertEquals(1, dao.indexCountLookup(TestDevice.class, "serial", device.getSerial().toUpperCase()));
+			Assert.assertEquals(device.id, dao.indexBeanLookup(TestDevice.class, "serial", lower, 0, 10).get(0).id);
+			Assert.assertEquals(1, dao.indexLookup(TestDevice.class, "serial", lower, 0, 10).size());
+		}
+		
+		// a like pattern cannot be placed, every data source is queried
+		List<TestDevice> all = dao.indexBeanLikeLookup(TestDevice.class, "serial", "%@x.com", 0, 10);
+		Assert.assertEquals(4, all.size());
+		List<TestDevice> found = dao.indexBeanLikeLookup(TestDevice.class, "serial", "%@x.com", 1, 2);
+		Assert.assertEquals(2, found.size());
+		Assert.assertEquals(all.get(1).id, found.get(0).id);
+		Assert.assertEquals(all.get(2).id, found.get(1).id);
+		
+		// the stored bean places the rows a delete has to reach
+		TestDevice alice = devices.get(0);
+		dao.deleteIndexData(index, alice.id);
+		Assert.assertEquals(0, dao.indexBeanLookup(TestDevice.class, "serial", "alice@x.com").size());
+		Assert.assertEquals(3, dao.indexBeanLookup(TestDevice.class, "serial", Arrays.asList("bob@x.com", "carol@x.com", "DAVE@x.com")).size());
+	}
+
+	@Test
+	public void indexFilterTest() throws Exception {
+		ExtendedDaoImpl dao = getDao("exttestfilter", TestDevice.class, 4);
+		RequestContext rc = new RequestContext();
+		dao.setRequestContext(rc);
+		ClassIndex index = dao.indexByKeys(TestDevice.class, "model");
+		
+		TestDevice device = new TestDevice();
+		device.setSerial("sn1");
+		device.setModel("m1");
+		dao.createBean(device);
+		int dataSourceId = dao.getDataSourceIdForObjectId(device.id);
+		
+		rc.commit();
+		
+		IndexFilters filters = new IndexFilters();
+		dao.setIndexFilters(filters);
+		Assert.assertFalse(filters.isEnabled(index));
+		filters.setExclusiveWriter(true);
+		dao.rebuildIndexFilters();
+		Assert.assertEquals(1, dao.indexBeanLookup(TestDevice.class, "model", "m1").size());
+		
+		// values written through the dao are queried before their commit
+		TestDevice second = new TestDevice();
+		second.setSerial("sn2");
+		second.setModel("m2");
+		dao.createBean(second);
+		Assert.assertEquals(1, dao.indexBeanLookup(TestDevice.class, "model", "m2").size());
+		second.setModel("m3");
+		dao.updateBean(second);
+		Assert.assertEquals(1, dao.indexBeanLookup(TestDevice.class, "model", "m3").size());
+		
+		// a rebuild scanning before the commit does not lose them
+		dao.setRequestContext(null);
+		dao.rebuildIndexFilters();
+		dao.setRequestContext(rc);
+		rc.commit();
+		Assert.assertEquals(1, dao.indexBeanLookup(TestDevice.class, "model", "m3").size());
+		Assert.assertFalse(filters.isForeignWrites());
+		
+		// rows written around the filters turn them off at the next rebuild
+		int other = (dataSourceId + 1) % 4;
+		String sql = "insert into " + index.getTableName() + " (`model`, `id`, `created`) values (?, ?, ?)";
+		new JdbcTemplate(dao.getShardedDataSource().getDataSourceByDataSourceId(rc, other).getRequestDataSource(rc)).update(sql, "m1", "dev-hidden", 0l);
+		rc.commit();
+		dao.rebuildIndexFilters();
+		Assert.assertTrue(filters.isForeignWrites());
+		Assert.assertEquals(2, dao.indexCountLookup(TestDevice.class, "model", "m1"));
+		Assert.assertEquals(0, dao.indexBeanLookup(TestDevice.class, "model", "m4").size());
+	}
+
+	static class MapCacheProxy extends CacheProxyBase {
+		Map<String, Object> map = new HashMap<String, Object>();
+		Map<String, Integer> expirations = new HashMap<String, Integer>();
+		int incrs;
+		
+		@Override
+		public CacheType getType() {
+			return CacheType.nocache;
+		}
+		@Override
+		public Object get(String key, int expiration) {
+			return map.get(key);
+		}
+		@Override
+		public void set(String key, Object value, int expiration) {
+			map.put(key, value);
+			expirations.put(key, expiration);
+		}
+		@Override
+		public void delete(String key) {
+			map.remove(key);
+		}
+		@Override
+		public long incr(String key, long delta, int expiration) {
+			incrs++;
+			Long value = (Long) map.get(key);
+			value = (value == null ? 0 : value) + delta;
+			map.put(key, value);
+			return value;
+		}
+		@Override
+		public long decr(String key, long delta, int expiration) {
+			return incr(key, -delta, expiration);
+		}
+	}
+	
+	@Test
+	public void indexCacheTest(){
+		ExtendedDaoImpl dao = getDao("exttestindexcache");
+		MapCacheProxy cache = new MapCacheProxy();
+		dao.setCacheProxy(cache);
+		ClassIndex index = dao.indexByKeys(TestUser.class, "firstName", "lastName");
+		
+		TestUser user = new TestUser();
+		user.setFirstName("f1");
+		user.setLastName("l1");
+		dao.createBean(user);
+		
+		Map values = new HashMap<String, Object>();
+		values.put("firstName", "f1");
+		values.put("lastName", "l1");
+		Assert.assertEquals(1, dao.indexBeanLookup(TestUser.class, values).size());
+		String key = index.getIndexedLookupKey(0, values);
+		Assert.assertEquals(1, ((List) cache.map.get(key)).size());
+		Assert.assertEquals(Integer.valueOf(300), cache.expirations.get(key));
+		
+		// updates evict the old and the new tuple
+		Map other = new HashMap<String, Object>();
+		other.put("firstName", "f2");
+		other.put("lastName", "l1");
+		Assert.assertEquals(0, dao.indexBeanLookup(TestUser.class, other).size());
+		Assert.assertEquals(Integer.valueOf(30), cache.expirations.get(index.getIndexedLookupKey(0, other)));
+		user.setFirstName("f2");
+		dao.updateBean(user);
+		Assert.assertNull(cache.map.get(key));
+		Assert.assertEquals(0, dao.indexBeanLookup(TestUser.class, values).size());
+		Assert.assertEquals(1, dao.indexBeanLookup(TestUser.class, other).size());
+		
+		// lookups on part of the index or on collections are not cached
+		Assert.assertEquals(1, dao.indexBeanLookup(TestUser.class, "firstName", "f2").size());
+		Assert.assertEquals(1, dao.indexBeanLookup(TestUser.class, "firstName", Arrays.asList("f2", "f3")).size());
+		int cachedLookups = 0;
+		for(String k : cache.map.keySet())
+			cachedLookups += k.startsWith(index.getTableName() + "|0|") ? 1 : 0;
+		Assert.assertEquals(2, cachedLookups);
+		
+		// deletes without the bean's values move the whole key family to a new version
+		dao.deleteIndexData(index, user.id);
+		Assert.assertEquals(0, dao.indexBeanLookup(TestUser.class, other).size());
+		Assert.assertNotNull(cache.map.get(index.getIndexedLookupKey(1, other)));
+		
+		// values containing the separator do not collide
+		Map a = new HashMap<String, Object>();
+		a.put("firstName", "x|1:y");
+		a.put("lastName", "z");
+		Map b = new HashMap<String, Object>();
+		b.put("firstName", "x");
+		b.put("lastName", "y|1:z");
+		Assert.assertNotEquals(index.getIndexedLookupKey(0, a), index.getIndexedLookupKey(0, b));
+	}
+
+	@Test
+	public void indexCacheTransactionTest() throws Exception {
+		ExtendedDaoImpl dao = getDao("exttestindextx");
+		MapCacheProxy cache = new MapCacheProxy();
+		dao.setCacheProxy(cache);
+		RequestContext rc = new RequestContext();
+		dao.setRequestContext(rc);
+		ClassIndex index = dao.indexByKeys(TestUser.class, "firstName", "lastName");
+		
+		TestUser user = new TestUser();
+		user.setFirstName("f1");
+		user.setLastName("l1");
+		dao.createBean(user);
+		rc.commit();
+		
+		// another request caches the committed row between the update and its commit
+		Map values = new HashMap<String, Object>();
+		values.put("firstName", "f1");
+		values.put("lastName", "l1");
+		String key = index.getIndexedLookupKey(0, values);
+		user.setFirstName("f2");
+		dao.updateBean(user);
+		Assert.assertNull(cache.map.get(key));
+		cache.set(key, Arrays.asList(new IndexedData(user.id)), 300);
+		rc.commit();
+		Assert.assertNull(cache.map.get(key));
+		Assert.assertEquals(0, dao.indexBeanLookup(TestUser.class, values).size());
+		
+		// deletes move the version once the rows are gone and again on commit
+		Map other = new HashMap<String, Object>();
+		other.put("firstName", "f2");
+		other.put("lastName", "l1");
+		dao.deleteIndexData(index, user.id);
+		long version = (Long) cache.map.get(index.getVersionKey());
+		Assert.assertEquals(1, version);
+		cache.set(index.getIndexedLookupKey(version, other), Arrays.asList(new IndexedData(user.id)), 300);
+		rc.commit();
+		Assert.assertEquals(2, ((Long) cache.map.get(index.getVersionKey())).longValue());
+		Assert.assertEquals(0, dao.indexBeanLookup(TestUser.class, other).size());
+		
+		// rolled back writes are evicted as well, this request may have cached them
+		user.setFirstName("f3");
+		dao.updateBean(user);
+		other.put("firstName", "f3");
+		String rolledBack = index.getIndexedLookupKey(2, other);
+		cache.set(rolledBack, Arrays.asList(new IndexedData(user.id)), 300);
+		rc.rollback();
+		Assert.assertNull(cache.map.get(rolledBack));
+	}
+
+	@Test
+	public void indexCacheVersionTest(){
+		ExtendedDaoImpl dao = getDao("exttestindexversion");
+		MapCacheProxy cache = new MapCacheProxy();
+		dao.setCacheProxy(cache);
+		dao.setIndexCacheVersionTtl(60000);
+		ClassIndex index = dao.indexByKeys(TestUser.class, "firstName", "lastName");
+		Map values = new HashMap<String, Object>();
+		values.put("firstName", "f1");
+		values.put("lastName", "l1");
+		
+		// lookups read the version from the cache once per ttl
+		for(int i=0; i<10; i++)
+			dao.indexBeanLookup(TestUser.class, values);
+		Assert.assertEquals(1, cache.incrs);
+		
+		// a version moved here is used right away, one moved elsewhere once the ttl ends
+		dao.invalidateIndexCache(index);
+		int incrs = cache.incrs;
+		dao.indexBeanLookup(TestUser.class, values);
+		Assert.assertEquals(incrs, cache.incrs);
+		Assert.assertNotNull(cache.map.get(index.getIndexedLookupKey(1, values)));
+		cache.incr(index.getVersionKey(), 1, -1);
+		dao.indexBeanLookup(TestUser.class, values);
+		Assert.assertNull(cache.map.get(index.getIndexedLookupKey(2, values)));
+		dao.setIndexCacheVersionTtl(0);
+		dao.invalidateIndexCache(index);
+		dao.indexBeanLookup(TestUser.class, values);
+		Assert.assertNotNull(cache.map.get(index.getIndexedLookupKey(3, values)));
+		
+		// writes read the current version to evict the keys lookups use
+		dao.setIndexCacheVersionTtl(60000);
+		cache.incr(index.getVersionKey(), 1, -1);
+		TestUser user = new TestUser();
+		user.setFirstName("f1");
+		user.setLastName("l1");
+		dao.createBean(user);
+		Assert.assertEquals(1, dao.indexBeanLookup(TestUser.class, values).size());
+	}
+	
+	public static class UserName {
+		public String id;
+		public long created;
+		public String firstName;
+		public String lastName;
+	}
+	
+	@Test
+	public void indexProjectionTest(){
+		ExtendedDaoImpl dao = getDao("exttestprojection");
+		for(int i=0; i<5; i++) {
+			TestUser user = new TestUser();
+			user.setFirstName("f");
+			user.setLastName("l" + i);
+			user.setEmail("e" + i);
+			dao.createBean(user);
+		}
+		
+		Map values = new HashMap<String, Object>();
+		values.put("firstName", "f");
+		values.put("lastName", "l3");
+		List<UserName> names = dao.indexProjectionLookup(TestUser.class, values, UserName.class);
+		Assert.assertEquals(1, names.size());
+		Assert.assertEquals("f", names.get(0).firstName);
+		Assert.assertEquals("l3", names.get(0).lastName);
+		TestUser user = dao.getBean(names.get(0).id);
+		Assert.assertEquals("e3", user.getEmail());
+		Assert.assertEquals(user.created, names.get(0).created);
+		
+		List<Map> page = dao.indexProjectionLookup(TestUser.class, Collections.singletonMap("firstName", (Object) "f"), 1, 2, 0, Map.class);
+		Assert.assertEquals(2, page.size());
+		Assert.assertEquals("f", page.get(0).get("firstName"));
+		Assert.assertNull(page.get(0).get("email"));
+		Assert.assertEquals(5, dao.indexProjectionLookup(TestUser.class, "firstName", "f", UserName.class).size());
+	}
+
+	@Test
+	public void createBeansMultiShardTest(){
+		createBeans(getDao("exttestbatch4", TestUser.class, 4));
+		// two data source ids on one database
+		createBeans(getDao("exttestbatchurl", TestUser.class, 2, "jdbc:h2:mem:exttestbatchurl;MODE=MySQL;DB_CLOSE_ON_EXIT=FALSE"));
+	}
+	
+	private void createBeans(ExtendedDaoImpl dao) {
+		List<TestUser> users = new ArrayList<TestUser>();
+		for(int i=0; i<20; i++) {
+			TestUser user = new TestUser();
+			user.setFirstName("f" + (i % 2));
+			user.setLastName("l");
+			users.add(user);
+		}
+		dao.createBeans(users);
+		
+		Set<Integer> dataSourceIds = new HashSet<Integer>();
+		for(TestUser user : users) {
+			dataSourceIds.add(dao.getDataSourceIdForObjectId(user.id));
+			Assert.assertNotNull(dao.getBean(user.id));
+		}
+		Assert.assertTrue(dataSourceIds.size() > 1);
+	}
+
+	@Test
+	public void deleteAllTest(){
+		ExtendedDaoImpl dao = getDao("exttestdelete");
+
+		List<TestUser> users = new ArrayList<TestUser>();
+		for(int i=0; i<6; i++) {
+			TestUser user = new TestUser();
+			user.setFirstName("f");
+			user.setLastName("l" + (i % 2));
+			users.add(user);
+		}
+		dao.createBeans(users);
+
+		List<String> ids = new ArrayList<String>();
+		for(int i=0; i<users.size(); i+=2) {
+			ids.add(users.get(i).id);
+		}
+		Assert.assertEquals(3, dao.deleteAll(ids));
+		Assert.assertNull(dao.getBean(ids.get(0)));
+		Assert.assertNotNull(dao.getBean(users.get(1).id));
+
+		Map values = new HashMap<String, Object>();
+		values.put("firstName", "f");
+		values.put("lastName", "l0");
+		Assert.assertEquals(0, dao.indexCountLookup(TestUser.class, values));
+		values.put("lastName", "l1");
+		Assert.assertEquals(3, dao.indexCountLookup(TestUser.class, values));
+	}
+
+	@Test
+	public void deleteAllMultiShardTest() throws Exception {
+		deleteAll(getDao(4, "jdbc:h2:mem:exttestdelete4__DATASOURCEID__;MODE=MySQL;DB_CLOSE_ON_EXIT=FALSE", TestUser.class, TestAccount.class));
+		// two data source ids on one database
+		deleteAll(getDao(2, "jdbc:h2:mem:exttestdeleteurl;MODE=MySQL;DB_CLOSE_ON_EXIT=FALSE", TestUser.class, TestAccount.class));
+	}
+	
+	private void deleteAll(ExtendedDaoImpl dao) throws Exception {
+		// data source ids sharing a database have their own request connections,
+		// broadcast reads only see what the other connections committed
+		RequestContext rc = new RequestContext();
+		dao.setRequestContext(rc);
+		
+		List<TestUser> users = new ArrayList<TestUser>();
+		for(int i=0; i<20; i++) {
+			TestUser user = new TestUser();
+			user.setFirstName("f");
+			user.setLastName("l" + (i % 2));
+			users.add(user);
+		}
+		dao.createBeans(users);
+		
+		List<TestAccount> accounts = new ArrayList<TestAccount>();
+		List<String> ids = new ArrayList<String>();
+		for(TestUser user : users) {
+			TestAccount account = new TestAccount();
+			account.setUserId(user.id);
+			account.setExtId("x" + user.getLastName());
+			accounts.add(account);
+		}
+		dao.createBeans(accounts);
+		rc.commit();
+		Assert.assertEquals(20, dao.listBeans(idsOf(users)).size());
+		Assert.assertEquals(10, dao.indexCountLookup(TestAccount.class, "extId", "xl0"));
+		
+		for(int i=0; i<users.size(); i+=2) {
+			ids.add(users.get(i).id);
+			ids.add(accounts.get(i).id);
+		}
+		Assert.assertEquals(20, dao.deleteAll(ids));
+		rc.commit();
+		
+		for(int i=0; i<users.size(); i++) {
+			boolean deleted = i % 2 == 0;
+			Assert.assertEquals(deleted, dao.getBean(users.get(i).id) == null);
+			Assert.assertEquals(deleted, dao.getBean(accounts.get(i).id) == null);
+			Assert.assertEquals(deleted ? 0 : 1, dao.mappedIdLookup(TestUser.class, TestAccount.class, users.get(i).id).size());
+		}
+		Assert.assertEquals(10, dao.listBeans(idsOf(users)).size());
+		Assert.assertEquals(0, dao.indexCountLookup(TestUser.class, "lastName", "l0"));
+		Assert.assertEquals(10, dao.indexCountLookup(TestUser.class, "lastName", "l1"));
+		Assert.assertEquals(0, dao.indexCountLookup(TestAccount.class, "extId", "xl0"));
+		Assert.assertEquals(10, dao.indexCountLookup(TestAccount.class, "extId", "xl1"));
+	}
+	
+	private static List<String> idsOf(List<? extends ObjectData> beans) {
+		List<String> ids = new ArrayList<String>();
+		for(ObjectData bean : beans)
+			ids.add(bean.id);
+		return ids;
+	}
+
+	@Test
+	public void asyncTest() throws Exception {
+		ExtendedDaoImpl dao = getDao("exttestasync");
+		AsyncExtendedDaoImpl async = new AsyncExtendedDaoImpl(dao);
+		try {
+			async.getBean("usr-none");
+			Assert.fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			async.setExecutorService(dao.getExecutorService());
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+		}
+		async.setExecutorService(Executors.newFixedThreadPool(2));
+		RequestContext rc = new RequestContext();
+		dao.setRequestContext(rc);
+		async.setRequestContext(rc);
+		
+		TestUser user = new TestUser();
+		user.setFirstName("fa");
+		user.setLastName("la");
+		dao.createBean(user);
+		
+		CompletableFuture<TestUser> bean = async.getBean(user.id);
+		CompletableFuture<List<TestUser>> beans = async.indexBeanLookup(TestUser.class, "firstName", "fa");
+		Assert.assertEquals("la", bean.get().getLastName());
+		Assert.assertEquals(1, beans.get().size());
+		Assert.assertEquals(user.id, beans.get().get(0).id);
+		Assert.assertNull(async.getBean(dao.generateIdForBean(new TestUser())).get());
+		
+		// the request ends only once its calls are done
+		final RequestContext ending = new RequestContext();
+		ending.beginCall();
+		Thread commit = new Thread() {
+			@Override
+			public void run() {
+				try {
+					ending.commit();
+				} catch (SQLException e) {
+				}
+			}
+		};
+		commit.start();
+		commit.join(200);
+		Assert.assertTrue(commit.isAlive());
+		ending.endCall();
+		commit.join(5000);
+		Assert.assertFalse(commit.isAlive());
+	}
+
+	@Test
+	public void identityMapTest() throws Exception {
+		ExtendedDaoImpl dao = getDao("exttestidentity");
+		RequestContext rc = new RequestContext();
+		rc.setIdentityMap(true);
+		dao.setRequestContext(rc);
+		
+		TestUser user = new TestUser();
+		user.setFirstName("fi");
+		user.setLastName("li");
+		dao.createBean(user);
+		
+		TestUser first = dao.getBean(user.id);
+		Assert.assertSame(first, dao.getBean(user.id));
+		
+		first.setFirstName("fj");
+		dao.updateBean(first);
+		TestUser updated = dao.getBean(user.id);
+		Assert.assertNotSame(first, updated);
+		Assert.assertEquals("fj", updated.getFirstName());
+		Assert.assertEquals(0, dao.indexCountLookup(TestUser.class, "firstName", "fi"));
+		Assert.assertEquals(1, dao.indexCountLookup(TestUser.class, "firstName", "fj"));
+		
+		rc.close();
+		Assert.assertNull(rc.getBean(user.id));
+		dao.delete(user.id);
+		Assert.assertNull(dao.getBean(user.id));
+	}
+
+	@Test
+	public void binaryStorageOnTextColumnTest() {
+		String url = "jdbc:h2:mem:exttestbinarytext;MODE=MySQL;DB_CLOSE_ON_EXIT=FALSE";
+		ExtendedDaoImpl dao = getDao("exttestbinarytext", TestProfile.class, 1, url);
+		// the table as it was before the class switched to binary storage
+		dao.updateAll("drop table `TestProfile`");
+		dao.updateAll("create table `TestProfile` (`id` varchar(64) primary key, `created` bigint, `updated` bigint, `version` integer, `json` text)");
+		
+		TestProfile profile = new TestProfile();
+		profile.setNickname("nick");
+		try {
+			dao.createBean(profile);
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getMessage().contains("TestProfile"));
+		}
+		Assert.assertEquals("alter table `TestProfile` modify `json` mediumblob", DbShardUtils.getPayloadMigrationSql(TestProfile.class, DbDialet.Mysql));
+	}
+	
+	@Test
+	public void binaryStorageTest() throws Exception {
+		ExtendedDaoImpl dao = getDao("exttestbinary", TestProfile.class);
+		RequestContext rc = new RequestContext();
+		dao.setRequestContext(rc);
+		
+		TestProfile profile = new TestProfile();
+		profile.setNickname("nick");
+		profile.setScore(-3);
+		profile.setRating(4.5);
+		profile.setTags(Arrays.asList("a", "b"));
+		profile.setCounters(Collections.singletonMap("c", 12345678901l));
+		dao.createBean(profile);
+		
+		TestProfile db = dao.getBean(profile.id);
+		Assert.assertEquals("nick", db.getNickname());
+		Assert.assertEquals(-3, db.getScore());
+		Assert.assertEquals(4.5, db.getRating(), 0);
+		Assert.assertEquals(Arrays.asList("a", "b"), db.getTags());
+		Assert.assertEquals(Long.valueOf(12345678901l), db.getCounters().get("c"));
+		Assert.assertEquals(1, dao.indexBeanLookup(TestProfile.class, "nickname", "nick").size());
+		
+		JdbcTemplate jt = new JdbcTemplate(dao.getShardedDataSource().getDataSourceByDataSourceId(rc, 0).getRequestDataSource(rc));
+		byte[] stored = jt.queryForObject("select `json` from `TestProfile` where `id`=?", byte[].class, profile.id);
+		Assert.assertTrue(BinaryJson.isBinary(stored));
+		
+		ObjectData data = dao.objectLookup(Arrays.asList(profile.id)).get(0);
+		Assert.assertNull(data.json);
+		Assert.assertTrue(BeanCodecs.createObjectMapper().writeValueAsString(data).contains("\"json\":{\"id\":\"" + profile.id + "\""));
+		
+		final List<ObjectData> raw = new ArrayList<ObjectData>();
+		dao.forEachRawBean(TestProfile.class, new BeanHandler<ObjectData>() {
+			@Override
+			public void processBean(ObjectData bean) {
+				raw.add(bean);
+			}
+		});
+		Assert.assertEquals(1, raw.size());
+		Assert.assertTrue(BinaryJson.isBinary(raw.get(0).payload));
+		Assert.assertTrue(raw.get(0).getJson().contains("\"nickname\":\"nick\""));
+		
+		String legacyId = dao.generateIdForBean(new TestProfile());
+		String legacyJson = "{\"id\":\"" + legacyId + "\",\"nickname\":\"old\",\"score\":7}";
+		jt.update("insert into `TestProfile` (`id`, `created`, `updated`, `version`, `json`) values (?, 1, 1, 0, ?)", legacyId, legacyJson.getBytes("UTF-8"));
+		TestProfile legacy = dao.getBean(legacyId);
+		Assert.assertEquals("old", legacy.getNickname());
+		Assert.assertEquals(2, dao.listBeans(Arrays.asList(profile.id, legacyId)).size());
+		
+		legacy.setScore(8);
+		dao.updateBean(legacy);
+		Assert.assertTrue(BinaryJson.isBinary(jt.queryForObject("select `json` from `TestProfile` where `id`=?", byte[].class, legacyId)));
+		Assert.assertEquals(8, ((TestProfile) dao.getBean(legacyId)).getScore());
+		
+		ByteArrayOutputStream dump = new ByteArrayOutputStream();
+		dao.dumpTable(dump, "TestProfile", null);
+		String text = dump.toString("UTF-8");
+		Assert.assertTrue(text.contains("\"nickname\":\"nick\""));
+		Assert.assertTrue(text.contains("\"score\":8"));
+	}
+
+	@Test
+	public void compressionTest() throws Exception {
+		ExtendedDaoImpl dao = getDao("exttestcompress", TestProfile.class);
+		RequestContext rc = new RequestContext();
+		dao.setRequestContext(rc);
+		
+		List<String> tags = new ArrayList<String>();
+		for(int i=0; i<200; i++)
+			tags.add("tag" + (i % 10));
+		TestProfile profile = new TestProfile();
+		profile.setNickname("big");
+		profile.setTags(tags);
+		dao.createBean(profile);
+		
+		JdbcTemplate jt = new JdbcTemplate(dao.getShardedDataSource().getDataSourceByDataSourceId(rc, 0).getRequestDataSource(rc));
+		byte[] stored = jt.queryForObject("select `json` from `TestProfile` where `id`=?", byte[].class, profile.id);
+		Assert.assertTrue(CompressedPayload.isCompressed(stored));
+		Assert.assertTrue(stored.length < 512);
+		
+		TestProfile db = dao.getBean(profile.id);
+		Assert.assertEquals(tags, db.getTags());
+		Assert.assertEquals(1, dao.queryBeans("select * from `TestProfile`", TestProfile.class).size());
+		
+		ObjectData data = dao.objectLookup(Arrays.asList(profile.id)).get(0);
+		Assert.assertNull(data.json);
+		Assert.assertTrue(BeanCodecs.createObjectMapper().writeValueAsString(data).contains("\"nickname\":\"big\""));
+	}
+	
+	@Test
+	public void compressionOnTextColumnTest() {
+		String url = "jdbc:h2:mem:exttestcompresstext;MODE=MySQL;DB_CLOSE_ON_EXIT=FALSE";
+		ExtendedDaoImpl dao = getDao("exttestcompresstext", TestNote.class, 1, url);
+		dao.updateAll("drop table `TestNote`");
+		dao.updateAll("create table `TestNote` (`id` varchar(64) primary key, `created` bigint, `updated` bigint, `version` integer, `json` text)");
+		
+		// small notes are stored as json, but a blob column is needed once one is compressed
+		TestNote note = new TestNote();
+		note.setText("short");
+		try {
+			dao.createBean(note);
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getMessage().contains("TestNote"));
+		}
+		
+		// same class with the blob column getSqls creates for new tables
+		dao = getDao("exttestcompressblob", TestNote.class);
+		dao.createBean(note);
+		Assert.assertEquals("short", ((TestNote) dao.getBean(note.id)).getText());
+	}
+
+	@Test
+	public void beanViewTest() {
+		ExtendedDaoImpl dao = getDao("exttestview", TestProfile.class);
+		TestProfile profile = new TestProfile();
+		profile.setNickname("viewed");
+		profile.setScore(3);
+		profile.setTags(Arrays.asList("x"));
+		profile.setCounters(Collections.singletonMap("visits", 9l));
+		dao.createBean(profile);
+		List<String> ids = Arrays.asList(profile.id, dao.generateIdForBean(new TestProfile()));
+		
+		List<BeanView<TestProfile>> views = dao.listBeanViews(ids);
+		Assert.assertEquals(1, views.size());
+		BeanView<TestProfile> view = views.get(0);
+		Assert.assertEquals(profile.id, view.getId());
+		Assert.assertEquals(profile.created, view.getCreated());
+		Assert.assertEquals("viewed", view.get("nickname"));
+		Assert.assertEquals(9, view.get("counters.visits"));
+		Assert.assertFalse(view.isDecoded());
+		Assert.assertEquals(3, view.get().getScore());
+		Assert.assertTrue(view.isDecoded());
+		
+		List<Map<String, Object>> projections = dao.listProjections(ids, "score", "tags", "missing");
+		Assert.assertEquals(1, projections.size());
+		Map<String, Object> projection = projections.get(0);
+		Assert.assertEquals(Arrays.asList("id", "score", "tags", "missing"), new ArrayList<String>(projection.keySet()));
+		Assert.assertEquals(profile.id, projection.get("id"));
+		Assert.assertEquals(3, projection.get("score"));
+		Assert.assertEquals(Arrays.asList("x"), projection.get("tags"));
+		Assert.assertNull(projection.get("missing"));
+	}
+
 	private ExtendedDaoImpl getDao(String dbname) {
-		ExtendedDaoImpl dao = new ExtendedDaoImpl(TestUser.class);
+		return getDao(dbname, TestUser.class);
+	}
+	
+	private ExtendedDaoImpl getDao(String dbname, Class cls) {
+		return getDao(dbname, cls, 1);
+	}
+	
+	private ExtendedDaoImpl getDao(String dbname, Class cls, int numberOfShards) {
+		return getDao(dbname, cls, numberOfShards, "jdbc:h2:mem:" + dbname+ "__DATASOURCEID__;MODE=MySQL;DB_CLOSE_ON_EXIT=FALSE");
+	}
+	
+	private ExtendedDaoImpl getDao(String dbname, Class cls, int numberOfShards, String url) {
+		return getDao(numberOfShards, url, cls);
+	}
+	
+	private ExtendedDaoImpl getDao(int numberOfShards, String url, Class... classes) {
+		ExtendedDaoImpl dao = new ExtendedDaoImpl(classes);
 		dao.setRequestContext(new RequestContext());
 		
 		ShardedDataSourceImpl ds = new ShardedDataSourceImpl();
 		ds.setDbClassName("org.h2.Driver");
 		ds.setUserName("sa");
-		ds.setUrl("jdbc:h2:mem:" + dbname+ "__DATASOURCEID__;MODE=MySQL;DB_CLOSE_ON_EXIT=FALSE");
+		ds.setUrl(url);
 		dao.setShardedDataSource(ds);
 		
-		ShardResolverBase shardResolver = new ShardResolverBase(0, 1);
+		ds.setShardsPerDataSource(1);
+		ShardResolverBase shardResolver = new ShardResolverBase(0, numberOfShards);
 		dao.setShardResolver(shardResolver);
-		shardResolver.setNumberOfShards(1);
+		shardResolver.setNumberOfShards(numberOfShards);
 		
 		ExecutorService executorService = Executors.newFixedThreadPool(1);
 		dao.setExecutorService(executorService);
-		dao.setTableManager(new TableManager(Arrays.asList((Class)TestUser.class)));
+		dao.setTableManager(new TableManager(Arrays.asList(classes)));
 		
-		List<String> sqls = DbShardUtils.getSqls(TestUser.class, DbDialet.H2);
-		for(String sql : sqls ) {
-			dao.updateAll(sql );
+		for(Class cls : classes) {
+			for(String sql : DbShardUtils.getSqls(cls, DbDialet.H2)) {
+				dao.updateAll(sql);
+			}
 		}
 		
 		return dao;
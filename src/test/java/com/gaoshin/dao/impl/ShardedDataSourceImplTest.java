@@ -17,6 +17,7 @@
 
 package com.gaoshin.dao.impl;
 
+import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -109,4 +110,71 @@ public class ShardedDataSourceImplTest {
 			Assert.assertEquals("shardDataSourceMappings[1],start(13) must equals the end of pre :12",e.getMessage());
 		}
 	}
+
+	@Test
+	public void concurrentLookupTest() throws Exception {
+		final ShardedDataSourceImpl sds = new ShardedDataSourceImpl();
+		sds.setDbClassName("org.h2.Driver");
+		sds.setUserName("sa");
+		sds.setUrl("jdbc:h2:mem:concurrent__DATASOURCEID__;MODE=MySQL;DB_CLOSE_ON_EXIT=FALSE");
+		
+		final ExtendedDataSource[][] seen = new ExtendedDataSource[8][16];
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t=0; t<seen.length; t++) {
+			final int thread = t;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for(int i=0; i<10000; i++) {
+						int dataSourceId = (i + thread) % 16;
+						ExtendedDataSource eds = sds.getDataSourceByDataSourceId(null, dataSourceId);
+						if(seen[thread][dataSourceId] == null)
+							seen[thread][dataSourceId] = eds;
+						else if(seen[thread][dataSourceId] != eds)
+							throw new IllegalStateException("data source " + dataSourceId + " created twice");
+					}
+				}
+			});
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		
+		for(int dataSourceId=0; dataSourceId<16; dataSourceId++) {
+			ExtendedDataSource eds = sds.getDataSourceByDataSourceId(null, dataSourceId);
+			Assert.assertEquals(dataSourceId, eds.getDataSourceId());
+			for(int t=0; t<seen.length; t++) {
+				Assert.assertSame(eds, seen[t][dataSourceId]);
+			}
+		}
+	}
+
+	@Test
+	public void requestConnectionTest() throws Exception {
+		ShardedDataSourceImpl sds = new ShardedDataSourceImpl();
+		sds.setDbClassName("org.h2.Driver");
+		sds.setUserName("sa");
+		sds.setUrl("jdbc:h2:mem:request__DATASOURCEID__;MODE=MySQL;DB_CLOSE_ON_EXIT=FALSE");
+		
+		ExtendedDataSource ds0 = sds.getDataSourceByDataSourceId(null, 0);
+		ExtendedDataSource ds3 = sds.getDataSourceByDataSourceId(null, 3);
+		RequestContext rc1 = new RequestContext();
+		RequestContext rc2 = new RequestContext();
+		
+		Connection c0 = ds0.getConnection(rc1);
+		Connection c3 = ds3.getConnection(rc1);
+		Assert.assertSame(c0, ds0.getConnection(rc1));
+		Assert.assertSame(c3, ds3.getConnection(rc1));
+		Assert.assertNotSame(c0, c3);
+		Assert.assertNotSame(c0, ds0.getConnection(rc2));
+		
+		rc1.commit();
+		rc1.close();
+		rc2.close();
+		Assert.assertTrue(c0.isClosed());
+		Assert.assertTrue(c3.isClosed());
+		Assert.assertNotSame(c0, ds0.getConnection(rc1));
+		rc1.close();
+	}
 }